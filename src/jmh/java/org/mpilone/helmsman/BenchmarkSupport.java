@@ -0,0 +1,63 @@
+package org.mpilone.helmsman;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Shared fixtures for the benchmarks.
+ *
+ * @author mpilone
+ */
+public class BenchmarkSupport {
+
+  /**
+   * Returns a user IO that discards all output.
+   *
+   * @param level the lowest level to format before discarding
+   * @return the new user IO
+   */
+  public static UserIo nullUserIo(UserIo.Level level) {
+    UserIo userIo = new UserIo(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+      }
+    }), false);
+    userIo.setLevel(level);
+
+    return userIo;
+  }
+
+  /**
+   * Creates the given number of services with random orders from 0 to 9. About
+   * one in ten services depends on a random service with a lower index so the
+   * dependency graph is always acyclic.
+   *
+   * @param count the number of services
+   * @param seed the random seed so runs are repeatable
+   * @return the services
+   */
+  public static List<ServiceConfig> services(int count, long seed) {
+    Random random = new Random(seed);
+    List<ServiceConfig> services = new ArrayList<ServiceConfig>(count);
+
+    for (int i = 0; i < count; i++) {
+      ServiceConfig service = new ServiceConfig();
+      service.setName("service" + i);
+      service.setOrder(random.nextInt(10));
+      service.setScript("/bin/true");
+      if (i > 0 && random.nextInt(10) == 0) {
+        service.getDependsOn().add("service" + random.nextInt(i));
+      }
+      services.add(service);
+    }
+
+    return services;
+  }
+}
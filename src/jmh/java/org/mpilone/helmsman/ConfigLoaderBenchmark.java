@@ -0,0 +1,109 @@
+package org.mpilone.helmsman;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures loading a configuration split into fragments from scratch and
+ * loading it again after a single fragment changed, as the daemon does when
+ * reloading.
+ *
+ * @author mpilone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigLoaderBenchmark {
+
+  private static final int FRAGMENTS = 50;
+
+  @Param({"1000", "10000"})
+  private int size;
+
+  private File configDir;
+  private ConfigLoader loader;
+  private UserIo userIo;
+  private int edits;
+
+  @Setup
+  public void setup() throws IOException {
+    configDir = File.createTempFile("helmsman", "config");
+    configDir.delete();
+    new File(configDir, ConfigLoader.FRAGMENT_DIR).mkdirs();
+
+    StringBuilder names = new StringBuilder("global.services=");
+    for (int i = 0; i < size; i++) {
+      names.append(i == 0 ? "" : ",").append("service").append(i);
+    }
+    write(new File(configDir, "base.properties"), names.toString());
+
+    for (int f = 0; f < FRAGMENTS; f++) {
+      writeFragment(f, 0);
+    }
+
+    userIo = BenchmarkSupport.nullUserIo(UserIo.Level.INFO);
+    loader = new ConfigLoader(configDir, "benchmark", userIo);
+    loader.load();
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (File file : new File(configDir, ConfigLoader.FRAGMENT_DIR)
+        .listFiles()) {
+      file.delete();
+    }
+    new File(configDir, ConfigLoader.FRAGMENT_DIR).delete();
+    new File(configDir, "base.properties").delete();
+    configDir.delete();
+  }
+
+  @Benchmark
+  public Properties loadAll() throws IOException {
+    return new ConfigLoader(configDir, "benchmark", userIo).load();
+  }
+
+  @Benchmark
+  public Properties reloadOneChanged() throws IOException {
+    writeFragment(0, ++edits);
+    return loader.load();
+  }
+
+  /**
+   * Writes the fragment defining every FRAGMENTS-th service.
+   *
+   * @param fragment the index of the fragment
+   * @param edit a value that changes the contents of the fragment
+   * @throws IOException if the fragment cannot be written
+   */
+  private void writeFragment(int fragment, int edit) throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = fragment; i < size; i += FRAGMENTS) {
+      text.append("service.service").append(i).append(
+          ".script=/opt/services/service").append(i).append(".sh\n");
+      text.append("service.service").append(i).append(".order=").append(i
+          % 10).append('\n');
+      text.append("service.service").append(i).append(".environment.EDIT=")
+          .append(edit).append('\n');
+    }
+    write(new File(configDir, ConfigLoader.FRAGMENT_DIR + "/" + String.format(
+        "%02d.properties", fragment)), text.toString());
+  }
+
+  private static void write(File file, String text) throws IOException {
+    PrintWriter out = new PrintWriter(new FileWriter(file));
+    try {
+      out.println(text);
+    }
+    finally {
+      out.close();
+    }
+  }
+}
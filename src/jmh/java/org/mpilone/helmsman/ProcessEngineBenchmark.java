@@ -0,0 +1,63 @@
+package org.mpilone.helmsman;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the time to execute a trivial script with each
+ * {@link ProcessEngine}.
+ *
+ * @author mpilone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessEngineBenchmark {
+
+  @Param({"native", "commons-exec"})
+  private String engineName;
+
+  private ProcessEngine engine;
+  private ServiceOutputStream out;
+  private final List<String> args = Arrays.asList("/bin/sh", "-c", "exit 0");
+
+  @Setup
+  public void setup() {
+    engine = "native".equals(engineName) ? new ProcessEngine.Native()
+        : new ProcessEngine.CommonsExec();
+    out = new ServiceOutputStream(BenchmarkSupport.nullUserIo(
+        UserIo.Level.INFO), "service");
+  }
+
+  @Benchmark
+  public int execute() throws IOException, InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final int[] exitValue = new int[1];
+
+    engine.execute(args, Collections.<String, String>emptyMap(), null, 10000,
+        out, new ProcessEngine.Handler() {
+          @Override
+          public void processComplete(int value, boolean timedOut) {
+            exitValue[0] = value;
+            latch.countDown();
+          }
+
+          @Override
+          public void processFailed(Exception ex) {
+            exitValue[0] = -1;
+            latch.countDown();
+          }
+        });
+    latch.await();
+
+    return exitValue[0];
+  }
+}
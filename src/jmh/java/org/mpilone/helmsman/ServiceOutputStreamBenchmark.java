@@ -0,0 +1,48 @@
+package org.mpilone.helmsman;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the throughput of a single {@link ServiceOutputStream} written by
+ * several threads at once, as when a service script and its children share
+ * the output pipe.
+ *
+ * @author mpilone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ServiceOutputStreamBenchmark {
+
+  @Param({"DEBUG", "INFO"})
+  private UserIo.Level level;
+
+  private ServiceOutputStream out;
+  private byte[] chunk;
+
+  @Setup
+  public void setup() {
+    out = new ServiceOutputStream(BenchmarkSupport.nullUserIo(level),
+        "service");
+
+    // Two and a half lines so writes exercise partial line buffering.
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < 5; i++) {
+      b.append("2015-01-01 00:00:00 INFO Started component ").append(i);
+      b.append(i % 2 == 1 ? "\n" : " ");
+    }
+    chunk = b.toString().getBytes(Charset.forName("UTF-8"));
+  }
+
+  @Benchmark
+  public void write() throws IOException {
+    out.write(chunk, 0, chunk.length);
+  }
+}
@@ -0,0 +1,61 @@
+package org.mpilone.helmsman;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures building, reversing, and draining a {@link ServiceQueue}.
+ *
+ * @author mpilone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServiceQueueBenchmark {
+
+  @Param({"10", "1000", "100000"})
+  private int size;
+
+  private List<ServiceConfig> services;
+  private ServiceQueue queue;
+
+  @Setup
+  public void setup() {
+    services = BenchmarkSupport.services(size, 42);
+    queue = new ServiceQueue(services);
+  }
+
+  @Benchmark
+  public ServiceQueue construct() {
+    return new ServiceQueue(services);
+  }
+
+  @Benchmark
+  public ServiceQueue reverse() {
+    // Reverse twice so the shared queue is left as it started.
+    queue.reverse();
+    queue.reverse();
+    return queue;
+  }
+
+  @Benchmark
+  public int drainSchedule() {
+    ServiceQueue.Schedule schedule = queue.schedule(true);
+
+    int completed = 0;
+    List<String> ready = schedule.poll();
+    while (!ready.isEmpty()) {
+      for (String name : ready) {
+        schedule.complete(name, true);
+        completed++;
+      }
+      ready = schedule.poll();
+    }
+
+    return completed;
+  }
+}
@@ -0,0 +1,52 @@
+package org.mpilone.helmsman;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures indexing services and evaluating selection expressions with a
+ * {@link ServiceSelector}.
+ *
+ * @author mpilone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServiceSelectorBenchmark {
+
+  @Param({"10", "1000", "100000"})
+  private int size;
+
+  private List<ServiceConfig> services;
+  private ServiceSelector selector;
+
+  @Setup
+  public void setup() {
+    services = BenchmarkSupport.services(size, 42);
+    for (int i = 0; i < services.size(); i++) {
+      services.get(i).getGroups().add("group" + (i % 20));
+      services.get(i).getGroups().add(i % 3 == 0 ? "deploy" : "standby");
+    }
+    selector = new ServiceSelector(services);
+  }
+
+  @Benchmark
+  public ServiceSelector construct() {
+    return new ServiceSelector(services);
+  }
+
+  @Benchmark
+  public BitSet selectGroups() {
+    return selector.select("deploy & !group7 | (group3 & standby)");
+  }
+
+  @Benchmark
+  public BitSet selectPattern() {
+    return selector.select("deploy & name~service1*");
+  }
+}
@@ -0,0 +1,56 @@
+package org.mpilone.helmsman;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures variable replacement and padding with large inputs.
+ *
+ * @author mpilone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StringsBenchmark {
+
+  @Param({"10", "500"})
+  private int variableCount;
+
+  @Param({"100", "10000"})
+  private int width;
+
+  private Map<String, String> variables;
+  private String value;
+
+  @Setup
+  public void setup() {
+    variables = new HashMap<String, String>();
+    for (int i = 0; i < variableCount; i++) {
+      // Every other variable references the previous one to exercise nesting.
+      variables.put("var" + i, i % 2 == 1 ? "${var" + (i - 1) + "}/path" + i
+          : "/value" + i);
+    }
+
+    // A value of roughly the padding width that references every variable.
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; b.length() < width; i = (i + 1) % variableCount) {
+      b.append("text ${var").append(i).append("} ");
+    }
+    value = b.toString();
+  }
+
+  @Benchmark
+  public String replaceVariables() {
+    return Strings.replaceVariables(value, variables);
+  }
+
+  @Benchmark
+  public String padRight() {
+    return Strings.padRight("service", ".", width);
+  }
+}
@@ -0,0 +1,51 @@
+package org.mpilone.helmsman;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the scheduling overhead of the {@link TaskExecutor} with tasks
+ * that complete immediately.
+ *
+ * @author mpilone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TaskExecutorBenchmark {
+
+  @Param({"10", "1000", "10000"})
+  private int size;
+
+  @Param({"1", "16"})
+  private int threadCount;
+
+  private ServiceQueue queue;
+  private UserIo userIo;
+
+  @Setup
+  public void setup() {
+    queue = new ServiceQueue(BenchmarkSupport.services(size, 42));
+    userIo = BenchmarkSupport.nullUserIo(UserIo.Level.INFO);
+  }
+
+  @Benchmark
+  public Map<String, Boolean> execute() {
+    Map<String, ServiceTask> tasks = new LinkedHashMap<String, ServiceTask>();
+    for (ServiceConfig service : queue) {
+      tasks.put(service.getName(), new ServiceTask.Constant(true));
+    }
+
+    TaskExecutor executor = new TaskExecutor(new Admission(threadCount),
+        new Metrics(), null, null, userIo);
+    return executor.execute("start", tasks, queue.schedule(true),
+        Collections.<String>emptySet(), new ResultPrinter.Text(userIo,
+            "Starting", "UP", "FAILED", threadCount > 1));
+  }
+}
@@ -0,0 +1,357 @@
+package org.mpilone.helmsman;
+
+import java.io.*;
+import org.mpilone.helmsman.UserIo.Level;
+
+import static java.lang.String.format;
+
+/**
+ * Adjusts the limit of an {@link Admission} while tasks execute based on the
+ * pressure on the host. The limit grows while the host is idle and tasks are
+ * waiting for capacity, and is halved as soon as the host is overloaded
+ * (additive increase, multiplicative decrease) so a wide status sweep can use
+ * many threads while heavy starts back off before the host thrashes. The host
+ * is considered overloaded if any of these signals is high:
+ * <ul>
+ * <li>CPU, memory, or IO pressure from /proc/pressure (or the load average
+ * per CPU from /proc/loadavg if pressure stall information isn't
+ * available)</li>
+ * <li>low available memory from /proc/meminfo</li>
+ * <li>tasks taking much longer than their duration history</li>
+ * </ul>
+ * Signals that can't be read are ignored. This class is not thread safe.
+ *
+ * @author mpilone
+ */
+public class AdaptiveParallelism {
+
+  /**
+   * The minimum number of milliseconds between adjustments.
+   */
+  private static final long SAMPLE_INTERVAL = 1000;
+
+  /**
+   * The number of milliseconds to hold the limit after a decrease. The
+   * pressure averages lag so an immediate second decrease would overshoot.
+   */
+  private static final long DECREASE_HOLD = 5000;
+
+  /**
+   * The weight of the newest task in the moving latency ratio.
+   */
+  private static final double ALPHA = 0.3;
+
+  /**
+   * The CPU or IO pressure (percent of time some tasks stalled in the last 10
+   * seconds) considered overloaded and idle.
+   */
+  private static final double HIGH_PRESSURE = 50;
+  private static final double LOW_PRESSURE = 25;
+
+  /**
+   * The memory pressure considered overloaded and idle. Any sustained memory
+   * stall is a sign of swapping or reclaim.
+   */
+  private static final double HIGH_MEMORY_PRESSURE = 10;
+  private static final double LOW_MEMORY_PRESSURE = 2;
+
+  /**
+   * The load average per CPU considered overloaded and idle when pressure
+   * stall information isn't available.
+   */
+  private static final double HIGH_LOAD = 2.0;
+  private static final double LOW_LOAD = 1.0;
+
+  /**
+   * The fraction of available memory considered overloaded and idle.
+   */
+  private static final double LOW_MEMORY = 0.1;
+  private static final double HIGH_MEMORY = 0.2;
+
+  /**
+   * The ratio of task duration to history considered overloaded and idle.
+   */
+  private static final double HIGH_LATENCY = 2.0;
+  private static final double LOW_LATENCY = 1.5;
+
+  /**
+   * The directory to read the host signals from.
+   */
+  private static final File PROC = new File("/proc");
+
+  private final int floor;
+  private final int ceiling;
+  private final UserIo userIo;
+
+  /**
+   * The moving ratio of task duration to history or 0 if no task with
+   * history completed.
+   */
+  private double latencyRatio;
+
+  /**
+   * The time of the last adjustment in milliseconds.
+   */
+  private long lastSample;
+
+  /**
+   * The time until which the limit isn't changed in milliseconds.
+   */
+  private long holdUntil;
+
+  /**
+   * Constructs the adaptive parallelism.
+   *
+   * @param floor the minimum limit
+   * @param ceiling the maximum limit
+   * @param userIo the User IO to write debug output to
+   */
+  public AdaptiveParallelism(int floor, int ceiling, UserIo userIo) {
+    this.floor = Math.max(floor, 1);
+    this.ceiling = Math.max(ceiling, this.floor);
+    this.userIo = userIo;
+  }
+
+  /**
+   * Returns the limit to start with which is the number of CPUs bounded by
+   * the floor and ceiling.
+   *
+   * @return the initial limit
+   */
+  public int initialLimit() {
+    return Math.min(Math.max(Runtime.getRuntime().availableProcessors(),
+        floor), ceiling);
+  }
+
+  /**
+   * Records the duration of a completed task to track how much slower tasks
+   * run than usual.
+   *
+   * @param seconds the duration of the task
+   * @param expected the expected duration of the task from history or null
+   */
+  public void taskComplete(double seconds, Double expected) {
+    // Very short tasks are dominated by noise (e.g. process creation).
+    if (expected == null || expected < 0.05) {
+      return;
+    }
+
+    double ratio = seconds / expected;
+    latencyRatio = latencyRatio == 0 ? ratio : ALPHA * ratio + (1 - ALPHA)
+        * latencyRatio;
+  }
+
+  /**
+   * Adjusts the limit of the admission if enough time has passed since the
+   * last adjustment.
+   *
+   * @param admission the admission to adjust
+   * @param saturated true if tasks are waiting for capacity
+   */
+  public void adjust(Admission admission, boolean saturated) {
+    long now = System.currentTimeMillis();
+    if (now - lastSample < SAMPLE_INTERVAL || now < holdUntil) {
+      return;
+    }
+    lastSample = now;
+
+    int limit = admission.getLimit();
+    Pressure pressure = sample();
+
+    if (pressure.overloaded && limit > floor) {
+      admission.setLimit(Math.max(limit / 2, floor));
+      holdUntil = now + DECREASE_HOLD;
+    }
+    else if (pressure.idle && saturated && limit < ceiling) {
+      admission.setLimit(Math.min(limit + Math.max(limit / 4, 1), ceiling));
+    }
+
+    if (admission.getLimit() != limit) {
+      userIo.println(format("Adjusting parallelism from %d to %d (%s).", limit,
+          admission.getLimit(), pressure.description), Level.DEBUG);
+    }
+  }
+
+  /**
+   * Samples the host signals.
+   *
+   * @return the pressure on the host
+   */
+  private Pressure sample() {
+    Pressure pressure = new Pressure();
+    StringBuilder description = new StringBuilder();
+
+    Double cpu = stall("cpu");
+    if (cpu != null) {
+      pressure.check(cpu, LOW_PRESSURE, HIGH_PRESSURE);
+      description.append(format("cpu %.1f%%", cpu));
+
+      Double memory = stall("memory");
+      if (memory != null) {
+        pressure.check(memory, LOW_MEMORY_PRESSURE, HIGH_MEMORY_PRESSURE);
+        description.append(format(", memory %.1f%%", memory));
+      }
+
+      Double io = stall("io");
+      if (io != null) {
+        pressure.check(io, LOW_PRESSURE, HIGH_PRESSURE);
+        description.append(format(", io %.1f%%", io));
+      }
+    }
+    else {
+      Double load = load();
+      if (load != null) {
+        pressure.check(load, LOW_LOAD, HIGH_LOAD);
+        description.append(format("load %.2f per cpu", load));
+      }
+    }
+
+    Double available = availableMemory();
+    if (available != null) {
+      // Less available memory is worse so the fraction is inverted.
+      pressure.check(1 - available, 1 - HIGH_MEMORY, 1 - LOW_MEMORY);
+      description.append(format(", %.0f%% memory available", available * 100));
+    }
+
+    if (latencyRatio > 0) {
+      pressure.check(latencyRatio, LOW_LATENCY, HIGH_LATENCY);
+      description.append(format(", tasks %.1fx history", latencyRatio));
+    }
+
+    pressure.description = description.toString().replaceFirst("^, ", "");
+    return pressure;
+  }
+
+  /**
+   * Returns the percent of time some tasks stalled on the resource in the
+   * last 10 seconds.
+   *
+   * @param resource the resource (cpu, memory, or io)
+   * @return the percent or null if not available
+   */
+  private Double stall(String resource) {
+    String line = readLine(new File(new File(PROC, "pressure"), resource));
+    if (line == null || !line.startsWith("some ")) {
+      return null;
+    }
+
+    for (String field : line.split(" ")) {
+      if (field.startsWith("avg10=")) {
+        return parse(field.substring(6));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the one minute load average per CPU.
+   *
+   * @return the load or null if not available
+   */
+  private Double load() {
+    String line = readLine(new File(PROC, "loadavg"));
+    if (line == null) {
+      return null;
+    }
+
+    Double load = parse(line.split(" ")[0]);
+    return load == null ? null : load / Runtime.getRuntime()
+        .availableProcessors();
+  }
+
+  /**
+   * Returns the fraction of memory available for new processes.
+   *
+   * @return the fraction or null if not available
+   */
+  private Double availableMemory() {
+    Double total = null;
+    Double available = null;
+
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(new File(PROC,
+          "meminfo")));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null && (total == null
+            || available == null)) {
+          String[] fields = line.split("\\s+");
+          if (fields[0].equals("MemTotal:")) {
+            total = parse(fields[1]);
+          }
+          else if (fields[0].equals("MemAvailable:")) {
+            available = parse(fields[1]);
+          }
+        }
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch (IOException ex) {
+      return null;
+    }
+
+    return total == null || available == null || total == 0 ? null
+        : available / total;
+  }
+
+  /**
+   * Reads the first line of the given file.
+   *
+   * @param file the file to read
+   * @return the line or null if the file cannot be read
+   */
+  private static String readLine(File file) {
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+        return reader.readLine();
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Parses a number.
+   *
+   * @param value the value to parse
+   * @return the number or null if the value isn't a number
+   */
+  private static Double parse(String value) {
+    try {
+      return Double.parseDouble(value);
+    }
+    catch (NumberFormatException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * The combined verdict of the host signals. The host is overloaded if any
+   * signal is high and idle only if every signal is low.
+   */
+  private static class Pressure {
+
+    private boolean overloaded;
+    private boolean idle = true;
+    private String description;
+
+    /**
+     * Checks a single signal.
+     *
+     * @param value the value of the signal
+     * @param low the value below which the signal is idle
+     * @param high the value at or above which the signal is overloaded
+     */
+    public void check(double value, double low, double high) {
+      overloaded |= value >= high;
+      idle &= value < low;
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package org.mpilone.helmsman;
+
+import java.util.*;
+
+/**
+ * Decides which tasks may execute at once. The capacity (the parallel thread
+ * count) is shared by weight so a heavy service (e.g. a JVM) can take several
+ * units while light services take one each. Groups may also limit how many of
+ * their services execute at once. A task is always admitted when nothing is
+ * executing so a task heavier than the capacity still runs, alone. The limit
+ * may be lowered below the capacity while tasks execute (e.g. by
+ * {@link AdaptiveParallelism}) in which case executing tasks continue but no
+ * new task is admitted until the usage is under the new limit. The usage
+ * returns to zero when every acquired task is released so the same admission
+ * can be used for an estimate and then an execution. This class is not
+ * thread safe.
+ *
+ * @author mpilone
+ */
+public class Admission {
+
+  /**
+   * The total weight that may execute at once.
+   */
+  private final int capacity;
+
+  /**
+   * The total weight that may currently execute at once which is at most the
+   * capacity.
+   */
+  private int limit;
+
+  /**
+   * The weight of each task that doesn't have the default weight of 1.
+   */
+  private final Map<String, Integer> weights = new HashMap<String, Integer>();
+
+  /**
+   * The limited groups of each task that is in a limited group.
+   */
+  private final Map<String, List<String>> groups
+      = new HashMap<String, List<String>>();
+
+  /**
+   * The maximum number of executing tasks by limited group.
+   */
+  private final Map<String, Integer> limits = new HashMap<String, Integer>();
+
+  /**
+   * The number of executing tasks by limited group.
+   */
+  private final Map<String, Integer> groupUsage
+      = new HashMap<String, Integer>();
+
+  /**
+   * The total weight of the executing tasks.
+   */
+  private int used;
+
+  /**
+   * The number of executing tasks.
+   */
+  private int count;
+
+  /**
+   * Constructs an admission where every task has a weight of 1 and there are
+   * no group limits.
+   *
+   * @param capacity the number of tasks that may execute at once
+   */
+  public Admission(int capacity) {
+    this.capacity = Math.max(capacity, 1);
+    this.limit = this.capacity;
+  }
+
+  /**
+   * Constructs the admission.
+   *
+   * @param capacity the total weight that may execute at once
+   * @param services the services to be executed
+   * @param groupLimits the maximum number of services executing at once by
+   * group name
+   */
+  public Admission(int capacity, Collection<ServiceConfig> services,
+      Map<String, Integer> groupLimits) {
+    this(capacity);
+
+    for (ServiceConfig service : services) {
+      if (service.getWeight() != 1) {
+        weights.put(service.getName(), service.getWeight());
+      }
+
+      for (String group : service.getGroups()) {
+        Integer limit = groupLimits.get(group);
+        if (limit == null) {
+          continue;
+        }
+
+        limits.put(group, limit);
+        if (!groups.containsKey(service.getName())) {
+          groups.put(service.getName(), new ArrayList<String>());
+        }
+        groups.get(service.getName()).add(group);
+      }
+    }
+  }
+
+  /**
+   * Returns the maximum number of tasks that can execute at once.
+   *
+   * @return the maximum number of tasks
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the total weight that may currently execute at once.
+   *
+   * @return the limit
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Sets the total weight that may currently execute at once.
+   *
+   * @param limit the limit which is bounded by 1 and the capacity
+   */
+  public void setLimit(int limit) {
+    this.limit = Math.min(Math.max(limit, 1), capacity);
+  }
+
+  /**
+   * Returns true if no more tasks can be admitted until a task is released.
+   *
+   * @return true if full
+   */
+  public boolean isFull() {
+    return used >= limit;
+  }
+
+  /**
+   * Admits the task if its weight fits under the limit and none of its groups
+   * are at their limit.
+   *
+   * @param name the name of the task
+   * @return true if admitted, false if the task must wait
+   */
+  public boolean tryAcquire(String name) {
+    int weight = weight(name);
+    List<String> taskGroups = groups.get(name);
+
+    if (count > 0) {
+      if (used + weight > limit) {
+        return false;
+      }
+
+      if (taskGroups != null) {
+        for (String group : taskGroups) {
+          if (usage(group) >= limits.get(group)) {
+            return false;
+          }
+        }
+      }
+    }
+
+    used += weight;
+    count++;
+    if (taskGroups != null) {
+      for (String group : taskGroups) {
+        groupUsage.put(group, usage(group) + 1);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Releases a task admitted by {@link #tryAcquire(java.lang.String)}.
+   *
+   * @param name the name of the task
+   */
+  public void release(String name) {
+    used -= weight(name);
+    count--;
+
+    List<String> taskGroups = groups.get(name);
+    if (taskGroups != null) {
+      for (String group : taskGroups) {
+        groupUsage.put(group, usage(group) - 1);
+      }
+    }
+  }
+
+  /**
+   * Returns the weight of the task.
+   *
+   * @param name the name of the task
+   * @return the weight
+   */
+  private int weight(String name) {
+    Integer weight = weights.get(name);
+    return weight == null ? 1 : weight;
+  }
+
+  /**
+   * Returns the number of executing tasks in the group.
+   *
+   * @param group the name of the group
+   * @return the number of tasks
+   */
+  private int usage(String group) {
+    Integer usage = groupUsage.get(group);
+    return usage == null ? 0 : usage;
+  }
+}
@@ -0,0 +1,112 @@
+package org.mpilone.helmsman;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+import static java.lang.String.format;
+
+/**
+ * Replaces files atomically. The new contents are written to a uniquely named
+ * temporary file in the same directory which is renamed over the file only
+ * once it is completely written. A reader therefore sees either the old or the
+ * new contents, and concurrent writers never share a temporary file. The
+ * temporary file is deleted if writing fails.
+ *
+ * @author mpilone
+ */
+public class AtomicFile {
+
+  /**
+   * The contents of a file written as bytes.
+   *
+   * @author mpilone
+   */
+  public interface Content {
+
+    /**
+     * Writes the contents. The stream is closed by the caller.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the contents cannot be written
+     */
+    void write(OutputStream out) throws IOException;
+  }
+
+  /**
+   * The contents of a file written as text.
+   *
+   * @author mpilone
+   */
+  public interface TextContent {
+
+    /**
+     * Writes the contents. The writer is checked for errors and closed by the
+     * caller.
+     *
+     * @param out the writer to write to
+     * @throws IOException if the contents cannot be written
+     */
+    void write(PrintWriter out) throws IOException;
+  }
+
+  /**
+   * Replaces the file with the given contents.
+   *
+   * @param file the file to replace
+   * @param content the new contents
+   * @throws IOException if the file cannot be written or replaced
+   */
+  public static void write(File file, Content content) throws IOException {
+    File tmpFile = File.createTempFile(file.getName() + ".", ".tmp", file
+        .getAbsoluteFile().getParentFile());
+
+    boolean replaced = false;
+    try {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(
+          tmpFile));
+      try {
+        content.write(out);
+      }
+      finally {
+        out.close();
+      }
+
+      if (!tmpFile.renameTo(file)) {
+        throw new IOException(format("Unable to rename [%s] to [%s].",
+            tmpFile, file));
+      }
+      replaced = true;
+    }
+    finally {
+      if (!replaced) {
+        tmpFile.delete();
+      }
+    }
+  }
+
+  /**
+   * Replaces the file with the given text contents.
+   *
+   * @param file the file to replace
+   * @param charset the character set of the file
+   * @param content the new contents
+   * @throws IOException if the file cannot be written or replaced
+   */
+  public static void writeText(final File file, final Charset charset,
+      final TextContent content) throws IOException {
+    write(file, new Content() {
+      @Override
+      public void write(OutputStream out) throws IOException {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(out,
+            charset));
+        content.write(writer);
+
+        // PrintWriter swallows errors so a full disk must be detected before
+        // the partial file replaces the last complete one.
+        if (writer.checkError()) {
+          throw new IOException(format("Unable to write [%s].", file));
+        }
+      }
+    });
+  }
+}
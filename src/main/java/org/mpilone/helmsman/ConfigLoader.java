@@ -0,0 +1,471 @@
+package org.mpilone.helmsman;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static java.lang.String.format;
+
+/**
+ * Loads the configuration properties from the configuration directory. The
+ * properties are loaded in layers of increasing precedence:
+ * <ol>
+ * <li>base.properties</li>
+ * <li>conf.d/*.properties, in file name order</li>
+ * <li>&lt;hostname&gt;.properties, if it exists</li>
+ * </ol>
+ * A property in a later layer overrides the same property in an earlier layer.
+ * Within a layer, a property defined in two different files is a conflict and
+ * fails the load with the file and line of both definitions so fragments
+ * maintained by different teams never silently override each other. Any file
+ * may include other files with a line of the form "@include path" where the
+ * path is relative to the including file. Included files belong to the layer
+ * of the including file. The files are parsed in parallel and merged in
+ * order. A loader can be used to load again in which case only the files that
+ * changed since the last load (or that include a file that changed) are
+ * parsed again.
+ *
+ * @author mpilone
+ */
+public class ConfigLoader {
+
+  /**
+   * The name of the directory of configuration fragments.
+   */
+  public static final String FRAGMENT_DIR = "conf.d";
+
+  /**
+   * The directive that includes another file.
+   */
+  private static final String INCLUDE = "@include";
+
+  private final File configDir;
+  private final String hostname;
+  private final UserIo userIo;
+
+  /**
+   * The files and directories read while loading in the order they were
+   * read.
+   */
+  private final List<File> inputs = new ArrayList<File>();
+
+  /**
+   * The fragments of the last load by top level file.
+   */
+  private final Map<File, Fragment> cache = new HashMap<File, Fragment>();
+
+  /**
+   * Constructs the loader.
+   *
+   * @param configDir the configuration directory
+   * @param hostname the host name of the machine
+   * @param userIo the User IO to write debug output to
+   */
+  public ConfigLoader(File configDir, String hostname, UserIo userIo) {
+    this.configDir = configDir;
+    this.hostname = hostname;
+    this.userIo = userIo;
+  }
+
+  /**
+   * Returns the files and directories the configuration was loaded from,
+   * including the machine specific configuration and fragment directory even
+   * if they don't exist so creating them can be detected.
+   *
+   * @return the input files
+   */
+  public List<File> getInputs() {
+    return inputs;
+  }
+
+  /**
+   * Loads and merges all the configuration files.
+   *
+   * @return the merged properties
+   * @throws IOException if a file cannot be read
+   * @throws RuntimeException if a property conflicts or an include is invalid
+   */
+  public synchronized Properties load() throws IOException {
+    File base = new File(configDir, "base.properties");
+    File host = new File(configDir, hostname + ".properties");
+    File fragmentDir = new File(configDir, FRAGMENT_DIR);
+
+    File[] fragments = fragmentDir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".properties");
+      }
+    });
+    if (fragments == null) {
+      fragments = new File[0];
+    }
+    Arrays.sort(fragments);
+
+    userIo.println("Checking for machine configuration: " + host
+        .getAbsolutePath(), UserIo.Level.DEBUG);
+
+    // Every file is parsed on its own so they can be parsed in parallel.
+    List<File> files = new ArrayList<File>();
+    files.add(base);
+    files.addAll(Arrays.asList(fragments));
+    if (host.exists()) {
+      files.add(host);
+    }
+    List<Fragment> parsed = parseChanged(files);
+
+    inputs.clear();
+    inputs.add(fragmentDir);
+    inputs.add(host);
+    for (Fragment fragment : parsed) {
+      inputs.addAll(fragment.files);
+    }
+
+    // Merge the layers in order of precedence.
+    Properties config = new Properties();
+    merge(config, parsed.subList(0, 1));
+    merge(config, parsed.subList(1, 1 + fragments.length));
+    merge(config, parsed.subList(1 + fragments.length, parsed.size()));
+    return config;
+  }
+
+  /**
+   * Parses the given files that changed since the last load and reuses the
+   * fragments of the files that didn't.
+   *
+   * @param files the files to parse
+   * @return the parsed files in the same order
+   * @throws IOException if a file cannot be read
+   */
+  private List<Fragment> parseChanged(List<File> files) throws IOException {
+    List<File> changed = new ArrayList<File>();
+    for (File file : files) {
+      Fragment fragment = cache.get(file);
+      if (fragment == null || !fragment.isCurrent()) {
+        changed.add(file);
+      }
+    }
+
+    Map<File, Fragment> reparsed = new HashMap<File, Fragment>();
+    if (!changed.isEmpty()) {
+      List<Fragment> fragments = parse(changed);
+      for (int i = 0; i < changed.size(); i++) {
+        reparsed.put(changed.get(i), fragments.get(i));
+      }
+    }
+
+    List<Fragment> parsed = new ArrayList<Fragment>();
+    for (File file : files) {
+      Fragment fragment = reparsed.get(file);
+      parsed.add(fragment != null ? fragment : cache.get(file));
+    }
+
+    // Drop the fragments of files that were removed.
+    cache.clear();
+    for (int i = 0; i < files.size(); i++) {
+      cache.put(files.get(i), parsed.get(i));
+    }
+    return parsed;
+  }
+
+  /**
+   * Parses the given files, in parallel if there is more than one.
+   *
+   * @param files the files to parse
+   * @return the parsed files in the same order
+   * @throws IOException if a file cannot be read
+   */
+  private List<Fragment> parse(List<File> files) throws IOException {
+    List<Fragment> parsed = new ArrayList<Fragment>();
+    if (files.size() == 1) {
+      parsed.add(parse(files.get(0)));
+      return parsed;
+    }
+
+    // Failures are returned rather than thrown so the first failure in file
+    // order is reported regardless of which file finished parsing first.
+    List<Callable<Fragment>> tasks = new ArrayList<Callable<Fragment>>();
+    for (final File file : files) {
+      tasks.add(new Callable<Fragment>() {
+        @Override
+        public Fragment call() {
+          try {
+            return parse(file);
+          }
+          catch (Exception ex) {
+            Fragment fragment = new Fragment();
+            fragment.failure = ex;
+            return fragment;
+          }
+        }
+      });
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(Math.min(files.size(), Runtime
+        .getRuntime().availableProcessors()));
+    try {
+      for (Future<Fragment> future : pool.invokeAll(tasks)) {
+        parsed.add(future.get());
+      }
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while parsing configuration.", ex);
+    }
+    catch (ExecutionException ex) {
+      throw new IOException(ex.getCause());
+    }
+    finally {
+      pool.shutdown();
+    }
+
+    for (Fragment fragment : parsed) {
+      if (fragment.failure instanceof IOException) {
+        throw (IOException) fragment.failure;
+      }
+      else if (fragment.failure != null) {
+        throw (RuntimeException) fragment.failure;
+      }
+    }
+    return parsed;
+  }
+
+  /**
+   * Parses a single file and all the files it includes.
+   *
+   * @param file the file to parse
+   * @return the parsed fragment
+   * @throws IOException if a file cannot be read
+   */
+  private Fragment parse(File file) throws IOException {
+    Fragment fragment = new Fragment();
+    parse(file, fragment, new ArrayDeque<File>());
+    return fragment;
+  }
+
+  /**
+   * Parses the file into the fragment. Properties are loaded with
+   * {@link Properties} so the syntax matches exactly, while the line each
+   * property starts on is recorded for reporting conflicts.
+   *
+   * @param file the file to parse
+   * @param fragment the fragment to add the properties to
+   * @param including the stack of files including this file
+   * @throws IOException if a file cannot be read
+   */
+  private void parse(File file, Fragment fragment, Deque<File> including)
+      throws IOException {
+    File canonical = file.getCanonicalFile();
+    if (including.contains(canonical)) {
+      throw new RuntimeException(format("Configuration file [%s] includes "
+          + "itself.", file));
+    }
+
+    userIo.println("Loading configuration: " + file.getAbsolutePath(),
+        UserIo.Level.DEBUG);
+    fragment.files.add(file);
+    fragment.stamps.add(stamp(file));
+    including.push(canonical);
+
+    // Collect the logical lines (joining continuations) and the line each
+    // starts on. Includes are processed in place so included properties are
+    // ordered at the directive.
+    final List<Integer> lines = new ArrayList<Integer>();
+    StringBuilder text = new StringBuilder();
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      int number = 0;
+      while ((line = reader.readLine()) != null) {
+        number++;
+        int start = number;
+
+        // Comment lines are never continued.
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#") || trimmed
+            .startsWith("!")) {
+          continue;
+        }
+
+        StringBuilder logical = new StringBuilder(line);
+        while (isContinued(line) && (line = reader.readLine()) != null) {
+          number++;
+          logical.append('\n').append(line);
+        }
+
+        trimmed = logical.toString().trim();
+        if (trimmed.startsWith(INCLUDE + " ") || trimmed.startsWith(
+            INCLUDE + "\t")) {
+          flush(text, lines, file, fragment);
+          File included = new File(trimmed.substring(INCLUDE.length()).trim());
+          if (!included.isAbsolute()) {
+            included = new File(file.getParentFile(), included.getPath())
+                .toPath().normalize().toFile();
+          }
+          if (!included.isFile()) {
+            throw new RuntimeException(format("Included configuration file "
+                + "[%s] does not exist at [%s:%d].", included, file, start));
+          }
+          parse(included, fragment, including);
+        }
+        else {
+          text.append(logical).append('\n');
+          lines.add(start);
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+
+    flush(text, lines, file, fragment);
+    including.pop();
+  }
+
+  /**
+   * Loads the collected lines and adds the properties to the fragment.
+   *
+   * @param text the collected logical lines
+   * @param lines the line number of each logical line
+   * @param file the file the lines are from
+   * @param fragment the fragment to add the properties to
+   * @throws IOException if the lines cannot be loaded
+   */
+  private void flush(StringBuilder text, final List<Integer> lines, File file,
+      final Fragment fragment) throws IOException {
+    if (lines.isEmpty()) {
+      return;
+    }
+
+    final String source = file.getPath();
+
+    // Each logical line is exactly one property so the properties are put in
+    // the order of the lines.
+    Properties properties = new Properties() {
+      private int index;
+
+      @Override
+      public synchronized Object put(Object key, Object value) {
+        fragment.entries.add(new Definition((String) key, (String) value,
+            source, lines.get(index++)));
+        return super.put(key, value);
+      }
+    };
+    properties.load(new StringReader(text.toString()));
+
+    text.setLength(0);
+    lines.clear();
+  }
+
+  /**
+   * Returns true if the line ends with an odd number of backslashes which
+   * continues it on the next line.
+   *
+   * @param line the line
+   * @return true if continued
+   */
+  private static boolean isContinued(String line) {
+    int count = 0;
+    for (int i = line.length() - 1; i >= 0 && line.charAt(i) == '\\'; i--) {
+      count++;
+    }
+    return count % 2 == 1;
+  }
+
+  /**
+   * Returns the modification time and size of the file which change when the
+   * file is modified.
+   *
+   * @param file the file
+   * @return the stamp of the file
+   */
+  private static String stamp(File file) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(file.toPath(),
+          BasicFileAttributes.class);
+      return attributes.lastModifiedTime() + ":" + attributes.size();
+    }
+    catch (IOException ex) {
+      return "missing";
+    }
+  }
+
+  /**
+   * Merges the fragments of a layer into the configuration. A property
+   * defined in more than one file of the layer is a conflict.
+   *
+   * @param config the configuration to merge into
+   * @param layer the fragments of the layer
+   */
+  private static void merge(Properties config, List<Fragment> layer) {
+    Map<String, Definition> defined = new HashMap<String, Definition>();
+    for (Fragment fragment : layer) {
+      for (Definition entry : fragment.entries) {
+        Definition previous = defined.put(entry.key, entry);
+        if (previous != null && !previous.file.equals(entry.file)) {
+          throw new RuntimeException(format("Property [%s] is defined in "
+              + "both [%s:%d] and [%s:%d].", entry.key, previous.file,
+              previous.line, entry.file, entry.line));
+        }
+        config.setProperty(entry.key, entry.value);
+      }
+    }
+  }
+
+  /**
+   * The properties parsed from a file and the files it includes.
+   */
+  private static class Fragment {
+
+    private final List<File> files = new ArrayList<File>();
+    private final List<String> stamps = new ArrayList<String>();
+    private final List<Definition> entries
+        = new ArrayList<Definition>();
+    private Exception failure;
+
+    /**
+     * Returns true if none of the files of the fragment changed since they
+     * were parsed.
+     *
+     * @return true if current
+     */
+    public boolean isCurrent() {
+      for (int i = 0; i < files.size(); i++) {
+        if (!stamps.get(i).equals(stamp(files.get(i)))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A single property and where it was defined.
+   */
+  private static class Definition {
+
+    private final String key;
+    private final String value;
+    private final String file;
+    private final int line;
+
+    /**
+     * Constructs the definition.
+     *
+     * @param key the property name
+     * @param value the property value
+     * @param file the file the property was defined in
+     * @param line the line the property was defined on
+     */
+    public Definition(String key, String value, String file, int line) {
+      this.key = key;
+      this.value = value;
+      this.file = file;
+      this.line = line;
+    }
+  }
+}
@@ -0,0 +1,268 @@
+package org.mpilone.helmsman;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A compiled snapshot of a parsed and validated configuration. The snapshot
+ * records a fingerprint of every configuration file it was built from, the
+ * machine it was built on, and any environment variables referenced by the
+ * configuration so it can be reused until one of them changes. The snapshot
+ * also caches the resolved host name of the machine which can be slow to look
+ * up. The snapshot records the format it was written in and is only used by
+ * the same format so a snapshot written by an older build is rebuilt rather
+ * than loaded with missing values.
+ *
+ * @author mpilone
+ */
+public class ConfigSnapshot implements Serializable {
+
+  private static final long serialVersionUID = 3L;
+
+  /**
+   * The format of snapshots written by this build. The format changes whenever
+   * a serialized field of the snapshot or a service changes (even if the
+   * serialVersionUID wasn't changed) or the build version changes.
+   */
+  private static final String FORMAT = format();
+
+  private final String format = FORMAT;
+  private final Map<String, ServiceConfig> services
+      = new HashMap<String, ServiceConfig>();
+  private final Map<String, String> inputs = new HashMap<String, String>();
+  private final Map<String, String> environment
+      = new HashMap<String, String>();
+  private final Map<String, String> settings = new HashMap<String, String>();
+  private String machine;
+  private String hostname;
+
+  public Map<String, ServiceConfig> getServices() {
+    return services;
+  }
+
+  /**
+   * Returns the global settings (e.g. global.daemon.refresh) to apply when the
+   * snapshot is loaded.
+   *
+   * @return the map of setting property name to value
+   */
+  public Map<String, String> getSettings() {
+    return settings;
+  }
+
+  /**
+   * Returns the fingerprints of the configuration files and directories by
+   * absolute path. A file that did not exist is recorded so creating it
+   * invalidates the snapshot.
+   *
+   * @return the map of path to fingerprint
+   */
+  public Map<String, String> getInputs() {
+    return inputs;
+  }
+
+  /**
+   * Returns the values of the environment variables referenced by the
+   * configuration. A variable that was not set has a null value.
+   *
+   * @return the map of variable name to value
+   */
+  public Map<String, String> getEnvironment() {
+    return environment;
+  }
+
+  public String getMachine() {
+    return machine;
+  }
+
+  public void setMachine(String machine) {
+    this.machine = machine;
+  }
+
+  public String getHostname() {
+    return hostname;
+  }
+
+  public void setHostname(String hostname) {
+    this.hostname = hostname;
+  }
+
+  /**
+   * Records the current fingerprint of the given configuration file.
+   *
+   * @param file the configuration file
+   * @throws IOException if the file cannot be read
+   */
+  public void addInput(File file) throws IOException {
+    inputs.put(file.getAbsolutePath(), fingerprint(file));
+  }
+
+  /**
+   * Returns true if the snapshot was built on this machine from the current
+   * configuration files and environment.
+   *
+   * @return true if the snapshot can be used
+   * @throws IOException if a configuration file cannot be read
+   */
+  public boolean isCurrent() throws IOException {
+    if (!FORMAT.equals(format)) {
+      return false;
+    }
+    else if (machine == null || !machine.equals(machineName())) {
+      return false;
+    }
+
+    for (Map.Entry<String, String> input : inputs.entrySet()) {
+      if (!input.getValue().equals(fingerprint(new File(input.getKey())))) {
+        return false;
+      }
+    }
+
+    for (Map.Entry<String, String> variable : environment.entrySet()) {
+      String value = System.getenv(variable.getKey());
+      if (value == null ? variable.getValue() != null : !value.equals(variable
+          .getValue())) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Reads a snapshot from the given file.
+   *
+   * @param file the snapshot file
+   * @return the snapshot or null if the file does not exist or cannot be read
+   */
+  public static ConfigSnapshot read(File file) {
+    if (!file.exists()) {
+      return null;
+    }
+
+    try {
+      ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+          new FileInputStream(file)));
+      try {
+        return (ConfigSnapshot) in.readObject();
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (Exception ex) {
+      // A corrupt or incompatible snapshot is simply rebuilt.
+      return null;
+    }
+  }
+
+  /**
+   * Writes the snapshot to the given file. The file is replaced atomically so
+   * a concurrent reader never sees a partial snapshot.
+   *
+   * @param file the snapshot file
+   * @throws IOException if the snapshot cannot be written
+   */
+  public void write(File file) throws IOException {
+    AtomicFile.write(file, new AtomicFile.Content() {
+      @Override
+      public void write(OutputStream out) throws IOException {
+        ObjectOutputStream objects = new ObjectOutputStream(out);
+        objects.writeObject(ConfigSnapshot.this);
+        objects.flush();
+      }
+    });
+  }
+
+  /**
+   * Returns the format of snapshots written by this build made of the build
+   * version and the serialized fields of the snapshot and services.
+   *
+   * @return the format
+   */
+  private static String format() {
+    StringBuilder format = new StringBuilder();
+    format.append(ConfigSnapshot.class.getPackage().getImplementationVersion());
+
+    for (Class<?> type : Arrays.<Class<?>>asList(ConfigSnapshot.class,
+        ServiceConfig.class)) {
+      List<String> fields = new ArrayList<String>();
+      for (Field field : type.getDeclaredFields()) {
+        if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(
+            field.getModifiers())) {
+          fields.add(field.getName() + ":" + field.getType().getName());
+        }
+      }
+      Collections.sort(fields);
+      format.append(';').append(type.getSimpleName()).append(fields);
+    }
+    return format.toString();
+  }
+
+  /**
+   * Returns the name of this machine as reported by the kernel. Unlike the
+   * resolved host name, this is read without any network lookups.
+   *
+   * @return the machine name or null if it is not available
+   */
+  public static String machineName() {
+    File file = new File("/proc/sys/kernel/hostname");
+    if (!file.exists()) {
+      return null;
+    }
+
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+        String line = reader.readLine();
+        return line == null ? null : line.trim();
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the fingerprint of a file made of the modification time, length,
+   * and a checksum of the contents. The checksum catches changes that don't
+   * change the modification time or length. The fingerprint of a directory
+   * is the sorted list of its file names so adding or removing a file is
+   * detected.
+   *
+   * @param file the file
+   * @return the fingerprint
+   * @throws IOException if the file cannot be read
+   */
+  private static String fingerprint(File file) throws IOException {
+    if (!file.exists()) {
+      return "missing";
+    }
+    else if (file.isDirectory()) {
+      String[] names = file.list();
+      Arrays.sort(names);
+      return "directory:" + Arrays.toString(names);
+    }
+
+    CRC32 crc = new CRC32();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buf = new byte[8192];
+      int read;
+      while ((read = in.read(buf)) != -1) {
+        crc.update(buf, 0, read);
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    return file.lastModified() + ":" + file.length() + ":" + crc.getValue();
+  }
+}
@@ -0,0 +1,214 @@
+package org.mpilone.helmsman;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.mpilone.helmsman.UserIo.Level;
+
+import static java.lang.String.format;
+
+/**
+ * Watches the configuration files of the daemon and reloads the configuration
+ * when they change. The directories containing the configuration files are
+ * watched so files that are replaced, created, or deleted are noticed as well
+ * as files that are modified in place. Any properties file in the
+ * configuration directory or the fragment directory may be a new fragment,
+ * while only the included files themselves are relevant in the other
+ * directories. Deploys tend to write many files at once so a reload waits
+ * until the files stop changing for a moment and then reloads once for all
+ * the changes.
+ *
+ * @author mpilone
+ */
+public class ConfigWatcher implements Runnable {
+
+  /**
+   * The number of milliseconds the files must stop changing before the
+   * configuration is reloaded.
+   */
+  private static final long SETTLE_TIME = 500;
+
+  /**
+   * The application holding the configuration.
+   */
+  private final Helmsman helmsman;
+
+  /**
+   * The User IO to write the result of reloads to.
+   */
+  private final UserIo userIo;
+
+  /**
+   * The configuration directory and the fragment directory in which any
+   * properties file is relevant.
+   */
+  private final Set<Path> fragmentDirs = new HashSet<Path>();
+
+  /**
+   * The watched directories by watch key.
+   */
+  private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+
+  /**
+   * The configuration files and directories as of the last reload.
+   */
+  private Set<Path> inputs = new HashSet<Path>();
+
+  /**
+   * Constructs the watcher.
+   *
+   * @param helmsman the application holding the configuration
+   * @param userIo the User IO to write the result of reloads to
+   */
+  public ConfigWatcher(Helmsman helmsman, UserIo userIo) {
+    this.helmsman = helmsman;
+    this.userIo = userIo;
+
+    Path configDir = helmsman.getConfigDir().getAbsoluteFile().toPath()
+        .normalize();
+    fragmentDirs.add(configDir);
+    fragmentDirs.add(configDir.resolve(ConfigLoader.FRAGMENT_DIR));
+  }
+
+  /**
+   * Starts watching the configuration on a background thread.
+   */
+  public void start() {
+    new ProcessEngine.DaemonThreadFactory("helmsman-config-watcher").newThread(
+        this).start();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.lang.Runnable#run()
+   */
+  @Override
+  public void run() {
+    try {
+      WatchService watcher = FileSystems.getDefault().newWatchService();
+      try {
+        // Watch before the first reload so no change is missed between the
+        // two. The first reload also catches anything that changed since the
+        // configuration was loaded at startup.
+        watch(watcher);
+        reload();
+        watch(watcher);
+
+        while (true) {
+          if (isRelevant(watcher.take())) {
+            // Wait for the files to settle.
+            WatchKey key;
+            while ((key = watcher.poll(SETTLE_TIME, TimeUnit.MILLISECONDS))
+                != null) {
+              isRelevant(key);
+            }
+
+            reload();
+            watch(watcher);
+          }
+        }
+      }
+      finally {
+        watcher.close();
+      }
+    }
+    catch (InterruptedException ex) {
+      // Exit
+    }
+    catch (Exception ex) {
+      userIo.println("Configuration watcher failed: " + ex.getMessage(),
+          Level.ERROR);
+      userIo.print(ex, Level.DEBUG);
+    }
+  }
+
+  /**
+   * Reloads the configuration. A configuration that fails to load is
+   * reported and the current configuration is kept.
+   */
+  private void reload() {
+    try {
+      helmsman.reloadConfig(userIo);
+    }
+    catch (Exception ex) {
+      userIo.println("Failed to reload configuration, keeping the current "
+          + "configuration: " + ex.getMessage(), Level.ERROR);
+      userIo.print(ex, Level.DEBUG);
+    }
+
+    inputs = new HashSet<Path>();
+    for (File input : helmsman.getConfigInputs()) {
+      inputs.add(input.getAbsoluteFile().toPath().normalize());
+    }
+  }
+
+  /**
+   * Watches the configuration directory, the fragment directory, and the
+   * directories of the other configuration files that aren't watched yet.
+   * Directories that don't exist are watched once they are created and the
+   * configuration is reloaded.
+   *
+   * @param watcher the watch service
+   * @throws IOException if a directory cannot be watched
+   */
+  private void watch(WatchService watcher) throws IOException {
+    Set<Path> watch = new HashSet<Path>();
+    for (Path directory : fragmentDirs) {
+      if (Files.isDirectory(directory)) {
+        watch.add(directory);
+      }
+    }
+    for (File input : helmsman.getConfigInputs()) {
+      File file = input.getAbsoluteFile();
+      if (!file.isDirectory() && file.getParentFile() != null && file
+          .getParentFile().isDirectory()) {
+        watch.add(file.getParentFile().toPath().normalize());
+      }
+    }
+    watch.removeAll(directories.values());
+
+    for (Path directory : watch) {
+      userIo.println(format("Watching configuration directory [%s].",
+          directory), Level.DEBUG);
+      directories.put(directory.register(watcher,
+          StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE,
+          StandardWatchEventKinds.ENTRY_MODIFY), directory);
+    }
+  }
+
+  /**
+   * Consumes the events of the key and returns true if any of them may
+   * change the configuration. A change is relevant if it is to one of the
+   * configuration inputs or to any properties file in the configuration or
+   * fragment directory, which may be a new fragment.
+   *
+   * @param key the signaled watch key
+   * @return true if the configuration may have changed
+   */
+  private boolean isRelevant(WatchKey key) {
+    Path directory = directories.get(key);
+    boolean relevant = false;
+
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW
+          || directory == null) {
+        relevant = true;
+      }
+      else {
+        Path path = directory.resolve((Path) event.context());
+        relevant |= inputs.contains(path) || (fragmentDirs.contains(directory)
+            && path.getFileName().toString().endsWith(".properties"));
+      }
+    }
+
+    if (!key.reset()) {
+      // The directory was deleted.
+      directories.remove(key);
+    }
+    return relevant;
+  }
+}
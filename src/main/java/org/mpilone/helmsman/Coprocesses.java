@@ -0,0 +1,457 @@
+package org.mpilone.helmsman;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.mpilone.helmsman.UserIo.Level;
+
+import static java.lang.String.format;
+
+/**
+ * Long lived worker processes for service scripts that use the coproc
+ * protocol. Rather than forking the script for every command, the script is
+ * executed once with the command "coproc" and then receives one request per
+ * line on its input:
+ * <pre>
+ * &lt;id&gt; TAB &lt;command&gt; TAB &lt;service name&gt; [TAB KEY=VALUE]...
+ * </pre>
+ * where the KEY=VALUE pairs are the service's environment variables. The
+ * worker replies with a line containing the request id and the exit value of
+ * the command separated by whitespace. Any number of requests may be in
+ * flight at once and the replies may be in any order. Lines starting with a
+ * request id followed by a colon are output of that request and any other
+ * lines are output of the worker. A request that is cancelled or times out
+ * is abandoned and the worker is sent a "cancel" request with the same id so
+ * it can stop the command.
+ * <p>
+ * A worker is started on the first request for its script and is shared by
+ * all services using the script. If the worker exits, its requests in flight
+ * fail and the next request starts a new worker. Workers must exit when their
+ * input is closed.
+ *
+ * @author mpilone
+ */
+public class Coprocesses {
+
+  /**
+   * The value of the protocol service option for scripts using workers.
+   */
+  public static final String PROTOCOL = "coproc";
+
+  /**
+   * The command argument passed to the script to start a worker.
+   */
+  public static final String COMMAND = "coproc";
+
+  /**
+   * The UTF-8 character set used for the requests and replies.
+   */
+  private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * The running workers by script.
+   */
+  private final Map<String, Worker> workers = new HashMap<String, Worker>();
+
+  /**
+   * The timer used to abandon requests that time out.
+   */
+  private final ScheduledExecutorService timer = Executors
+      .newSingleThreadScheduledExecutor(new ProcessEngine.DaemonThreadFactory(
+              "helmsman-coproc-timer"));
+
+  /**
+   * The User IO to write worker output to.
+   */
+  private final UserIo userIo;
+
+  /**
+   * The id of the last request.
+   */
+  private long lastId;
+
+  /**
+   * Constructs the workers.
+   *
+   * @param userIo the User IO to write worker output to
+   */
+  public Coprocesses(UserIo userIo) {
+    this.userIo = userIo;
+  }
+
+  /**
+   * Returns an engine that sends the commands of the given service to the
+   * worker for the script rather than executing the script. The command line
+   * given to the engine must be the script followed by the command.
+   *
+   * @param name the name of the service
+   * @return the engine
+   */
+  public ProcessEngine engine(final String name) {
+    return new ProcessEngine() {
+      @Override
+      public Execution execute(List<String> args,
+          Map<String, String> environment, byte[] input, long timeout,
+          OutputStream out, Handler handler) throws IOException {
+        return request(args.get(0), args.get(1), name, environment, timeout,
+            out, handler);
+      }
+    };
+  }
+
+  /**
+   * Sends a request to the worker for the script, starting the worker if
+   * needed.
+   *
+   * @param script the script of the service
+   * @param command the command to execute
+   * @param name the name of the service
+   * @param environment the environment variables of the service
+   * @param timeout the number of milliseconds to wait for the reply
+   * @param out the output stream to write the output of the request to
+   * @param handler the handler to notify when the reply is received
+   * @return the handle to cancel the request
+   * @throws IOException if the worker could not be started or written to
+   */
+  public Request request(String script, String command, String name,
+      Map<String, String> environment, long timeout, OutputStream out,
+      ProcessEngine.Handler handler) throws IOException {
+
+    StringBuilder line = new StringBuilder();
+    line.append('\t').append(command).append('\t').append(name);
+    for (Map.Entry<String, String> variable : environment.entrySet()) {
+      line.append('\t').append(variable.getKey()).append('=').append(
+          variable.getValue().replaceAll("[\t\r\n]", " "));
+    }
+
+    Worker worker;
+    Request request;
+    synchronized (this) {
+      worker = workers.get(script);
+      if (worker == null || !worker.isAlive()) {
+        worker = new Worker(script);
+        workers.put(script, worker);
+      }
+      request = new Request(worker, ++lastId, out, handler);
+    }
+
+    worker.send(request, line.toString(), timeout);
+    return request;
+  }
+
+  /**
+   * Closes the input of all the workers so they exit.
+   */
+  public synchronized void close() {
+    for (Worker worker : workers.values()) {
+      worker.close();
+    }
+    workers.clear();
+  }
+
+  /**
+   * A worker process and the requests in flight to it.
+   */
+  private class Worker implements Runnable {
+
+    private final String script;
+    private final Process process;
+    private final Writer in;
+
+    /**
+     * The requests waiting for a reply by id.
+     */
+    private final Map<Long, Request> pending = new HashMap<Long, Request>();
+
+    /**
+     * True once the output of the worker ended.
+     */
+    private volatile boolean exited;
+
+    /**
+     * Starts the worker and the thread reading its output.
+     *
+     * @param script the script to execute
+     * @throws IOException if the script could not be started
+     */
+    public Worker(String script) throws IOException {
+      this.script = script;
+
+      userIo.println(format("Starting worker for script [%s].", script),
+          Level.DEBUG);
+
+      ProcessBuilder builder = new ProcessBuilder(script, COMMAND);
+      builder.redirectErrorStream(true);
+      builder.environment().remove("NLSPATH");
+      builder.environment().remove("XFILESEARCHPATH");
+
+      process = builder.start();
+      in = new BufferedWriter(new OutputStreamWriter(process
+          .getOutputStream(), UTF_8));
+
+      new ProcessEngine.DaemonThreadFactory("helmsman-coproc").newThread(this)
+          .start();
+    }
+
+    /**
+     * Returns true if the worker can accept requests.
+     *
+     * @return true if alive
+     */
+    public boolean isAlive() {
+      return !exited;
+    }
+
+    /**
+     * Sends a request to the worker.
+     *
+     * @param request the request
+     * @param line the request line without the id
+     * @param timeout the number of milliseconds to wait for the reply
+     * @throws IOException if the worker could not be written to
+     */
+    public void send(final Request request, String line, long timeout) throws
+        IOException {
+      synchronized (pending) {
+        pending.put(request.id, request);
+      }
+
+      request.timeoutFuture = timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (remove(request.id) != null) {
+            request.abandon();
+            request.handler.processComplete(-1, true);
+          }
+        }
+      }, timeout, TimeUnit.MILLISECONDS);
+
+      try {
+        write(request.id + line);
+      }
+      catch (IOException ex) {
+        remove(request.id);
+        request.cancelTimeout();
+        throw ex;
+      }
+    }
+
+    /**
+     * Removes a request waiting for a reply.
+     *
+     * @param id the id of the request
+     * @return the request or null if it is no longer waiting
+     */
+    public Request remove(long id) {
+      synchronized (pending) {
+        return pending.remove(id);
+      }
+    }
+
+    /**
+     * Writes a line to the input of the worker.
+     *
+     * @param line the line to write
+     * @throws IOException if the worker could not be written to
+     */
+    public void write(String line) throws IOException {
+      synchronized (in) {
+        in.write(line);
+        in.write('\n');
+        in.flush();
+      }
+    }
+
+    /**
+     * Closes the input of the worker so it exits.
+     */
+    public void close() {
+      synchronized (in) {
+        try {
+          in.close();
+        }
+        catch (IOException ex) {
+          // Ignore
+        }
+      }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+      try {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+            process.getInputStream(), UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+          handle(line);
+        }
+      }
+      catch (IOException ex) {
+        // The worker exited.
+      }
+
+      exited = true;
+      close();
+
+      List<Request> failed;
+      synchronized (pending) {
+        failed = new ArrayList<Request>(pending.values());
+        pending.clear();
+      }
+
+      userIo.println(format("Worker for script [%s] exited with %d requests "
+          + "in flight.", script, failed.size()), Level.DEBUG);
+      for (Request request : failed) {
+        request.cancelTimeout();
+        request.handler.processFailed(new IOException(format("Worker for "
+            + "script [%s] exited.", script)));
+      }
+    }
+
+    /**
+     * Handles a line of output from the worker.
+     *
+     * @param line the line
+     */
+    private void handle(String line) {
+      int index = 0;
+      while (index < line.length() && Character.isDigit(line.charAt(index))) {
+        index++;
+      }
+
+      if (index > 0 && index < line.length() && index < 19) {
+        long id = Long.parseLong(line.substring(0, index));
+        String rest = line.substring(index);
+
+        if (rest.startsWith(":")) {
+          Request request;
+          synchronized (pending) {
+            request = pending.get(id);
+          }
+          if (request != null) {
+            request.output(rest.substring(1).trim());
+            return;
+          }
+        }
+        else if (rest.trim().matches("-?\\d+")
+            && Character.isWhitespace(rest.charAt(0))) {
+          Request request = remove(id);
+          if (request != null) {
+            request.cancelTimeout();
+            request.flush();
+            request.handler.processComplete(Integer.parseInt(rest.trim()),
+                false);
+          }
+          return;
+        }
+      }
+
+      userIo.println(format("[%s] %s", new File(script).getName(), line),
+          Level.DEBUG);
+    }
+  }
+
+  /**
+   * A request in flight to a worker.
+   *
+   * @author mpilone
+   */
+  public static class Request implements ProcessEngine.Execution {
+
+    private final Worker worker;
+    private final long id;
+    private final OutputStream out;
+    private final ProcessEngine.Handler handler;
+    private volatile Future<?> timeoutFuture;
+
+    /**
+     * Constructs the request.
+     *
+     * @param worker the worker the request is sent to
+     * @param id the id of the request
+     * @param out the output stream to write the output of the request to
+     * @param handler the handler to notify when the reply is received
+     */
+    private Request(Worker worker, long id, OutputStream out,
+        ProcessEngine.Handler handler) {
+      this.worker = worker;
+      this.id = id;
+      this.out = out;
+      this.handler = handler;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helmsman.ProcessEngine.Execution#cancel()
+     */
+    @Override
+    public void cancel() {
+      if (worker.remove(id) != null) {
+        cancelTimeout();
+        abandon();
+        handler.processComplete(-1, false);
+      }
+    }
+
+    /**
+     * Cancels the timeout of the request. A reply may arrive before the
+     * timeout is scheduled in which case the timeout finds the request
+     * complete and does nothing.
+     */
+    private void cancelTimeout() {
+      Future<?> future = timeoutFuture;
+      if (future != null) {
+        future.cancel(false);
+      }
+    }
+
+    /**
+     * Tells the worker to stop the command of the request because the reply
+     * is no longer wanted.
+     */
+    private void abandon() {
+      try {
+        worker.write(id + "\tcancel");
+      }
+      catch (IOException ex) {
+        // The worker exited.
+      }
+    }
+
+    /**
+     * Writes a line of output of the request.
+     *
+     * @param line the line
+     */
+    private void output(String line) {
+      try {
+        out.write((line + "\n").getBytes(UTF_8));
+      }
+      catch (IOException ex) {
+        // Ignore
+      }
+    }
+
+    /**
+     * Flushes the output of the request.
+     */
+    private void flush() {
+      try {
+        out.flush();
+      }
+      catch (IOException ex) {
+        // Ignore
+      }
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package org.mpilone.helmsman;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import static java.lang.String.format;
+
+/**
+ * A small on-disk history of how long each successful script command (e.g.
+ * start) took for each service. Each duration is an exponentially weighted
+ * moving average so the history adapts as services change but isn't thrown
+ * off by a single slow run. The history is used to launch the longest tasks
+ * first and to estimate how long a command will take. The history is thread
+ * safe.
+ *
+ * @author mpilone
+ */
+public class DurationHistory {
+
+  /**
+   * The weight of the newest duration in the moving average.
+   */
+  private static final double ALPHA = 0.3;
+
+  /**
+   * The file the history is stored in.
+   */
+  private final File file;
+
+  /**
+   * The average durations in seconds by "service.command".
+   */
+  private final Map<String, Double> durations = new HashMap<String, Double>();
+
+  /**
+   * True if the history changed since it was loaded or saved.
+   */
+  private boolean modified;
+
+  /**
+   * Constructs the history and loads it from the given file if it exists. A
+   * history that can't be read is ignored and rebuilt.
+   *
+   * @param file the file the history is stored in
+   */
+  public DurationHistory(File file) {
+    this.file = file;
+
+    if (file.exists()) {
+      Properties props = new Properties();
+      try {
+        Reader reader = new FileReader(file);
+        try {
+          props.load(reader);
+        }
+        finally {
+          reader.close();
+        }
+
+        for (String key : props.stringPropertyNames()) {
+          durations.put(key, Double.parseDouble(props.getProperty(key)));
+        }
+      }
+      catch (Exception ex) {
+        durations.clear();
+      }
+    }
+  }
+
+  /**
+   * Returns the average duration of the command of the service.
+   *
+   * @param service the name of the service
+   * @param command the command (e.g. start)
+   * @return the duration in seconds or null if there is no history
+   */
+  public synchronized Double get(String service, String command) {
+    return durations.get(service + "." + command);
+  }
+
+  /**
+   * Records a duration of the command of the service.
+   *
+   * @param service the name of the service
+   * @param command the command (e.g. start)
+   * @param nanos the duration in nanoseconds
+   */
+  public synchronized void record(String service, String command, long nanos) {
+    String key = service + "." + command;
+    double seconds = nanos / 1e9;
+
+    Double average = durations.get(key);
+    durations.put(key, average == null ? seconds : ALPHA * seconds + (1
+        - ALPHA) * average);
+    modified = true;
+  }
+
+  /**
+   * Saves the history if it changed. The file is replaced atomically so a
+   * concurrent run never reads a partial history.
+   *
+   * @throws IOException if the history cannot be written
+   */
+  public synchronized void save() throws IOException {
+    if (!modified) {
+      return;
+    }
+
+    final Map<String, Double> sorted = new TreeMap<String, Double>(durations);
+    AtomicFile.writeText(file, Charset.defaultCharset(),
+        new AtomicFile.TextContent() {
+          @Override
+          public void write(PrintWriter out) {
+            out.println("# Average durations in seconds by service and "
+                + "command.");
+            for (Map.Entry<String, Double> entry : sorted.entrySet()) {
+              out.println(format(Locale.ROOT, "%s=%.3f", entry.getKey(),
+                  entry.getValue()));
+            }
+          }
+        });
+    modified = false;
+  }
+}
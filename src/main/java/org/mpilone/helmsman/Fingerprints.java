@@ -0,0 +1,189 @@
+package org.mpilone.helmsman;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.*;
+
+import static java.lang.String.format;
+
+/**
+ * The fingerprints of the effective configuration each service was last
+ * started with on this host. A fingerprint covers everything that affects the
+ * running service: the resolved script path and probe, the environment, the
+ * timeout, and the contents of the script file. Comparing the stored
+ * fingerprint to the current configuration tells which services need a
+ * restart after a deploy. The fingerprints are thread safe.
+ *
+ * @author mpilone
+ */
+public class Fingerprints {
+
+  /**
+   * The file the fingerprints are stored in.
+   */
+  private final File file;
+
+  /**
+   * The fingerprints by service name.
+   */
+  private final Map<String, String> fingerprints
+      = new HashMap<String, String>();
+
+  /**
+   * True if the fingerprints changed since they were loaded or saved.
+   */
+  private boolean modified;
+
+  /**
+   * Constructs the fingerprints and loads them from the given file if it
+   * exists. Fingerprints that can't be read are ignored which makes every
+   * service look changed.
+   *
+   * @param file the file the fingerprints are stored in
+   */
+  public Fingerprints(File file) {
+    this.file = file;
+
+    if (file.exists()) {
+      Properties props = new Properties();
+      try {
+        Reader reader = new FileReader(file);
+        try {
+          props.load(reader);
+        }
+        finally {
+          reader.close();
+        }
+
+        for (String key : props.stringPropertyNames()) {
+          fingerprints.put(key, props.getProperty(key));
+        }
+      }
+      catch (IOException ex) {
+        fingerprints.clear();
+      }
+    }
+  }
+
+  /**
+   * Returns true if the effective configuration of the service differs from
+   * the configuration it was last started with or it was never started with
+   * a recorded configuration.
+   *
+   * @param service the service
+   * @return true if changed
+   */
+  public synchronized boolean isChanged(ServiceConfig service) {
+    return !fingerprint(service).equals(fingerprints.get(service.getName()));
+  }
+
+  /**
+   * Records that the service was started with its current configuration.
+   *
+   * @param service the service
+   */
+  public synchronized void started(ServiceConfig service) {
+    fingerprints.put(service.getName(), fingerprint(service));
+    modified = true;
+  }
+
+  /**
+   * Records that the service was stopped so it is no longer running any
+   * configuration.
+   *
+   * @param service the service
+   */
+  public synchronized void stopped(ServiceConfig service) {
+    modified |= fingerprints.remove(service.getName()) != null;
+  }
+
+  /**
+   * Saves the fingerprints if they changed. The file is replaced atomically
+   * so a concurrent run never reads partial fingerprints.
+   *
+   * @throws IOException if the fingerprints cannot be written
+   */
+  public synchronized void save() throws IOException {
+    if (!modified) {
+      return;
+    }
+
+    final Map<String, String> sorted = new TreeMap<String, String>(
+        fingerprints);
+    AtomicFile.writeText(file, Charset.defaultCharset(),
+        new AtomicFile.TextContent() {
+          @Override
+          public void write(PrintWriter out) {
+            out.println("# Fingerprints of the configuration services were "
+                + "started with.");
+            for (Map.Entry<String, String> entry : sorted.entrySet()) {
+              out.println(entry.getKey() + "=" + entry.getValue());
+            }
+          }
+        });
+    modified = false;
+  }
+
+  /**
+   * Returns the fingerprint of the effective configuration of the service. A
+   * script file that can't be read is fingerprinted as missing so it is
+   * fingerprinted again once it exists.
+   *
+   * @param service the service
+   * @return the hex encoded fingerprint
+   */
+  public static String fingerprint(ServiceConfig service) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      update(digest, "script=" + service.getScript());
+      update(digest, "probe=" + service.getProbe());
+      update(digest, "timeout=" + service.getTimeout());
+      for (Map.Entry<String, String> variable : new TreeMap<String, String>(
+          service.getEnvironment()).entrySet()) {
+        update(digest, "environment." + variable.getKey() + "=" + variable
+            .getValue());
+      }
+
+      File script = new File(service.getScript());
+      if (script.isFile()) {
+        InputStream in = new FileInputStream(script);
+        try {
+          byte[] buf = new byte[8192];
+          int read;
+          while ((read = in.read(buf)) != -1) {
+            digest.update(buf, 0, read);
+          }
+        }
+        finally {
+          in.close();
+        }
+      }
+      else {
+        update(digest, "missing");
+      }
+
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hex.append(format("%02x", b));
+      }
+      return hex.toString();
+    }
+    catch (Exception ex) {
+      throw new RuntimeException(format("Unable to fingerprint service [%s].",
+          service.getName()), ex);
+    }
+  }
+
+  /**
+   * Adds a line of text to the digest.
+   *
+   * @param digest the digest
+   * @param value the text
+   * @throws UnsupportedEncodingException if UTF-8 isn't supported
+   */
+  private static void update(MessageDigest digest, String value) throws
+      UnsupportedEncodingException {
+    digest.update((value + "\n").getBytes("UTF-8"));
+  }
+}
@@ -1,10 +1,15 @@
 package org.mpilone.helmsman;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.Reader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.cli.*;
 import org.mpilone.helmsman.UserIo.Level;
 
@@ -25,11 +30,76 @@ public class Helmsman {
   private static final int PADDING_WIDTH = 50;
 
   /**
-   * The map of service names to service configurations.
+   * The minimum estimated number of seconds for a command to print the
+   * estimate.
+   */
+  private static final int MIN_ESTIMATE = 5;
+
+  /**
+   * The number of milliseconds between status checks while waiting for a
+   * wave of a rolling restart to be up.
+   */
+  private static final long HEALTH_INTERVAL = 1000;
+
+  /**
+   * The name of the compiled configuration snapshot in the configuration
+   * directory.
+   */
+  private static final String SNAPSHOT_FILENAME = ".helmsman.snapshot";
+
+  /**
+   * The default name of the duration history in the configuration directory.
+   */
+  private static final String HISTORY_FILENAME = ".helmsman.history";
+
+  /**
+   * The default name of the service fingerprints in the configuration
+   * directory. The machine name is appended so hosts sharing a configuration
+   * directory keep their own fingerprints.
+   */
+  private static final String FINGERPRINTS_FILENAME = ".helmsman.fingerprints";
+
+  /**
+   * The default name of the file holding the secret daemon clients must send
+   * in the configuration directory.
+   */
+  private static final String TOKEN_FILENAME = ".helmsman.token";
+
+  /**
+   * The map of service names to service configurations. The map is never
+   * modified once built; a reload replaces it (and the selector) while
+   * holding the instance lock.
    */
   private Map<String, ServiceConfig> serviceMap
       = new HashMap<String, ServiceConfig>();
 
+  /**
+   * The index of the services used to select services by group and name.
+   */
+  private ServiceSelector selector;
+
+  /**
+   * The configuration directory.
+   */
+  private String configDir;
+
+  /**
+   * The host name the machine specific configuration is loaded for.
+   */
+  private String hostname;
+
+  /**
+   * The loader that reparses changed configuration files on reload or null
+   * until the configuration is parsed rather than loaded from the snapshot.
+   */
+  private ConfigLoader configLoader;
+
+  /**
+   * The global settings the configuration was loaded with. Settings loaded
+   * from the snapshot don't include unrecognized settings.
+   */
+  private Map<String, String> settings = new HashMap<String, String>();
+
   /**
    * The number of threads to use when executing in parallel. Anything less than
    * 2 indicates no parallelization.
@@ -37,14 +107,174 @@ public class Helmsman {
   private int threadCount = 1;
 
   /**
-   * The global variables configured for replacement in service properties.
+   * True to adjust the number of threads to the load on the host while
+   * executing.
+   */
+  private boolean adaptiveParallelism;
+
+  /**
+   * The minimum number of threads when adjusting to the load.
+   */
+  private int parallelMin = 1;
+
+  /**
+   * The maximum number of threads when adjusting to the load or 0 for four
+   * times the available CPUs.
+   */
+  private int parallelMax;
+
+  /**
+   * The engine used to execute service scripts.
+   */
+  private ProcessEngine processEngine = new ProcessEngine.Native();
+
+  /**
+   * The prober used to execute in-JVM status probes.
+   */
+  private Prober prober = new Prober();
+
+  /**
+   * The workers used to execute the commands of services using the coproc
+   * protocol.
+   */
+  private Coprocesses coprocesses;
+
+  /**
+   * The cache of known service status or null if status is not cached.
+   */
+  private StatusCache statusCache;
+
+  /**
+   * The status of the services started or stopped earlier in the command of
+   * this instance (or session) by name. Unlike the status cache, this status
+   * is known to be current enough to skip checking the status before a start
+   * or stop.
+   */
+  private final Map<String, Boolean> commandStatus
+      = new HashMap<String, Boolean>();
+
+  /**
+   * The number of seconds a known service status remains valid in the daemon's
+   * status cache.
+   */
+  private int statusCacheTtl = 30;
+
+  /**
+   * The number of seconds between status refreshes in daemon mode.
+   */
+  private int daemonRefresh = 10;
+
+  /**
+   * True to watch the configuration directory and reload the configuration
+   * when it changes in daemon mode.
+   */
+  private boolean daemonWatch = true;
+
+  /**
+   * The file holding the secret daemon clients must send or null to use the
+   * default in the configuration directory.
+   */
+  private File daemonTokenFile;
+
+  /**
+   * The exit status of the command: 0 if it succeeded or 1 if it failed.
    */
-  private Map<String, String> variables = new HashMap<String, String>();
+  private int exitStatus;
+
+  /**
+   * The maximum number of services in each group that may start or stop at
+   * once by group name.
+   */
+  private Map<String, Integer> groupLimits = new HashMap<String, Integer>();
+
+  /**
+   * The number of services restarted at once in a rolling restart.
+   */
+  private int rollingBatchSize = 1;
+
+  /**
+   * The number of seconds to wait for a wave of a rolling restart to be up
+   * before aborting or 0 to not check.
+   */
+  private int rollingHealthTimeout = 60;
+
+  /**
+   * The policy used when supervising services.
+   */
+  private Supervisor.Policy supervisePolicy = new Supervisor.Policy();
+
+  /**
+   * The metrics of all commands executed by this instance and its sessions.
+   */
+  private Metrics metrics = new Metrics();
+
+  /**
+   * The file to write metrics to in the Prometheus text format after each
+   * command or null.
+   */
+  private File metricsTextfile;
+
+  /**
+   * The file to write a JSON summary of the metrics to after each command or
+   * null.
+   */
+  private File metricsJson;
+
+  /**
+   * The file to store the duration history in or null to use the default in
+   * the configuration directory.
+   */
+  private File historyFile;
+
+  /**
+   * The history of command durations used to order tasks and estimate how
+   * long commands take.
+   */
+  private DurationHistory history;
+
+  /**
+   * The file to store the service fingerprints in or null to use the default
+   * in the configuration directory.
+   */
+  private File fingerprintsFile;
+
+  /**
+   * The fingerprints of the configuration each service was last started with
+   * on this host.
+   */
+  private Fingerprints fingerprints;
+
+  /**
+   * The trace to record the command in or null if not tracing.
+   */
+  private Trace trace;
+
+  /**
+   * The file to write the trace to or null if not tracing.
+   */
+  private File traceFile;
+
+  /**
+   * True to print results as newline delimited JSON rather than text.
+   */
+  private boolean outputJson;
+
+  /**
+   * True to abort a start or stop as soon as any service fails rather than
+   * only when a critical service fails.
+   */
+  private boolean failFast;
+
+  /**
+   * The lock held while starting or stopping services so concurrent daemon
+   * requests never control services at the same time.
+   */
+  private final Object commandLock;
 
   /**
    * The User IO to write all user output.
    */
-  private final UserIo userIo = new UserIo();
+  private final UserIo userIo;
 
   /**
    * The definition of supported command line options.
@@ -60,7 +290,7 @@ public class Helmsman {
 
     String baseDir = System.getProperty("basedir", ".");
 
-    new Helmsman(baseDir, args);
+    System.exit(new Helmsman(baseDir, args).exitStatus);
   }
 
   /**
@@ -72,137 +302,524 @@ public class Helmsman {
    */
   public Helmsman(String baseDir, String[] args) {
 
+    userIo = new UserIo();
+    commandLock = new Object();
+    coprocesses = new Coprocesses(userIo);
+
     // Parse the command line.
-    org.apache.commons.cli.CommandLine cmd = null;
+    org.apache.commons.cli.CommandLine cmd = parseCommandLine(args);
+    if (cmd == null || !processGeneralOptions(cmd)) {
+      return;
+    }
+
+    if (cmd.hasOption(OPT_ENGINE)) {
+      String value = cmd.getOptionValue(OPT_ENGINE);
+      if ("commons-exec".equals(value)) {
+        processEngine = new ProcessEngine.CommonsExec();
+      }
+      else if (!"native".equals(value)) {
+        userIo.println(format("Unknown engine [%s].\n", value));
+        printHelp();
+        exitStatus = 1;
+        return;
+      }
+    }
+
+    // Parse the configuration.
+    try {
+      String configDir = baseDir + "/../config/";
+      if (cmd.hasOption(OPT_CONFIG_DIR)) {
+        configDir = cmd.getOptionValue(OPT_CONFIG_DIR);
+      }
+      parseConfig(configDir);
+      selector = new ServiceSelector(serviceMap.values());
+
+      history = new DurationHistory(historyFile != null ? historyFile
+          : new File(configDir, HISTORY_FILENAME));
+      metrics.setHistory(history);
+
+      String machine = ConfigSnapshot.machineName();
+      fingerprints = new Fingerprints(fingerprintsFile != null
+          ? fingerprintsFile : new File(configDir, FINGERPRINTS_FILENAME
+              + (machine != null ? "." + machine : "")));
+    }
+    catch (Exception ex) {
+      userIo.println("Failed to parse configuration file: " + ex.getMessage(),
+          UserIo.Level.ERROR);
+      userIo.print(ex, UserIo.Level.DEBUG);
+      exitStatus = 1;
+      return;
+    }
+
+    if (cmd.hasOption(OPT_DAEMON)) {
+      try {
+        // The cache must outlive the refresh interval or status requests
+        // would fall through to the services between refreshes.
+        int port = Integer.parseInt(cmd.getOptionValue(OPT_DAEMON));
+        statusCache = new StatusCache(Math.max(statusCacheTtl,
+            daemonRefresh * 3) * 1000L);
+        File tokenFile = daemonTokenFile != null ? daemonTokenFile : new File(
+            configDir, TOKEN_FILENAME);
+        HelmsmanDaemon daemon = new HelmsmanDaemon(this, port, tokenFile,
+            daemonRefresh, userIo);
+        if (daemonWatch) {
+          new ConfigWatcher(this, userIo).start();
+        }
+        daemon.run();
+      }
+      catch (Exception ex) {
+        userIo.println("Daemon failed: " + ex.getMessage(), Level.ERROR);
+        userIo.print(ex, Level.DEBUG);
+        exitStatus = 1;
+      }
+      return;
+    }
+
+    executeCommand(cmd);
+
+    // Workers exit when their input is closed.
+    coprocesses.close();
+  }
+
+  /**
+   * Constructs a session that shares the configuration and state of the given
+   * instance but writes all output to the given user IO. Sessions are used by
+   * the daemon to handle client requests.
+   *
+   * @param parent the instance holding the configuration and state
+   * @param userIo the User IO to write all output of the session to
+   */
+  private Helmsman(Helmsman parent, UserIo userIo) {
+    this.userIo = userIo;
+    this.commandLock = parent.commandLock;
+    synchronized (parent) {
+      this.serviceMap = parent.serviceMap;
+      this.selector = parent.selector;
+    }
+    this.processEngine = parent.processEngine;
+    this.prober = parent.prober;
+    this.coprocesses = parent.coprocesses;
+    this.supervisePolicy = parent.supervisePolicy;
+    this.groupLimits = parent.groupLimits;
+    this.rollingBatchSize = parent.rollingBatchSize;
+    this.rollingHealthTimeout = parent.rollingHealthTimeout;
+    this.metrics = parent.metrics;
+    this.metricsTextfile = parent.metricsTextfile;
+    this.metricsJson = parent.metricsJson;
+    this.history = parent.history;
+    this.fingerprints = parent.fingerprints;
+    this.statusCache = parent.statusCache;
+    this.threadCount = parent.threadCount;
+    this.adaptiveParallelism = parent.adaptiveParallelism;
+    this.parallelMin = parent.parallelMin;
+    this.parallelMax = parent.parallelMax;
+  }
+
+  /**
+   * Handles a single client request in the daemon. The arguments are
+   * processed like a normal command line except that the configuration and
+   * engine are already established.
+   *
+   * @param args the command line arguments of the request
+   * @param userIo the User IO to write all output of the request to
+   * @return the exit status of the request: 0 if it succeeded or 1 if it
+   * failed
+   */
+  int handleRequest(String[] args, UserIo userIo) {
+    Helmsman session = new Helmsman(this, userIo);
+
+    org.apache.commons.cli.CommandLine cmd = session.parseCommandLine(args);
+    if (cmd == null || !session.processGeneralOptions(cmd)) {
+      return session.exitStatus;
+    }
+
+    // Supervising never returns a response and a trace file would be
+    // written relative to the daemon rather than the client.
+    for (String opt : asList(OPT_DAEMON, OPT_CONFIG_DIR, OPT_ENGINE,
+        OPT_SUPERVISE, OPT_TRACE)) {
+      if (cmd.hasOption(opt)) {
+        userIo.println(format("Option [%s] is not supported by the daemon.",
+            opt), Level.ERROR);
+        return 1;
+      }
+    }
+
+    session.executeCommand(cmd);
+    return session.exitStatus;
+  }
+
+  /**
+   * Checks the status of all the services, bypassing the status cache, to
+   * refresh the cache. The results are not printed. The refresh holds the
+   * command lock so a status checked before a concurrent start or stop
+   * finishes never overwrites the status the start or stop established.
+   *
+   * @param userIo the User IO to write any debug output to
+   */
+  void refreshStatus(UserIo userIo) {
+    Helmsman session = new Helmsman(this, userIo);
+    synchronized (commandLock) {
+      session.checkStatus(new ArrayList<ServiceConfig>(session.serviceMap
+          .values()), false);
+    }
+    session.writeMetrics();
+  }
+
+  /**
+   * Reloads the configuration in the daemon, reparsing only the files that
+   * changed since the last load. The services that were added, removed, or
+   * changed replace the service map and index in a single swap so a request
+   * always sees one consistent configuration, and unchanged services keep
+   * their existing configuration. Global settings only apply at startup. If
+   * the configuration is invalid, the current configuration is kept. Reloads
+   * must not be called concurrently.
+   *
+   * @param userIo the User IO to write the result of the reload to
+   * @throws Exception if parsing the configuration fails or it is invalid
+   */
+  void reloadConfig(UserIo userIo) throws Exception {
+    // The settings from the snapshot can only be compared to settings loaded
+    // from the same files.
+    boolean compareSettings = configLoader != null;
+    if (configLoader == null) {
+      configLoader = new ConfigLoader(new File(configDir), hostname,
+          this.userIo);
+    }
+
+    Properties config = configLoader.load();
+    Map<String, String> parsedSettings = new HashMap<String, String>();
+    Map<String, ServiceConfig> parsed = parseServices(config, parsedSettings,
+        new HashMap<String, String>(), new HashMap<String, String>());
+
+    if (compareSettings) {
+      Set<String> names = new TreeSet<String>(parsedSettings.keySet());
+      names.addAll(settings.keySet());
+      for (String name : names) {
+        if (!Objects.equals(parsedSettings.get(name), settings.get(name))) {
+          userIo.println(format("Setting [%s] changed and will apply when the "
+              + "daemon is restarted.", name));
+        }
+      }
+    }
+    settings = parsedSettings;
+
+    // Copy the current services and apply the differences.
+    Map<String, ServiceConfig> current;
+    synchronized (this) {
+      current = serviceMap;
+    }
+    Map<String, ServiceConfig> services = new HashMap<String, ServiceConfig>(
+        current);
+    List<String> added = new ArrayList<String>();
+    List<String> removed = new ArrayList<String>();
+    List<String> changed = new ArrayList<String>();
+    for (ServiceConfig service : parsed.values()) {
+      ServiceConfig existing = current.get(service.getName());
+      if (existing == null) {
+        added.add(service.getName());
+        services.put(service.getName(), service);
+      }
+      else if (!existing.isSameConfig(service)) {
+        changed.add(service.getName());
+        services.put(service.getName(), service);
+      }
+    }
+    for (String name : current.keySet()) {
+      if (!parsed.containsKey(name)) {
+        removed.add(name);
+        services.remove(name);
+      }
+    }
+
+    if (added.isEmpty() && removed.isEmpty() && changed.isEmpty()) {
+      userIo.println("Reloaded configuration without service changes.",
+          Level.DEBUG);
+      return;
+    }
+
+    ServiceSelector parsedSelector = new ServiceSelector(services.values());
+    synchronized (this) {
+      serviceMap = services;
+      selector = parsedSelector;
+    }
+
+    // The known status of a changed service may not hold for its new
+    // configuration.
+    if (statusCache != null) {
+      for (String name : removed) {
+        statusCache.remove(name);
+      }
+      for (String name : changed) {
+        statusCache.remove(name);
+      }
+    }
+
+    Collections.sort(added);
+    Collections.sort(removed);
+    Collections.sort(changed);
+    userIo.println(format("Reloaded configuration with %d added, %d removed, "
+        + "and %d changed services.", added.size(), removed.size(), changed
+        .size()));
+    if (!added.isEmpty()) {
+      userIo.println("Added services: " + join(added), Level.DEBUG);
+    }
+    if (!removed.isEmpty()) {
+      userIo.println("Removed services: " + join(removed), Level.DEBUG);
+    }
+    if (!changed.isEmpty()) {
+      userIo.println("Changed services: " + join(changed), Level.DEBUG);
+    }
+  }
+
+  /**
+   * Returns the configuration directory.
+   *
+   * @return the configuration directory
+   */
+  File getConfigDir() {
+    return new File(configDir);
+  }
+
+  /**
+   * Returns the files and directories the configuration was last loaded
+   * from. If the configuration hasn't been loaded from the files, only the
+   * configuration directory and fragment directory are returned.
+   *
+   * @return the input files
+   */
+  List<File> getConfigInputs() {
+    if (configLoader == null) {
+      return asList(new File(configDir), new File(configDir,
+          ConfigLoader.FRAGMENT_DIR));
+    }
+    return new ArrayList<File>(configLoader.getInputs());
+  }
+
+  /**
+   * Parses the command line arguments. If the arguments are invalid, the help
+   * is printed and null is returned.
+   *
+   * @param args the command line arguments
+   * @return the parsed command line or null
+   */
+  private org.apache.commons.cli.CommandLine parseCommandLine(String[] args) {
     try {
+      // Option groups remember the selected option so a new set of options is
+      // needed for each parse.
       CommandLineParser parser = new GnuParser();
-      cmd = parser.parse(OPTIONS, args);
+      org.apache.commons.cli.CommandLine cmd = parser.parse(buildOptions(),
+          args);
 
       // We shouldn't have any trailing arguments. If we do, the user did
       // something wrong.
       if (!cmd.getArgList().isEmpty()) {
         throw new RuntimeException("Unrecognized options: " + cmd.getArgList());
       }
+
+      return cmd;
     }
     catch (Exception ex) {
       userIo.println(ex.getMessage() + "\n");
       userIo.print(ex, Level.DEBUG);
 
       printHelp();
-      return;
+      exitStatus = 1;
+      return null;
     }
+  }
 
-    // Process the general OPTIONS.
+  /**
+   * Processes the general options that apply to every command.
+   *
+   * @param cmd the command line
+   * @return true if processing should continue, false otherwise
+   */
+  private boolean processGeneralOptions(org.apache.commons.cli.CommandLine cmd) {
     if (cmd.hasOption(OPT_VERBOSE)) {
       userIo.setLevel(Level.DEBUG);
     }
     if (cmd.hasOption(OPT_HELP)) {
       printHelp();
-      return;
+      return false;
     }
     if (cmd.hasOption(OPT_PARALLEL)) {
 
       String value = cmd.getOptionValue(OPT_PARALLEL);
-      if (value != null && !value.trim().isEmpty()) {
+      adaptiveParallelism = "auto".equals(value);
+      if (value != null && !value.trim().isEmpty() && !adaptiveParallelism) {
         threadCount = Math.max(Integer.parseInt(value), 1);
       }
       else {
         threadCount = Runtime.getRuntime().availableProcessors();
       }
 
-      userIo.println(
-          format("Enabling parallel execution with %d threads.", threadCount),
-          Level.DEBUG);
+      if (adaptiveParallelism) {
+        userIo.println("Enabling parallel execution adjusted to the load.",
+            Level.DEBUG);
+      }
+      else {
+        userIo.println(format("Enabling parallel execution with %d threads.",
+            threadCount), Level.DEBUG);
+      }
     }
-
-    // Parse the configuration.
-    try {
-      String configDir = baseDir + "/../config/";
-      if (cmd.hasOption(OPT_CONFIG_DIR)) {
-        configDir = cmd.getOptionValue(OPT_CONFIG_DIR);
+    if (cmd.hasOption(OPT_FAIL_FAST)) {
+      failFast = true;
+    }
+    if (cmd.hasOption(OPT_OUTPUT)) {
+      String value = cmd.getOptionValue(OPT_OUTPUT);
+      if ("json".equals(value)) {
+        outputJson = true;
+        if (userIo.isInteractive()) {
+          // Keep the prompt out of the JSON on stdout.
+          userIo.setPrompts(System.err);
+        }
+      }
+      else if (!"text".equals(value)) {
+        userIo.println(format("Unknown output format [%s].\n", value));
+        printHelp();
+        exitStatus = 1;
+        return false;
       }
-      parseConfig(configDir);
     }
-    catch (Exception ex) {
-      userIo.println("Failed to parse configuration file: " + ex.getMessage(),
-          UserIo.Level.ERROR);
-      userIo.print(ex, UserIo.Level.DEBUG);
-      return;
+    if (cmd.hasOption(OPT_TRACE)) {
+      trace = new Trace();
+      traceFile = new File(cmd.getOptionValue(OPT_TRACE));
     }
 
+    return true;
+  }
+
+  /**
+   * Selects the services and executes the command given on the command line.
+   *
+   * @param cmd the command line
+   */
+  private void executeCommand(org.apache.commons.cli.CommandLine cmd) {
+
     // Process the group and services options.
     boolean confirmationNeeded = false;
-    List<ServiceConfig> services = new ArrayList<ServiceConfig>();
+    BitSet selection;
     if (cmd.hasOption(OPT_GROUP)) {
-      String group = cmd.getOptionValue(OPT_GROUP);
-      for (ServiceConfig service : serviceMap.values()) {
-        if (service.getGroups().contains(group)) {
-          services.add(service);
-        }
-      }
+      selection = selector.group(cmd.getOptionValue(OPT_GROUP));
     }
     else if (cmd.hasOption(OPT_NOT_GROUP)) {
-      String group = cmd.getOptionValue(OPT_NOT_GROUP);
-      for (ServiceConfig service : serviceMap.values()) {
-        if (!service.getGroups().contains(group)) {
-          services.add(service);
-        }
-      }
+      selection = selector.all();
+      selection.andNot(selector.group(cmd.getOptionValue(OPT_NOT_GROUP)));
     }
     else if (cmd.hasOption(OPT_SERVICES)) {
-      String[] serviceNames = cmd.getOptionValues(OPT_SERVICES);
-      for (String serviceName : serviceNames) {
-        ServiceConfig service = serviceMap.get(serviceName);
-        if (service != null) {
-          services.add(service);
-        }
-        else {
-          userIo.println(format("Ignoring unknown service [%s].", serviceName));
+      List<String> unknown = new ArrayList<String>();
+      selection = selector.names(asList(cmd.getOptionValues(OPT_SERVICES)),
+          unknown);
+      for (String serviceName : unknown) {
+        userIo.println(format("Ignoring unknown service [%s].", serviceName));
+      }
+    }
+    else if (cmd.hasOption(OPT_NOT_SERVICES)) {
+      selection = selector.all();
+      selection.andNot(selector.names(asList(cmd.getOptionValues(
+          OPT_NOT_SERVICES)), null));
+    }
+    else if (cmd.hasOption(OPT_SELECT)) {
+      try {
+        selection = selector.select(cmd.getOptionValue(OPT_SELECT));
+      }
+      catch (IllegalArgumentException ex) {
+        userIo.println(ex.getMessage(), Level.ERROR);
+        exitStatus = 1;
+        return;
+      }
+    }
+    else {
+      selection = selector.all();
+      confirmationNeeded = !cmd.hasOption(OPT_QUIET);
+    }
+    List<ServiceConfig> services = selector.services(selection);
+
+    if (cmd.hasOption(OPT_CHANGED)) {
+      if (!cmd.hasOption(OPT_RESTART) && !cmd.hasOption(OPT_BOUNCE) && !cmd
+          .hasOption(OPT_ROLLING_RESTART)) {
+        userIo.println("The changed option only applies to a restart.",
+            Level.ERROR);
+        exitStatus = 1;
+        return;
+      }
+
+      for (Iterator<ServiceConfig> iter = services.iterator(); iter
+          .hasNext();) {
+        if (!fingerprints.isChanged(iter.next())) {
+          iter.remove();
         }
       }
-    }
-    else if (cmd.hasOption(OPT_NOT_SERVICES)) {
-      List<String> serviceNames = asList(cmd.getOptionValues(OPT_NOT_SERVICES));
-      for (ServiceConfig service : serviceMap.values()) {
-        if (!serviceNames.contains(service.getName())) {
-          services.add(service);
+
+      if (services.isEmpty()) {
+        if (outputJson) {
+          // An empty result keeps the output a complete event stream.
+          ResultPrinter printer = resultPrinter("restart", "Restarting", "UP",
+              "FAILED");
+          printer.begin(Collections.<String>emptyList());
+          printer.end(Collections.<String, Boolean>emptyMap());
         }
+        else {
+          userIo.println("No services changed.");
+        }
+        return;
       }
-    }
-    else {
-      services.addAll(serviceMap.values());
-      confirmationNeeded = !cmd.hasOption(OPT_QUIET);
+      userIo.println("Changed services: " + join(alphaSort(names(services))),
+          Level.DEBUG);
     }
 
     // Process the command options.
     if (cmd.hasOption(OPT_START)) {
       if (confirmationNeeded
           && !userIo.confirm("Are you sure you want to start all services?")) {
-        userIo.println("Aborting at user request.");
+        abortAtUserRequest("start");
         return;
       }
 
-      cmdStart(services);
+      synchronized (commandLock) {
+        cmdStart(services);
+      }
     }
     else if (cmd.hasOption(OPT_STOP)) {
       if (confirmationNeeded
           && !userIo.confirm("Are you sure you want to stop all services?")) {
-        userIo.println("Aborting at user request.");
+        abortAtUserRequest("stop");
         return;
       }
 
-      cmdStop(services);
+      synchronized (commandLock) {
+        cmdStop(services);
+      }
     }
     else if (cmd.hasOption(OPT_RESTART) || cmd.hasOption(OPT_BOUNCE)) {
       if (confirmationNeeded
           && !userIo.confirm("Are you sure you want to restart all services?")) {
-        userIo.println("Aborting at user request.");
+        abortAtUserRequest("restart");
+        return;
+      }
+
+      synchronized (commandLock) {
+        if (cmdStop(services)) {
+          cmdStart(services);
+        }
+      }
+    }
+    else if (cmd.hasOption(OPT_ROLLING_RESTART)) {
+      if (confirmationNeeded
+          && !userIo.confirm("Are you sure you want to restart all services?")) {
+        abortAtUserRequest("restart");
         return;
       }
-      confirmationNeeded = false;
 
-      cmdStop(services);
-      cmdStart(services);
+      int batchSize = rollingBatchSize;
+      String value = cmd.getOptionValue(OPT_ROLLING_RESTART);
+      if (value != null && !value.trim().isEmpty()) {
+        batchSize = Math.max(Integer.parseInt(value), 1);
+      }
+
+      synchronized (commandLock) {
+        cmdRollingRestart(services, batchSize);
+      }
     }
     else if (cmd.hasOption(OPT_STATUS)) {
       cmdStatus(services);
@@ -210,78 +827,118 @@ public class Helmsman {
     else if (cmd.hasOption(OPT_LIST_GROUPS)) {
       cmdListGroups(services);
     }
-  }
+    else if (cmd.hasOption(OPT_SUPERVISE)) {
+      new Supervisor(services, supervisePolicy, taskFactory(), statusCache,
+          userIo).run();
+    }
+    else if (cmd.hasOption(OPT_METRICS)) {
+      StringWriter writer = new StringWriter();
+      metrics.writePrometheus(new PrintWriter(writer));
+      userIo.print(writer.toString());
+    }
 
-  /**
-   * Prints the status of all the given services.
-   *
-   * @param services the services to print the status of
-   */
-  private void cmdStatus(List<ServiceConfig> services) {
+    writeMetrics();
 
-    ServiceQueue queue = new ServiceQueue(services, threadCount > 1);
+    try {
+      history.save();
+    }
+    catch (IOException ex) {
+      userIo.println("Unable to save the duration history: " + ex
+          .getMessage(), Level.DEBUG);
+    }
 
-    for (List<ServiceConfig> bucket : queue) {
+    try {
+      fingerprints.save();
+    }
+    catch (IOException ex) {
+      userIo.println("Unable to save the service fingerprints: " + ex
+          .getMessage(), Level.ERROR);
+    }
 
-      Map<String, ServiceTask> tasks = new LinkedHashMap<String, ServiceTask>();
-      for (ServiceConfig service : bucket) {
-        tasks.put(service.getName(), new ServiceTask.Command(service, "status",
-            userIo));
+    if (trace != null) {
+      try {
+        trace.write(traceFile);
+        userIo.println("Wrote trace to " + traceFile.getAbsolutePath(),
+            Level.DEBUG);
+      }
+      catch (IOException ex) {
+        userIo.println(format("Unable to write trace to [%s]: %s", traceFile,
+            ex.getMessage()), Level.ERROR);
       }
+    }
+  }
 
-      userIo.print(padRight(
-          "Checking the status of " + join(summarize(tasks.keySet(), 3)), ".",
-          PADDING_WIDTH));
+  /**
+   * Writes the metrics to the configured metrics files, if any.
+   */
+  private void writeMetrics() {
+    for (File file : asList(metricsTextfile, metricsJson)) {
+      if (file == null) {
+        continue;
+      }
 
-      Map<String, Boolean> results = executeTasks(tasks, threadCount);
-      printResults(results, "UP", "DOWN", threadCount > 1);
+      try {
+        metrics.write(file, file == metricsJson);
+      }
+      catch (IOException ex) {
+        userIo.println(format("Unable to write metrics to [%s]: %s", file, ex
+            .getMessage()), Level.ERROR);
+      }
     }
   }
 
   /**
-   * Executes the given tasks, in order, using up to the given thread count. The
-   * result of each task is returned in a map of task name to result. The tasks
-   * will be executed in the order of the task name key set iterator
-   * (potentially in parallel).
+   * Prints the status of all the given services.
    *
-   * @param tasks the tasks to execute
-   * @param threadCount the number of threads to use (must be at least 1)
-   * @return the map of task name to success status
+   * @param services the services to print the status of
    */
-  private Map<String, Boolean> executeTasks(Map<String, ServiceTask> tasks,
-      int threadCount) {
+  private void cmdStatus(List<ServiceConfig> services) {
+    checkStatus(services, true);
+  }
 
-    Iterator<String> taskNameIter = tasks.keySet().iterator();
-    List<String> executing = new ArrayList<String>();
-    Map<String, Boolean> results = new HashMap<String, Boolean>();
+  /**
+   * Checks and prints the status of all the given services. If a status cache
+   * is available, the results are recorded in the cache.
+   *
+   * @param services the services to check the status of
+   * @param useCache true to use cached results rather than checking services
+   * with a known status
+   * @return the map of service name to status
+   */
+  private Map<String, Boolean> checkStatus(List<ServiceConfig> services,
+      boolean useCache) {
 
-    while (results.size() != tasks.size()) {
+    ServiceQueue queue = new ServiceQueue(services);
+    TaskFactory factory = taskFactory();
 
-      // Start tasks if possible.
-      if (executing.size() < threadCount && taskNameIter.hasNext()) {
-        String name = taskNameIter.next();
-        ServiceTask task = tasks.get(name);
+    Set<String> checked = new HashSet<String>();
+    List<ServiceConfig> unknown = new ArrayList<ServiceConfig>();
+    Map<String, ServiceTask> tasks = new LinkedHashMap<String, ServiceTask>();
+    for (ServiceConfig service : queue) {
+      Boolean status = (useCache && statusCache != null) ? statusCache.get(
+          service.getName()) : null;
 
-        task.execute();
-        executing.add(name);
+      if (status != null) {
+        tasks.put(service.getName(), new ServiceTask.Constant(status));
       }
+      else {
+        // Reserve the position so the tasks stay in queue order.
+        tasks.put(service.getName(), null);
+        unknown.add(service);
+        checked.add(service.getName());
+      }
+    }
+    tasks.putAll(factory.status(unknown));
 
-      // Check status, wait for the first task.
-      boolean first = true;
-      for (Iterator<String> iter = executing.iterator(); iter.hasNext();) {
-        String name = iter.next();
-        ServiceTask task = tasks.get(name);
-
-        if (first) {
-          task.waitFor(2000);
-          first = false;
-          userIo.print(".");
-        }
+    // Status checks don't depend on each other so there is no need to order
+    // them.
+    Map<String, Boolean> results = executeTasks("status", tasks, queue, false,
+        Collections.<String>emptySet(), resultPrinter("status",
+            "Checking the status of", "UP", "DOWN"));
 
-        if (task.isComplete()) {
-          iter.remove();
-          results.put(name, task.isSuccess());
-        }
+    if (statusCache != null) {
+      for (String name : checked) {
+        statusCache.put(name, results.get(name));
       }
     }
 
@@ -292,27 +949,34 @@ public class Helmsman {
    * Stops all the given services.
    *
    * @param services the services to stop
+   * @return false if the stop was aborted because a critical service failed
    */
-  private void cmdStop(List<ServiceConfig> services) {
+  private boolean cmdStop(List<ServiceConfig> services) {
 
-    ServiceQueue queue = new ServiceQueue(services, threadCount > 1);
+    ServiceQueue queue = new ServiceQueue(services);
     queue.reverse();
 
-    for (List<ServiceConfig> bucket : queue) {
-
-      Map<String, ServiceTask> tasks = new LinkedHashMap<String, ServiceTask>();
-      for (ServiceConfig service : bucket) {
-        tasks.put(service.getName(), new ServiceTask.Or(new ServiceTask.Not(
-            new ServiceTask.Command(service, "status", userIo)),
-            new ServiceTask.Command(service, "stop", userIo)));
-      }
+    TaskFactory factory = taskFactory();
+    Map<String, ServiceTask> tasks = new LinkedHashMap<String, ServiceTask>();
+    for (ServiceConfig service : queue) {
+      tasks.put(service.getName(), factory.stop(service));
+    }
 
-      userIo.print(padRight("Stopping " + join(summarize(tasks.keySet(), 3)),
-          ".", PADDING_WIDTH));
+    Map<String, Boolean> results = executeTasks("stop", tasks, queue, true,
+        critical(services), resultPrinter("stop", "Stopping", "DOWN",
+            "FAILED"));
+    updateStatusCache(results, false);
 
-      Map<String, Boolean> results = executeTasks(tasks, threadCount);
-      printResults(results, "DOWN", "FAILED", threadCount > 1);
+    for (ServiceConfig service : services) {
+      if (Boolean.TRUE.equals(results.get(service.getName()))) {
+        fingerprints.stopped(service);
+      }
+      else {
+        exitStatus = 1;
+      }
     }
+
+    return !isAborted(results, services);
   }
 
   /**
@@ -341,68 +1005,444 @@ public class Helmsman {
    * Starts all the given services.
    *
    * @param services the services to start
+   * @return false if the start was aborted because a critical service failed
    */
-  private void cmdStart(List<ServiceConfig> services) {
+  private boolean cmdStart(List<ServiceConfig> services) {
+
+    ServiceQueue queue = new ServiceQueue(services);
+
+    TaskFactory factory = taskFactory();
+    Map<String, ServiceTask> tasks = new LinkedHashMap<String, ServiceTask>();
+    for (ServiceConfig service : queue) {
+      tasks.put(service.getName(), factory.start(service));
+    }
+
+    Map<String, Boolean> results = executeTasks("start", tasks, queue, true,
+        critical(services), resultPrinter("start", "Starting", "UP",
+            "FAILED"));
+    updateStatusCache(results, true);
+
+    // A service that was already up keeps the fingerprint it was started
+    // with, or stays without one and looks changed, because the start didn't
+    // apply the current configuration.
+    for (ServiceConfig service : services) {
+      if (!Boolean.TRUE.equals(results.get(service.getName()))) {
+        exitStatus = 1;
+      }
+      else if (factory.isStarted(service)) {
+        fingerprints.started(service);
+      }
+    }
+
+    return !isAborted(results, services);
+  }
 
-    ServiceQueue queue = new ServiceQueue(services, threadCount > 1);
+  /**
+   * Restarts the given services in waves so each service is only down for
+   * its own restart. The services are taken in start order as they become
+   * ready so a service is only restarted after the services it depends on
+   * are restarted and up, and a wave never contains a service along with one
+   * it depends on. Each service in a wave is stopped and started, the wave is
+   * checked until it is up, and then the next wave begins. The restart stops
+   * at the first wave that fails or isn't up in time.
+   *
+   * @param services the services to restart
+   * @param batchSize the maximum number of services in a wave
+   */
+  private void cmdRollingRestart(List<ServiceConfig> services,
+      int batchSize) {
+    ServiceQueue queue = new ServiceQueue(services);
+    ServiceQueue.Schedule schedule = queue.schedule(true);
+    TaskFactory factory = taskFactory();
 
-    for (List<ServiceConfig> bucket : queue) {
+    Map<String, ServiceConfig> byName = new HashMap<String, ServiceConfig>();
+    for (ServiceConfig service : services) {
+      byName.put(service.getName(), service);
+    }
 
+    Deque<String> ready = new ArrayDeque<String>();
+    ready.addAll(schedule.poll());
+    while (!ready.isEmpty()) {
+      List<ServiceConfig> wave = new ArrayList<ServiceConfig>();
       Map<String, ServiceTask> tasks = new LinkedHashMap<String, ServiceTask>();
-      for (ServiceConfig service : bucket) {
-        tasks.put(service.getName(), new ServiceTask.Or(
-            new ServiceTask.Command(service, "status", userIo),
-            new ServiceTask.Command(service, "start", userIo)));
+      while (!ready.isEmpty() && wave.size() < batchSize) {
+        ServiceConfig service = byName.get(ready.poll());
+        wave.add(service);
+        tasks.put(service.getName(), factory.restart(service));
       }
 
-      userIo.print(padRight("Starting " + join(summarize(tasks.keySet(), 3)),
-          ".", PADDING_WIDTH));
+      Map<String, Boolean> results = executeTasks("restart", tasks,
+          new ServiceQueue(wave), false, critical(wave), resultPrinter(
+              "restart", "Restarting", "UP", "FAILED"));
+      updateStatusCache(results, true);
+
+      String unhealthy = null;
+      for (Map.Entry<String, Boolean> result : results.entrySet()) {
+        if (!result.getValue()) {
+          unhealthy = result.getKey();
+        }
+      }
+      if (unhealthy == null) {
+        unhealthy = awaitUp(wave, factory);
+      }
+
+      if (unhealthy != null) {
+        userIo.println(format("Stopping the rolling restart because [%s] "
+            + "is not up.", unhealthy), Level.ERROR);
+        exitStatus = 1;
+        return;
+      }
 
-      Map<String, Boolean> results = executeTasks(tasks, threadCount);
-      printResults(results, "UP", "FAILED", threadCount > 1);
+      for (ServiceConfig service : wave) {
+        fingerprints.started(service);
+        schedule.complete(service.getName(), true);
+      }
+      ready.addAll(schedule.poll());
     }
   }
 
   /**
-   * Prints the given results. If parallel, each result will be printed on a new
-   * line, prefixed with the task name. If not parallel, the result will be
-   * printed on the current line with no task name prefix.
+   * Checks the status of the given services until they are all up or the
+   * rolling restart health timeout elapses. The checks are executed like any
+   * other tasks so they honor the thread count, and checks still executing
+   * at the deadline are cancelled.
    *
-   * @param results the results to print
-   * @param successCaption the caption if the task was successful
-   * @param failCaption the caption if the task failed
-   * @param parallelFormat true if the results should be printed in parallel
-   * format, false otherwise
+   * @param services the services to check
+   * @param factory the factory to create the status tasks
+   * @return the name of a service that isn't up or null if all are up
    */
-  private void printResults(Map<String, Boolean> results,
-      String successCaption, String failCaption, boolean parallelFormat) {
+  private String awaitUp(List<ServiceConfig> services, TaskFactory factory) {
+    if (rollingHealthTimeout == 0) {
+      return null;
+    }
 
-    if (parallelFormat) {
-      userIo.println("done");
+    long deadline = System.currentTimeMillis() + rollingHealthTimeout * 1000L;
+    List<ServiceConfig> down = new ArrayList<ServiceConfig>(services);
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+        new ProcessEngine.DaemonThreadFactory("helmsman-health-deadline"));
+    try {
+      while (true) {
+        final Map<String, ServiceTask> checks = factory.status(down);
+        ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+          @Override
+          public void run() {
+            for (ServiceTask task : checks.values()) {
+              task.cancel();
+            }
+          }
+        }, Math.max(deadline - System.currentTimeMillis(), 0),
+            TimeUnit.MILLISECONDS);
 
-      for (Map.Entry<String, Boolean> result : results.entrySet()) {
-        String resultCaption = result.getValue() ? successCaption : failCaption;
+        Map<String, Boolean> results = executeTasks("status", checks,
+            new ServiceQueue(down), false, Collections.<String>emptySet(),
+            new ResultPrinter.Quiet());
+        timeout.cancel(false);
 
-        String caption
-            = format("\t%s%s", padRight(result.getKey(), ".", 20), resultCaption);
+        for (Iterator<ServiceConfig> iter = down.iterator(); iter.hasNext();) {
+          if (results.get(iter.next().getName())) {
+            iter.remove();
+          }
+        }
+
+        long remaining = deadline - System.currentTimeMillis();
+        if (down.isEmpty()) {
+          return null;
+        }
+        if (remaining <= 0) {
+          if (statusCache != null) {
+            for (ServiceConfig service : down) {
+              statusCache.remove(service.getName());
+            }
+          }
+          return down.get(0).getName();
+        }
 
-        userIo.println(caption);
+        userIo.println(format("Waiting for %s to be up.", join(summarize(
+            names(down), 3))), Level.DEBUG);
+        Thread.sleep(Math.min(HEALTH_INTERVAL, remaining));
       }
     }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for services.",
+          ex);
+    }
+    finally {
+      timer.shutdownNow();
+    }
+  }
+
+  /**
+   * Reports that the command was aborted because the user didn't confirm it.
+   * With JSON output the abort is reported as an "abort" event so the output
+   * remains newline delimited JSON.
+   *
+   * @param action the script command that was aborted (e.g. start)
+   */
+  private void abortAtUserRequest(String action) {
+    if (outputJson) {
+      userIo.println(format("{\"event\":\"abort\",\"action\":%s,"
+          + "\"reason\":\"user\"}", jsonQuote(action)));
+    }
     else {
-      String resultCaption
-          = results.values().iterator().next() ? successCaption : failCaption;
+      userIo.println("Aborting at user request.");
+    }
+    exitStatus = 1;
+  }
+
+  /**
+   * Returns the names of the given services.
+   *
+   * @param services the services
+   * @return the names in the same order
+   */
+  private static List<String> names(List<ServiceConfig> services) {
+    List<String> names = new ArrayList<String>(services.size());
+    for (ServiceConfig service : services) {
+      names.add(service.getName());
+    }
+    return names;
+  }
 
-      userIo.println(resultCaption);
+  /**
+   * Returns the names of the services whose failure aborts a start or stop.
+   * With fail fast, every service is critical.
+   *
+   * @param services the services being started or stopped
+   * @return the names of the critical services
+   */
+  private Set<String> critical(List<ServiceConfig> services) {
+    Set<String> critical = new HashSet<String>();
+    for (ServiceConfig service : services) {
+      if (failFast || service.isCritical()) {
+        critical.add(service.getName());
+      }
+    }
+    return critical;
+  }
+
+  /**
+   * Returns true if a start or stop was aborted which is the case if any
+   * critical service failed.
+   *
+   * @param results the map of service name to success
+   * @param services the services that were started or stopped
+   * @return true if aborted
+   */
+  private boolean isAborted(Map<String, Boolean> results,
+      List<ServiceConfig> services) {
+    for (String name : critical(services)) {
+      if (!results.get(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Executes the given tasks, launching the tasks expected to take the longest
+   * first, and prints the estimated time to complete if it is long enough to
+   * be worth knowing. Nothing is estimated for a quiet printer because the
+   * caller reports on the tasks itself.
+   *
+   * @param action the script command performed by the tasks (e.g. start)
+   * @param tasks the tasks to execute by service name
+   * @param queue the queue of the services
+   * @param ordered true if the order levels and dependencies must be honored
+   * @param critical the names of the services whose failure aborts the
+   * execution of all remaining tasks
+   * @param printer the printer to report task progress and results to
+   * @return the map of service name to success status
+   */
+  private Map<String, Boolean> executeTasks(String action,
+      Map<String, ServiceTask> tasks, ServiceQueue queue, boolean ordered,
+      Collection<String> critical, ResultPrinter printer) {
+    // With adaptive parallelism the thread count is the ceiling and the limit
+    // starts at the available CPUs.
+    AdaptiveParallelism adaptive = null;
+    int capacity = threadCount;
+    if (adaptiveParallelism) {
+      capacity = parallelMax > 0 ? parallelMax : Runtime.getRuntime()
+          .availableProcessors() * 4;
+      adaptive = new AdaptiveParallelism(parallelMin, capacity, userIo);
+    }
+
+    // Weights and group limits protect the host from heavy starts and stops
+    // while status checks are light enough to use every thread.
+    Admission admission = ordered ? new Admission(capacity, queue
+        .getServices(), groupLimits) : new Admission(capacity);
+    if (adaptive != null) {
+      admission.setLimit(adaptive.initialLimit());
+    }
+
+    TaskExecutor executor = new TaskExecutor(admission, metrics, trace,
+        history, userIo);
+    executor.setAdaptive(adaptive);
+
+    if (!outputJson && !(printer instanceof ResultPrinter.Quiet)) {
+      double estimate = executor.estimate(action, tasks.keySet(), queue
+          .schedule(ordered));
+      if (estimate >= MIN_ESTIMATE) {
+        userIo.println(format("Estimated time to complete: %s.",
+            formatDuration(Math.round(estimate))));
+      }
+    }
+
+    return executor.execute(action, tasks, queue.schedule(ordered), critical,
+        printer);
+  }
+
+  /**
+   * Returns a printer for task results that writes to this instance's user
+   * IO in the selected output format.
+   *
+   * @param command the script command being performed (e.g. start)
+   * @param action the action being performed (e.g. "Starting")
+   * @param successCaption the caption if the task was successful
+   * @param failCaption the caption if the task failed
+   * @return the new result printer
+   */
+  private ResultPrinter resultPrinter(String command, String action,
+      String successCaption, String failCaption) {
+    if (outputJson) {
+      return new ResultPrinter.Json(userIo, command, successCaption,
+          failCaption);
+    }
+
+    return new ResultPrinter.Text(userIo, action, successCaption,
+        failCaption, threadCount > 1 || adaptiveParallelism);
+  }
+
+  /**
+   * Returns a factory for service tasks that write to this instance's user
+   * IO.
+   *
+   * @return the new task factory
+   */
+  private TaskFactory taskFactory() {
+    return new TaskFactory(processEngine, coprocesses, prober, commandStatus,
+        metrics, trace, userIo);
+  }
+
+  /**
+   * Records the results of a start or stop for the rest of the command and in
+   * the status cache if available. Successful services are known to be in the
+   * target status while the status of failed services is unknown.
+   *
+   * @param results the map of service name to success
+   * @param status the status of a successful service (true for UP)
+   */
+  private void updateStatusCache(Map<String, Boolean> results, boolean status) {
+    for (Map.Entry<String, Boolean> result : results.entrySet()) {
+      if (result.getValue()) {
+        commandStatus.put(result.getKey(), status);
+        if (statusCache != null) {
+          statusCache.put(result.getKey(), status);
+        }
+      }
+      else {
+        commandStatus.remove(result.getKey());
+        if (statusCache != null) {
+          statusCache.remove(result.getKey());
+        }
+      }
     }
   }
 
+  /**
+   * Returns the file named by a setting. A relative path is relative to the
+   * configuration directory so it doesn't depend on the working directory
+   * of the command or daemon.
+   *
+   * @param value the path
+   * @return the file
+   */
+  private File settingFile(String value) {
+    File file = new File(value);
+    return file.isAbsolute() ? file : new File(configDir, value);
+  }
+
   /**
    * Prints the help/usage information to stdout.
    */
   private void printHelp() {
+    StringWriter writer = new StringWriter();
+    PrintWriter out = new PrintWriter(writer);
+
     HelpFormatter formatter = new HelpFormatter();
-    formatter.printHelp("helmsman", OPTIONS, true);
+    formatter.printHelp(out, formatter.getWidth(), "helmsman", null, OPTIONS,
+        formatter.getLeftPadding(), formatter.getDescPadding(), null, true);
+    out.close();
+
+    userIo.print(writer.toString());
+  }
+
+  /**
+   * Applies a global setting from the configuration.
+   *
+   * @param name the name of the setting property
+   * @param value the trimmed value of the setting
+   * @return true if the setting is supported, false otherwise
+   */
+  private boolean applySetting(String name, String value) {
+    if (name.equals("global.statusCache.ttl")) {
+      statusCacheTtl = Math.max(Integer.parseInt(value), 0);
+    }
+    else if (name.equals("global.daemon.refresh")) {
+      daemonRefresh = Math.max(Integer.parseInt(value), 1);
+    }
+    else if (name.equals("global.daemon.watch")) {
+      daemonWatch = Boolean.parseBoolean(value);
+    }
+    else if (name.equals("global.daemon.tokenFile")) {
+      daemonTokenFile = settingFile(value);
+    }
+    else if (name.equals("global.supervise.backoff")) {
+      supervisePolicy.setBackoff(Integer.parseInt(value));
+    }
+    else if (name.equals("global.supervise.maxBackoff")) {
+      supervisePolicy.setMaxBackoff(Integer.parseInt(value));
+    }
+    else if (name.equals("global.supervise.maxRestarts")) {
+      supervisePolicy.setMaxRestarts(Integer.parseInt(value));
+    }
+    else if (name.equals("global.supervise.window")) {
+      supervisePolicy.setWindow(Integer.parseInt(value));
+    }
+    else if (name.equals("global.metrics.textfile")) {
+      metricsTextfile = settingFile(value);
+    }
+    else if (name.equals("global.metrics.json")) {
+      metricsJson = settingFile(value);
+    }
+    else if (name.equals("global.history.file")) {
+      historyFile = settingFile(value);
+    }
+    else if (name.equals("global.fingerprints.file")) {
+      fingerprintsFile = settingFile(value);
+    }
+    else if (name.equals("global.rolling.batchSize")) {
+      rollingBatchSize = Math.max(Integer.parseInt(value), 1);
+    }
+    else if (name.equals("global.rolling.healthTimeout")) {
+      rollingHealthTimeout = Math.max(Integer.parseInt(value), 0);
+    }
+    else if (name.equals("global.parallel.min")) {
+      parallelMin = Math.max(Integer.parseInt(value), 1);
+    }
+    else if (name.equals("global.parallel.max")) {
+      parallelMax = Math.max(Integer.parseInt(value), 1);
+    }
+    else if (name.startsWith("global.group.") && name.endsWith(
+        ".maxConcurrent")) {
+      groupLimits.put(name.substring(13, name.length() - 14), Math.max(Integer
+          .parseInt(value), 1));
+    }
+    else {
+      return false;
+    }
+
+    return true;
   }
 
   /**
@@ -413,30 +1453,100 @@ public class Helmsman {
    * @throws Exception if parsing the configuration fails or it is invalid
    */
   private void parseConfig(String configDir) throws Exception {
-    Properties config = new Properties();
-
-    // Load base configuration
-    File file = new File(new File(configDir), "base.properties");
-    userIo.println("Loading configuration: " + file.getAbsolutePath(),
-        UserIo.Level.DEBUG);
-    Reader reader = new FileReader(file);
-    config.load(reader);
-    reader.close();
-
-    // Load the machine specific configuration.
-    String hostname = InetAddress.getLocalHost().getHostName();
-    file = new File(new File(configDir), hostname + ".properties");
-    userIo.println(
-        "Checking for machine configuration: " + file.getAbsolutePath(),
-        UserIo.Level.DEBUG);
-
-    if (file.exists()) {
-      userIo.println("Loading configuration: " + file.getAbsolutePath(),
-          UserIo.Level.DEBUG);
-      reader = new FileReader(file);
-      config.load(reader);
-      reader.close();
+    this.configDir = configDir;
+
+    // Use the compiled snapshot if nothing has changed since it was built.
+    File snapshotFile = new File(new File(configDir), SNAPSHOT_FILENAME);
+    ConfigSnapshot snapshot = ConfigSnapshot.read(snapshotFile);
+    if (snapshot != null && snapshot.isCurrent()) {
+      userIo.println("Loading configuration snapshot: " + snapshotFile
+          .getAbsolutePath(), UserIo.Level.DEBUG);
+
+      hostname = snapshot.getHostname();
+      serviceMap.putAll(snapshot.getServices());
+      for (Map.Entry<String, String> setting : snapshot.getSettings()
+          .entrySet()) {
+        applySetting(setting.getKey(), setting.getValue());
+      }
+      settings.putAll(snapshot.getSettings());
+      return;
+    }
+
+    // Resolving the host name can block on DNS so reuse the name from the
+    // last snapshot if it was built on this machine.
+    String machine = ConfigSnapshot.machineName();
+    if (snapshot != null && machine != null && machine.equals(snapshot
+        .getMachine())) {
+      hostname = snapshot.getHostname();
+    }
+    else {
+      hostname = InetAddress.getLocalHost().getHostName();
+    }
+
+    snapshot = new ConfigSnapshot();
+    snapshot.setMachine(machine);
+    snapshot.setHostname(hostname);
+
+    // Load the base, fragment, and machine specific configuration.
+    configLoader = new ConfigLoader(new File(configDir), hostname, userIo);
+    Properties config = configLoader.load();
+    for (File file : configLoader.getInputs()) {
+      snapshot.addInput(file);
+    }
+
+    Map<String, String> parsedSettings = new HashMap<String, String>();
+    Map<String, String> variables = new HashMap<String, String>();
+    Map<String, String> resolvedVariables = new HashMap<String, String>();
+    serviceMap.putAll(parseServices(config, parsedSettings, variables,
+        resolvedVariables));
+
+    for (Map.Entry<String, String> setting : parsedSettings.entrySet()) {
+      if (applySetting(setting.getKey(), setting.getValue())) {
+        snapshot.getSettings().put(setting.getKey(), setting.getValue());
+      }
+      else {
+        userIo.println(format(
+            "Ignoring unrecognized configuration property [%s].", setting
+            .getKey()));
+      }
+    }
+    settings.putAll(parsedSettings);
+
+    // Record the referenced environment variables and save the snapshot for
+    // the next run. Failing to save only costs the next run a parse.
+    for (Map.Entry<String, String> variable : resolvedVariables.entrySet()) {
+      if (!variables.containsKey(variable.getKey())) {
+        snapshot.getEnvironment().put(variable.getKey(), variable.getValue());
+      }
+    }
+    snapshot.getServices().putAll(serviceMap);
+
+    try {
+      snapshot.write(snapshotFile);
     }
+    catch (IOException ex) {
+      userIo.println(format("Unable to save configuration snapshot [%s]: %s",
+          snapshotFile.getAbsolutePath(), ex.getMessage()), Level.DEBUG);
+    }
+  }
+
+  /**
+   * Parses and validates the services in the configuration. The global
+   * settings are collected rather than applied so the configuration can be
+   * parsed without changing the running configuration.
+   *
+   * @param config the configuration properties
+   * @param settings the map to add the global settings to
+   * @param variables the map to add the global variables to
+   * @param resolvedVariables the map to add the expanded variables to as they
+   * are used
+   * @return the services by name
+   * @throws Exception if the configuration is invalid
+   */
+  private Map<String, ServiceConfig> parseServices(Properties config,
+      Map<String, String> settings, Map<String, String> variables,
+      Map<String, String> resolvedVariables) throws Exception {
+    Map<String, ServiceConfig> services = new HashMap<String, ServiceConfig>();
 
     // Process the configuration.
     for (Enumeration<?> enumeration = config.propertyNames(); enumeration
@@ -450,12 +1560,15 @@ public class Helmsman {
         for (String serviceName : serviceNames) {
           ServiceConfig serviceConfig = new ServiceConfig();
           serviceConfig.setName(serviceName.trim());
-          serviceMap.put(serviceName, serviceConfig);
+          services.put(serviceName, serviceConfig);
         }
       }
       else if (name.startsWith("global.var.")) {
         variables.put(name.split("\\.")[2], value);
       }
+      else if (name.startsWith("global.")) {
+        settings.put(name, value.trim());
+      }
       else if (name.startsWith("service.")) {
         // Ignore for now
       }
@@ -476,7 +1589,7 @@ public class Helmsman {
         String[] nameParts = name.split("\\.");
 
         // Make sure this service is supported in this configuration.
-        ServiceConfig service = serviceMap.get(nameParts[1]);
+        ServiceConfig service = services.get(nameParts[1]);
 
         if (service != null) {
           userIo.println(format("Processing service property [%s].", name),
@@ -488,12 +1601,46 @@ public class Helmsman {
           else if ("order".equals(nameParts[2])) {
             service.setOrder(Integer.parseInt(value));
           }
+          else if ("probe".equals(nameParts[2])) {
+            String probe = replaceVariables(value, variables,
+                resolvedVariables);
+            Prober.validate(probe);
+            service.setProbe(probe);
+          }
           else if ("script".equals(nameParts[2])) {
-            service.setScript(replaceVariables(value, variables));
+            service.setScript(replaceVariables(value, variables,
+                resolvedVariables));
+          }
+          else if ("checkInterval".equals(nameParts[2])) {
+            service.setCheckInterval(Math.max(Integer.parseInt(value), 1));
           }
           else if ("timeout".equals(nameParts[2])) {
             service.setTimeout(Integer.parseInt(value));
           }
+          else if ("critical".equals(nameParts[2])) {
+            service.setCritical(Boolean.parseBoolean(value));
+          }
+          else if ("weight".equals(nameParts[2])) {
+            service.setWeight(Math.max(Integer.parseInt(value), 1));
+          }
+          else if ("batchStatus".equals(nameParts[2])) {
+            service.setBatchStatus(Boolean.parseBoolean(value));
+          }
+          else if ("protocol".equals(nameParts[2])) {
+            if (!"exec".equals(value) && !Coprocesses.PROTOCOL.equals(value)) {
+              throw new RuntimeException(format(
+                  "Service [%s] has an unsupported protocol [%s].",
+                  service.getName(), value));
+            }
+            service.setProtocol(value);
+          }
+          else if ("dependsOn".equals(nameParts[2])) {
+            for (String dependency : value.split(",")) {
+              if (!dependency.trim().isEmpty()) {
+                service.getDependsOn().add(dependency.trim());
+              }
+            }
+          }
           else if ("groups".equals(nameParts[2])) {
             for (String group : value.split(",")) {
               if (!group.trim().isEmpty()) {
@@ -510,13 +1657,33 @@ public class Helmsman {
     }
 
     // Validate the services configuration.
-    for (ServiceConfig service : serviceMap.values()) {
+    for (ServiceConfig service : services.values()) {
       if (service.getScript() == null) {
         throw new RuntimeException(format(
             "Service [%s] does not have a valid script defined.",
             service.getName()));
       }
+
+      for (String dependency : service.getDependsOn()) {
+        if (!services.containsKey(dependency)) {
+          throw new RuntimeException(format(
+              "Service [%s] depends on unknown service [%s].",
+              service.getName(), dependency));
+        }
+      }
     }
+
+    // Build the full queue to detect dependency cycles.
+    ServiceQueue queue = new ServiceQueue(services.values());
+
+    List<String> criticalPath = new ArrayList<String>();
+    for (ServiceConfig service : queue.getCriticalPath()) {
+      criticalPath.add(service.getName());
+    }
+    userIo.println(format("Critical start path has %d services: %s.",
+        criticalPath.size(), join(criticalPath)), Level.DEBUG);
+
+    return services;
   }
 
 }
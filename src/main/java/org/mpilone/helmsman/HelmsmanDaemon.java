@@ -0,0 +1,352 @@
+package org.mpilone.helmsman;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.mpilone.helmsman.UserIo.Level;
+
+import static java.lang.String.format;
+
+/**
+ * A resident process that holds the parsed configuration and the last known
+ * status of each service and accepts commands from clients on a localhost TCP
+ * port. A request is a sequence of NUL terminated UTF-8 fields: the secret
+ * token, the number of arguments, and then each command line argument (e.g.
+ * "--status", "-y", "deploy &amp; !standby") so arguments may contain any
+ * character. The output of the command is written back followed by a NUL and
+ * the exit status of the command on its own line before the connection is
+ * closed. The status of all services is refreshed in the background so status
+ * requests are answered from memory.
+ * <p>
+ * Any local user can connect to the port so a request is only handled if it
+ * starts with the token in the token file. The file is created with a random
+ * token if it doesn't exist and must only be readable by its owner, so only
+ * the user running the daemon (and root) can send commands.
+ *
+ * @author mpilone
+ */
+public class HelmsmanDaemon {
+
+  /**
+   * The number of milliseconds to wait for a client to send the request line.
+   */
+  private static final int READ_TIMEOUT = 10000;
+
+  /**
+   * The maximum length in bytes of a field of a request.
+   */
+  private static final int MAX_FIELD_LENGTH = 65536;
+
+  /**
+   * The maximum number of arguments of a request.
+   */
+  private static final int MAX_ARGUMENTS = 1024;
+
+  /**
+   * The UTF-8 character set.
+   */
+  private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * The application holding the configuration and state.
+   */
+  private final Helmsman helmsman;
+
+  /**
+   * The localhost port to listen on.
+   */
+  private final int port;
+
+  /**
+   * The file holding the token clients must send.
+   */
+  private final File tokenFile;
+
+  /**
+   * The token clients must send, read when the daemon runs.
+   */
+  private byte[] token;
+
+  /**
+   * The number of seconds between status refreshes.
+   */
+  private final int refreshInterval;
+
+  /**
+   * The User IO to write daemon output to.
+   */
+  private final UserIo userIo;
+
+  /**
+   * Constructs the daemon.
+   *
+   * @param helmsman the application holding the configuration and state
+   * @param port the localhost port to listen on
+   * @param tokenFile the file holding the token clients must send
+   * @param refreshInterval the number of seconds between status refreshes
+   * @param userIo the User IO to write daemon output to
+   */
+  public HelmsmanDaemon(Helmsman helmsman, int port, File tokenFile,
+      int refreshInterval, UserIo userIo) {
+    this.helmsman = helmsman;
+    this.port = port;
+    this.tokenFile = tokenFile;
+    this.refreshInterval = refreshInterval;
+    this.userIo = userIo;
+  }
+
+  /**
+   * Runs the daemon, accepting client connections until the process is
+   * terminated.
+   *
+   * @throws IOException if the token cannot be read or the server socket
+   * fails
+   */
+  public void run() throws IOException {
+    token = readToken(tokenFile).getBytes(UTF_8);
+
+    ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(
+        "127.0.0.1"));
+
+    ExecutorService clients = Executors.newCachedThreadPool(
+        new ProcessEngine.DaemonThreadFactory("helmsman-client"));
+
+    ScheduledExecutorService refresher = Executors
+        .newSingleThreadScheduledExecutor(new ProcessEngine.DaemonThreadFactory(
+                "helmsman-refresh"));
+    refresher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          helmsman.refreshStatus(new UserIo(new PrintStream(
+              new NullOutputStream()), false));
+        }
+        catch (Exception ex) {
+          userIo.println("Status refresh failed: " + ex.getMessage(),
+              Level.ERROR);
+          userIo.print(ex, Level.DEBUG);
+        }
+      }
+    }, 0, refreshInterval, TimeUnit.SECONDS);
+
+    userIo.println(format("Listening for commands on port %d.", port));
+
+    try {
+      while (true) {
+        final Socket socket = server.accept();
+        clients.execute(new Runnable() {
+          @Override
+          public void run() {
+            handle(socket);
+          }
+        });
+      }
+    }
+    finally {
+      refresher.shutdownNow();
+      clients.shutdownNow();
+      server.close();
+    }
+  }
+
+  /**
+   * Handles a single client connection.
+   *
+   * @param socket the client socket
+   */
+  private void handle(Socket socket) {
+    try {
+      socket.setSoTimeout(READ_TIMEOUT);
+
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      PrintStream out = new PrintStream(new BufferedOutputStream(socket
+          .getOutputStream()), false, UTF_8.name());
+
+      String clientToken = readField(in);
+      if (clientToken == null) {
+        return;
+      }
+      else if (!MessageDigest.isEqual(token, clientToken.getBytes(UTF_8))) {
+        userIo.println("Rejected request with an invalid token.",
+            Level.ERROR);
+        respond(out, "Invalid daemon token.\n", 1);
+        return;
+      }
+
+      String count = readField(in);
+      int argCount = count == null ? -1 : parseCount(count);
+      if (argCount < 0) {
+        respond(out, "Invalid request.\n", 1);
+        return;
+      }
+
+      String[] args = new String[argCount];
+      for (int i = 0; i < argCount; i++) {
+        args[i] = readField(in);
+        if (args[i] == null) {
+          respond(out, "Invalid request.\n", 1);
+          return;
+        }
+      }
+
+      userIo.println(format("Handling request %s.", Arrays.toString(args)),
+          Level.DEBUG);
+
+      int status = helmsman.handleRequest(args, new UserIo(out, false));
+      respond(out, "", status);
+    }
+    catch (Exception ex) {
+      userIo.println("Failed to handle request: " + ex.getMessage(),
+          Level.ERROR);
+      userIo.print(ex, Level.DEBUG);
+    }
+    finally {
+      try {
+        socket.close();
+      }
+      catch (IOException ex) {
+        // Ignore
+      }
+    }
+  }
+
+  /**
+   * Writes the end of the response: the given output, a NUL, and the exit
+   * status.
+   *
+   * @param out the output stream of the client
+   * @param output the output to write before the exit status
+   * @param status the exit status of the request
+   */
+  private static void respond(PrintStream out, String output, int status) {
+    out.print(output);
+    out.print('\0');
+    out.print(status + "\n");
+    out.flush();
+  }
+
+  /**
+   * Reads a NUL terminated field of a request.
+   *
+   * @param in the input stream of the client
+   * @return the field or null if the stream ended or the field is too long
+   * @throws IOException if the stream cannot be read
+   */
+  private static String readField(InputStream in) throws IOException {
+    ByteArrayOutputStream field = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != 0) {
+      if (b == -1 || field.size() == MAX_FIELD_LENGTH) {
+        return null;
+      }
+      field.write(b);
+    }
+    return new String(field.toByteArray(), UTF_8);
+  }
+
+  /**
+   * Parses the number of arguments of a request.
+   *
+   * @param value the field containing the number
+   * @return the number or -1 if it isn't valid
+   */
+  private static int parseCount(String value) {
+    try {
+      int count = Integer.parseInt(value);
+      return count <= MAX_ARGUMENTS ? count : -1;
+    }
+    catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * Reads the token from the token file, creating the file with a random
+   * token if it doesn't exist. The file is created readable only by its
+   * owner and an existing file that other users can read is rejected.
+   *
+   * @param file the token file
+   * @return the token
+   * @throws IOException if the file cannot be created or read or is
+   * readable by other users
+   */
+  private static String readToken(File file) throws IOException {
+    Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString(
+        "rw-------");
+    boolean posix = Files.getFileStore(file.getAbsoluteFile().getParentFile()
+        .toPath()).supportsFileAttributeView("posix");
+
+    if (!file.exists()) {
+      byte[] random = new byte[32];
+      new SecureRandom().nextBytes(random);
+      StringBuilder hex = new StringBuilder();
+      for (byte b : random) {
+        hex.append(format("%02x", b));
+      }
+
+      try {
+        if (posix) {
+          Files.createFile(file.toPath(), PosixFilePermissions
+              .asFileAttribute(ownerOnly));
+        }
+        else {
+          Files.createFile(file.toPath());
+        }
+        Files.write(file.toPath(), (hex + "\n").getBytes(UTF_8));
+      }
+      catch (FileAlreadyExistsException ex) {
+        // Created by another daemon; use its token.
+      }
+    }
+
+    if (posix && !ownerOnly.containsAll(Files.getPosixFilePermissions(file
+        .toPath()))) {
+      throw new IOException(format("Daemon token file [%s] must only be "
+          + "readable and writable by its owner (mode 0600).", file));
+    }
+
+    String value = new String(Files.readAllBytes(file.toPath()), UTF_8).trim();
+    if (value.isEmpty()) {
+      throw new IOException(format("Daemon token file [%s] is empty.", file));
+    }
+    return value;
+  }
+
+  /**
+   * An output stream that discards all output.
+   */
+  private static class NullOutputStream extends OutputStream {
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.OutputStream#write(int)
+     */
+    @Override
+    public void write(int b) {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  }
+}
@@ -0,0 +1,356 @@
+package org.mpilone.helmsman;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.lang.String.format;
+import static org.mpilone.helmsman.Strings.jsonQuote;
+
+/**
+ * Records the duration and result of every service script command and probe
+ * and the time each service waited for a free slot after it was ready to
+ * execute. The metrics can be written in the Prometheus text format (e.g. for
+ * the node exporter textfile collector) or as a JSON summary. Recording is
+ * thread safe and only takes a short lock on the recorded series.
+ *
+ * @author mpilone
+ */
+public class Metrics {
+
+  /**
+   * The upper bounds of the histogram buckets in seconds. Script commands
+   * range from milliseconds for a status check to minutes for a slow start.
+   */
+  private static final double[] BUCKETS = {0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5,
+    5, 10, 30, 60, 120, 300};
+
+  /**
+   * The UTF-8 character set.
+   */
+  private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * The command series by service name and command.
+   */
+  private final ConcurrentMap<List<String>, Series> commands
+      = new ConcurrentHashMap<List<String>, Series>();
+
+  /**
+   * The queue wait series by service name.
+   */
+  private final ConcurrentMap<String, Series> queueWaits
+      = new ConcurrentHashMap<String, Series>();
+
+  /**
+   * The history to record the durations of successful commands in or null.
+   */
+  private volatile DurationHistory history;
+
+  /**
+   * Sets the history to record the durations of successful commands in.
+   *
+   * @param history the history or null
+   */
+  public void setHistory(DurationHistory history) {
+    this.history = history;
+  }
+
+  /**
+   * Records the completion of a script command or probe.
+   *
+   * @param service the name of the service
+   * @param command the command (e.g. start or probe)
+   * @param nanos the duration in nanoseconds
+   * @param exitValue the exit value of the script or -1 if it failed to
+   * execute
+   * @param timedOut true if the command was killed after timing out
+   */
+  public void recordCommand(String service, String command, long nanos,
+      int exitValue, boolean timedOut) {
+    List<String> key = Arrays.asList(service, command);
+
+    Series series = commands.get(key);
+    if (series == null) {
+      commands.putIfAbsent(key, new Series());
+      series = commands.get(key);
+    }
+    series.record(nanos, exitValue, timedOut);
+
+    // Failures are often much faster or slower than normal so only successful
+    // commands are expected to predict the next run.
+    DurationHistory h = history;
+    if (h != null && exitValue == 0 && !timedOut) {
+      h.record(service, command, nanos);
+    }
+  }
+
+  /**
+   * Records the time a service waited for a free slot after it was ready to
+   * execute.
+   *
+   * @param service the name of the service
+   * @param nanos the wait in nanoseconds
+   */
+  public void recordQueueWait(String service, long nanos) {
+    Series series = queueWaits.get(service);
+    if (series == null) {
+      queueWaits.putIfAbsent(service, new Series());
+      series = queueWaits.get(service);
+    }
+    series.record(nanos, 0, false);
+  }
+
+  /**
+   * Writes the metrics in the Prometheus text exposition format.
+   *
+   * @param out the writer to write to
+   */
+  public void writePrometheus(PrintWriter out) {
+    SortedMap<String, Snapshot> sorted = new TreeMap<String, Snapshot>();
+    for (Map.Entry<List<String>, Series> entry : commands.entrySet()) {
+      sorted.put(format("service=%s,command=%s", promQuote(entry.getKey()
+          .get(0)), promQuote(entry.getKey().get(1))), entry.getValue()
+          .snapshot());
+    }
+
+    out.print("# HELP helmsman_command_duration_seconds Duration of service "
+        + "script commands and probes.\n");
+    out.print("# TYPE helmsman_command_duration_seconds histogram\n");
+    for (Map.Entry<String, Snapshot> entry : sorted.entrySet()) {
+      entry.getValue().writeHistogram(out,
+          "helmsman_command_duration_seconds", entry.getKey());
+    }
+
+    out.print("# HELP helmsman_command_exit_total Number of commands by exit "
+        + "value (-1 if the script failed to execute).\n");
+    out.print("# TYPE helmsman_command_exit_total counter\n");
+    for (Map.Entry<String, Snapshot> entry : sorted.entrySet()) {
+      for (Map.Entry<Integer, Long> exit : entry.getValue().exits
+          .entrySet()) {
+        out.print(format("helmsman_command_exit_total{%s,exit=\"%d\"} %d\n",
+            entry.getKey(), exit.getKey(), exit.getValue()));
+      }
+    }
+
+    out.print("# HELP helmsman_command_timeouts_total Number of commands "
+        + "killed after timing out.\n");
+    out.print("# TYPE helmsman_command_timeouts_total counter\n");
+    for (Map.Entry<String, Snapshot> entry : sorted.entrySet()) {
+      out.print(format("helmsman_command_timeouts_total{%s} %d\n", entry
+          .getKey(), entry.getValue().timeouts));
+    }
+
+    out.print("# HELP helmsman_queue_wait_seconds Time services waited for a "
+        + "free slot after they were ready to execute.\n");
+    out.print("# TYPE helmsman_queue_wait_seconds histogram\n");
+    for (String service : new TreeSet<String>(queueWaits.keySet())) {
+      queueWaits.get(service).snapshot().writeHistogram(out,
+          "helmsman_queue_wait_seconds", "service=" + promQuote(service));
+    }
+
+    out.flush();
+  }
+
+  /**
+   * Writes a JSON summary of the metrics with the count, total, maximum, and
+   * last result of each command of each service.
+   *
+   * @param out the writer to write to
+   */
+  public void writeJson(PrintWriter out) {
+    SortedMap<String, SortedMap<String, Series>> services
+        = new TreeMap<String, SortedMap<String, Series>>();
+    for (Map.Entry<List<String>, Series> entry : commands.entrySet()) {
+      String service = entry.getKey().get(0);
+      if (!services.containsKey(service)) {
+        services.put(service, new TreeMap<String, Series>());
+      }
+      services.get(service).put(entry.getKey().get(1), entry.getValue());
+    }
+    for (String service : queueWaits.keySet()) {
+      if (!services.containsKey(service)) {
+        services.put(service, new TreeMap<String, Series>());
+      }
+    }
+
+    out.print("{\"services\":{");
+    String serviceSeparator = "";
+    for (Map.Entry<String, SortedMap<String, Series>> service : services
+        .entrySet()) {
+      out.print(serviceSeparator + jsonQuote(service.getKey()) + ":{");
+      serviceSeparator = ",";
+
+      out.print("\"commands\":{");
+      String commandSeparator = "";
+      for (Map.Entry<String, Series> command : service.getValue().entrySet()) {
+        Snapshot s = command.getValue().snapshot();
+        out.print(format("%s%s:{\"count\":%d,\"totalSeconds\":%s,"
+            + "\"maxSeconds\":%s,\"timeouts\":%d,\"lastSeconds\":%s,"
+            + "\"lastExit\":%d,\"lastTimedOut\":%s}", commandSeparator,
+            jsonQuote(command.getKey()), s.count, seconds(s.sum),
+            seconds(s.max), s.timeouts, seconds(s.last), s.lastExit,
+            s.lastTimedOut));
+        commandSeparator = ",";
+      }
+      out.print("}");
+
+      Series wait = queueWaits.get(service.getKey());
+      if (wait != null) {
+        Snapshot s = wait.snapshot();
+        out.print(format(",\"queueWait\":{\"count\":%d,\"totalSeconds\":%s,"
+            + "\"maxSeconds\":%s}", s.count, seconds(s.sum), seconds(s.max)));
+      }
+      out.print("}");
+    }
+    out.print("}}\n");
+
+    out.flush();
+  }
+
+  /**
+   * Writes the metrics to the given file in either the Prometheus text format
+   * or JSON. The file is replaced atomically so a collector never reads a
+   * partial file.
+   *
+   * @param file the file to write
+   * @param json true to write JSON, false to write the Prometheus format
+   * @throws IOException if the file cannot be written
+   */
+  public synchronized void write(File file, final boolean json) throws
+      IOException {
+    AtomicFile.writeText(file, UTF_8, new AtomicFile.TextContent() {
+      @Override
+      public void write(PrintWriter out) {
+        if (json) {
+          writeJson(out);
+        }
+        else {
+          writePrometheus(out);
+        }
+      }
+    });
+  }
+
+  /**
+   * Formats nanoseconds as seconds.
+   *
+   * @param nanos the nanoseconds
+   * @return the formatted seconds
+   */
+  private static String seconds(long nanos) {
+    return format(Locale.ROOT, "%.6f", nanos / 1e9);
+  }
+
+  /**
+   * Quotes a Prometheus label value.
+   *
+   * @param value the value to quote
+   * @return the quoted value
+   */
+  private static String promQuote(String value) {
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace(
+        "\n", "\\n") + "\"";
+  }
+
+  /**
+   * A histogram and result counts of a single series.
+   */
+  private static class Series {
+
+    private final long[] buckets = new long[BUCKETS.length];
+    private final Map<Integer, Long> exits = new TreeMap<Integer, Long>();
+    private long count;
+    private long sum;
+    private long max;
+    private long timeouts;
+    private long last;
+    private int lastExit;
+    private boolean lastTimedOut;
+
+    /**
+     * Records a single observation.
+     *
+     * @param nanos the duration in nanoseconds
+     * @param exitValue the exit value
+     * @param timedOut true if timed out
+     */
+    public synchronized void record(long nanos, int exitValue,
+        boolean timedOut) {
+      double seconds = nanos / 1e9;
+      for (int i = 0; i < BUCKETS.length; i++) {
+        if (seconds <= BUCKETS[i]) {
+          buckets[i]++;
+          break;
+        }
+      }
+
+      Long exitCount = exits.get(exitValue);
+      exits.put(exitValue, exitCount == null ? 1 : exitCount + 1);
+
+      count++;
+      sum += nanos;
+      max = Math.max(max, nanos);
+      timeouts += timedOut ? 1 : 0;
+      last = nanos;
+      lastExit = exitValue;
+      lastTimedOut = timedOut;
+    }
+
+    /**
+     * Returns a consistent copy of the series.
+     *
+     * @return the copy
+     */
+    public synchronized Snapshot snapshot() {
+      Snapshot s = new Snapshot();
+      s.buckets = buckets.clone();
+      s.exits = new TreeMap<Integer, Long>(exits);
+      s.count = count;
+      s.sum = sum;
+      s.max = max;
+      s.timeouts = timeouts;
+      s.last = last;
+      s.lastExit = lastExit;
+      s.lastTimedOut = lastTimedOut;
+      return s;
+    }
+  }
+
+  /**
+   * A consistent copy of a series used for writing.
+   */
+  private static class Snapshot {
+
+    private long[] buckets;
+    private Map<Integer, Long> exits;
+    private long count;
+    private long sum;
+    private long max;
+    private long timeouts;
+    private long last;
+    private int lastExit;
+    private boolean lastTimedOut;
+
+    /**
+     * Writes the series as a Prometheus histogram.
+     *
+     * @param out the writer to write to
+     * @param name the name of the metric
+     * @param labels the labels of the series
+     */
+    public void writeHistogram(PrintWriter out, String name, String labels) {
+      long cumulative = 0;
+      for (int i = 0; i < BUCKETS.length; i++) {
+        cumulative += buckets[i];
+        out.print(format(Locale.ROOT, "%s_bucket{%s,le=\"%s\"} %d\n", name,
+            labels, BUCKETS[i], cumulative));
+      }
+      out.print(format("%s_bucket{%s,le=\"+Inf\"} %d\n", name, labels, count));
+      out.print(format("%s_sum{%s} %s\n", name, labels, seconds(sum)));
+      out.print(format("%s_count{%s} %d\n", name, labels, count));
+    }
+  }
+}
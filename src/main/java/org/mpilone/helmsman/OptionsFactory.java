@@ -15,17 +15,27 @@ public class OptionsFactory {
   public final static String OPT_VERBOSE = "verbose";
   public final static String OPT_HELP = "help";
   public final static String OPT_PARALLEL = "parallel";
+  public final static String OPT_ENGINE = "engine";
+  public final static String OPT_TRACE = "trace";
+  public final static String OPT_OUTPUT = "output";
   public final static String OPT_QUIET = "quiet";
+  public final static String OPT_FAIL_FAST = "fail-fast";
+  public final static String OPT_CHANGED = "changed";
   public final static String OPT_START = "start";
   public final static String OPT_STOP = "stop";
   public final static String OPT_STATUS = "status";
   public final static String OPT_RESTART = "restart";
   public final static String OPT_BOUNCE = "bounce";
+  public final static String OPT_ROLLING_RESTART = "rolling-restart";
   public final static String OPT_SERVICES = "services";
   public final static String OPT_NOT_SERVICES = "not-services";
   public final static String OPT_GROUP = "group";
   public final static String OPT_NOT_GROUP = "not-group";
+  public final static String OPT_SELECT = "select";
   public final static String OPT_LIST_GROUPS = "list-groups";
+  public final static String OPT_DAEMON = "daemon";
+  public final static String OPT_SUPERVISE = "supervise";
+  public final static String OPT_METRICS = "metrics";
 
   /**
    * Constructs the definitions of supported command line options.
@@ -54,14 +64,49 @@ public class OptionsFactory {
             + "performing an action on all services.");
     options.addOption(opt);
 
+    opt
+        = new Option("e", OPT_FAIL_FAST, false, "Aborts a start or stop as "
+            + "soon as any service fails, cancelling the services still "
+            + "executing. Without this option only critical services abort.");
+    options.addOption(opt);
+
+    opt
+        = new Option("i", OPT_CHANGED, false, "Restarts only the selected "
+            + "services whose configuration or script changed since they "
+            + "were last started on this host.");
+    options.addOption(opt);
+
     opt
         = new Option("p", OPT_PARALLEL, false, "Enables parallel execution across "
-            + "services with the specified thread count. (default: available CPUs)");
+            + "services with the specified thread count or auto to adjust the "
+            + "count to the load on the host. (default: available CPUs)");
     opt.setArgs(1);
     opt.setOptionalArg(true);
     opt.setArgName("thread count");
     options.addOption(opt);
 
+    opt
+        = new Option("x", OPT_ENGINE, true, "Sets the engine used to execute "
+            + "service scripts: native or commons-exec. (default: native)");
+    opt.setArgs(1);
+    opt.setArgName("engine");
+    options.addOption(opt);
+
+    opt
+        = new Option("z", OPT_TRACE, true, "Writes a timeline of the command "
+            + "to the given file in the Chrome trace event format.");
+    opt.setArgs(1);
+    opt.setArgName("file");
+    options.addOption(opt);
+
+    opt
+        = new Option("f", OPT_OUTPUT, true, "Sets the format of the results: "
+            + "text or json (one JSON object per line as each service "
+            + "completes). (default: text)");
+    opt.setArgs(1);
+    opt.setArgName("format");
+    options.addOption(opt);
+
     // Command group
     OptionGroup optionGroup = new OptionGroup();
     optionGroup.setRequired(true);
@@ -90,11 +135,41 @@ public class OptionsFactory {
     opt = new Option("b", OPT_BOUNCE, false, "An alias for restart.");
     optionGroup.addOption(opt);
 
+    opt
+        = new Option("w", OPT_ROLLING_RESTART, false,
+            "Restarts named services or all services in the selected group "
+            + "in waves of the given size in start order, waiting for each "
+            + "wave to be up before the next. (default: 1)");
+    opt.setArgs(1);
+    opt.setOptionalArg(true);
+    opt.setArgName("batch size");
+    optionGroup.addOption(opt);
+
     opt
         = new Option("l", OPT_LIST_GROUPS, false,
             "Lists all the defined groups based on the configured services.");
     optionGroup.addOption(opt);
 
+    opt
+        = new Option("d", OPT_DAEMON, true,
+            "Runs as a resident daemon that accepts commands from clients on "
+            + "the given localhost port.");
+    opt.setArgs(1);
+    opt.setArgName("port");
+    optionGroup.addOption(opt);
+
+    opt
+        = new Option("u", OPT_SUPERVISE, false,
+            "Continuously checks named services or all services in the "
+            + "selected group and restarts any that go down.");
+    optionGroup.addOption(opt);
+
+    opt
+        = new Option("k", OPT_METRICS, false,
+            "Displays the metrics of all commands executed by the daemon in "
+            + "the Prometheus text format.");
+    optionGroup.addOption(opt);
+
     options.addOptionGroup(optionGroup);
 
     // Target group
@@ -131,6 +206,15 @@ public class OptionsFactory {
     opt.setArgName("group name");
     optionGroup.addOption(opt);
 
+    opt
+        = new Option("y", OPT_SELECT, true,
+            "The expression selecting the services to apply the action to. "
+            + "Groups, name=<service>, and name~<pattern> are combined with "
+            + "!, &, |, and parentheses (e.g. 'deploy & !standby').");
+    opt.setArgs(1);
+    opt.setArgName("expression");
+    optionGroup.addOption(opt);
+
     options.addOptionGroup(optionGroup);
 
     return options;
@@ -0,0 +1,426 @@
+package org.mpilone.helmsman;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.lang.String.format;
+
+/**
+ * Checks the status of a service inside the JVM rather than forking the
+ * service script. The supported probes are:
+ * <ul>
+ * <li>tcp:host:port - up if a connection can be opened</li>
+ * <li>http:url - up if a GET returns a 2xx or 3xx status</li>
+ * <li>pidfile:path - up if the process in the pid file is running</li>
+ * <li>file:path - up if the file exists</li>
+ * </ul>
+ * Network probes use asynchronous channels on a single shared thread so any
+ * number of probes can run at once. Host names are resolved on a separate pool
+ * so a slow name server never blocks the caller or the other probes, and the
+ * resolution counts against the probe timeout.
+ *
+ * @author mpilone
+ */
+public class Prober {
+
+  /**
+   * A callback notified when a probe completes.
+   *
+   * @author mpilone
+   */
+  public interface Callback {
+
+    /**
+     * Called exactly once when the probe completes. The call may be made
+     * from any thread.
+     *
+     * @param up true if the service is up
+     * @param message a description of the result for debugging
+     */
+    void probeComplete(boolean up, String message);
+  }
+
+  /**
+   * The US-ASCII character set used by HTTP headers.
+   */
+  private final static Charset US_ASCII = Charset.forName("US-ASCII");
+
+  /**
+   * The channel group running all network probes or null if not yet created.
+   */
+  private AsynchronousChannelGroup group;
+
+  /**
+   * The threads used to resolve the host names of network probes.
+   */
+  private final ExecutorService resolver = Executors.newCachedThreadPool(
+      new ProcessEngine.DaemonThreadFactory("helmsman-probe-resolver"));
+
+  /**
+   * The timer used to abort network probes that time out.
+   */
+  private final ScheduledExecutorService timer = Executors
+      .newSingleThreadScheduledExecutor(new ProcessEngine.DaemonThreadFactory(
+              "helmsman-probe-timer"));
+
+  /**
+   * Validates the given probe specification.
+   *
+   * @param spec the probe specification
+   * @throws IllegalArgumentException if the specification is invalid
+   */
+  public static void validate(String spec) {
+    String type = type(spec);
+    String target = target(spec);
+
+    if ("tcp".equals(type)) {
+      parseAddress(target);
+    }
+    else if ("http".equals(type)) {
+      URI uri = URI.create(target);
+      if (!"http".equals(uri.getScheme()) || uri.getHost() == null) {
+        throw new IllegalArgumentException(format(
+            "Probe [%s] must be an http URL.", spec));
+      }
+    }
+    else if (!"pidfile".equals(type) && !"file".equals(type)) {
+      throw new IllegalArgumentException(format(
+          "Probe [%s] has an unsupported type.", spec));
+    }
+  }
+
+  /**
+   * Executes the given probe asynchronously.
+   *
+   * @param spec the probe specification
+   * @param timeout the number of milliseconds to wait for a network probe
+   * @param callback the callback to notify when the probe completes
+   */
+  public void probe(String spec, long timeout, Callback callback) {
+    String type = type(spec);
+    String target = target(spec);
+
+    try {
+      if ("tcp".equals(type)) {
+        connect(parseAddress(target), null, timeout, callback);
+      }
+      else if ("http".equals(type)) {
+        URI uri = URI.create(target);
+        int port = uri.getPort() == -1 ? 80 : uri.getPort();
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty()
+            ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+          path += "?" + uri.getRawQuery();
+        }
+
+        String request = format("GET %s HTTP/1.0\r\nHost: %s\r\n"
+            + "Connection: close\r\n\r\n", path, uri.getHost());
+        connect(InetSocketAddress.createUnresolved(uri.getHost(), port),
+            request, timeout, callback);
+      }
+      else if ("pidfile".equals(type)) {
+        probePidFile(new File(target), callback);
+      }
+      else if ("file".equals(type)) {
+        boolean exists = new File(target).exists();
+        callback.probeComplete(exists, format("File [%s] %s.", target, exists
+            ? "exists" : "does not exist"));
+      }
+      else {
+        callback.probeComplete(false, format("Unsupported probe [%s].", spec));
+      }
+    }
+    catch (Exception ex) {
+      callback.probeComplete(false, format("Probe [%s] failed: %s", spec, ex
+          .getMessage()));
+    }
+  }
+
+  /**
+   * Checks that the process named in the pid file is running. The check uses
+   * /proc so it is only supported on systems that provide it.
+   *
+   * @param file the pid file
+   * @param callback the callback to notify
+   * @throws IOException if the pid file cannot be read
+   */
+  private void probePidFile(File file, Callback callback) throws IOException {
+    if (!file.exists()) {
+      callback.probeComplete(false, format("Pid file [%s] does not exist.",
+          file));
+      return;
+    }
+
+    String pid;
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      String line = reader.readLine();
+      pid = line == null ? "" : line.trim();
+    }
+    finally {
+      reader.close();
+    }
+
+    boolean running = pid.matches("\\d+") && new File("/proc/" + pid)
+        .exists();
+    callback.probeComplete(running, format("Process [%s] from pid file [%s] "
+        + "is %s.", pid, file, running ? "running" : "not running"));
+  }
+
+  /**
+   * Resolves and connects to the given address and optionally sends an HTTP
+   * request and checks the response status.
+   *
+   * @param address the unresolved address to connect to
+   * @param request the HTTP request to send or null to only connect
+   * @param timeout the number of milliseconds to wait
+   * @param callback the callback to notify
+   * @throws IOException if the channel cannot be opened
+   */
+  private void connect(final InetSocketAddress address, final String request,
+      long timeout, Callback callback) throws IOException {
+
+    final AsynchronousSocketChannel channel = AsynchronousSocketChannel.open(
+        getGroup());
+    final Result result = new Result(channel, callback);
+
+    result.timeoutFuture = timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        result.complete(false, format("Probe of [%s] timed out.", address));
+      }
+    }, timeout, TimeUnit.MILLISECONDS);
+
+    resolver.execute(new Runnable() {
+      @Override
+      public void run() {
+        InetSocketAddress resolved = new InetSocketAddress(address
+            .getHostString(), address.getPort());
+        if (resolved.isUnresolved()) {
+          result.complete(false, format("Unable to resolve host [%s].",
+              address.getHostString()));
+        }
+        else if (!result.isComplete()) {
+          connect(resolved, request, result);
+        }
+      }
+    });
+  }
+
+  /**
+   * Connects to the given resolved address and optionally sends an HTTP
+   * request and checks the response status.
+   *
+   * @param address the resolved address to connect to
+   * @param request the HTTP request to send or null to only connect
+   * @param result the result of the probe
+   */
+  private void connect(final InetSocketAddress address, final String request,
+      final Result result) {
+    result.channel.connect(address, null, new CompletionHandler<Void, Void>() {
+      @Override
+      public void completed(Void v, Void attachment) {
+        if (request == null) {
+          result.complete(true, format("Connected to [%s].", address));
+        }
+        else {
+          write(ByteBuffer.wrap(request.getBytes(US_ASCII)), result);
+        }
+      }
+
+      @Override
+      public void failed(Throwable ex, Void attachment) {
+        result.complete(false, format("Failed to connect to [%s]: %s",
+            address, ex.getMessage()));
+      }
+    });
+  }
+
+  /**
+   * Writes the request and then reads the response.
+   *
+   * @param buffer the request bytes
+   * @param result the result of the probe
+   */
+  private void write(final ByteBuffer buffer, final Result result) {
+    result.channel.write(buffer, null, new CompletionHandler<Integer, Void>() {
+      @Override
+      public void completed(Integer written, Void attachment) {
+        if (buffer.hasRemaining()) {
+          write(buffer, result);
+        }
+        else {
+          read(ByteBuffer.allocate(512), result);
+        }
+      }
+
+      @Override
+      public void failed(Throwable ex, Void attachment) {
+        result.complete(false, "Failed to send request: " + ex.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Reads the response until the status line is available.
+   *
+   * @param buffer the buffer holding the response read so far
+   * @param result the result of the probe
+   */
+  private void read(final ByteBuffer buffer, final Result result) {
+    result.channel.read(buffer, null, new CompletionHandler<Integer, Void>() {
+      @Override
+      public void completed(Integer read, Void attachment) {
+        String response = new String(buffer.array(), 0, buffer.position(),
+            US_ASCII);
+        int end = response.indexOf("\r\n");
+
+        if (end == -1 && read != -1 && buffer.hasRemaining()) {
+          read(buffer, result);
+          return;
+        }
+
+        String statusLine = end == -1 ? response : response.substring(0, end);
+        String[] parts = statusLine.split(" ");
+        boolean up = parts.length >= 2 && parts[0].startsWith("HTTP/")
+            && parts[1].matches("[23]\\d\\d");
+
+        result.complete(up, format("HTTP response [%s].", statusLine));
+      }
+
+      @Override
+      public void failed(Throwable ex, Void attachment) {
+        result.complete(false, "Failed to read response: " + ex.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Returns the channel group, creating it if needed.
+   *
+   * @return the channel group
+   * @throws IOException if the group cannot be created
+   */
+  private synchronized AsynchronousChannelGroup getGroup() throws IOException {
+    if (group == null) {
+      group = AsynchronousChannelGroup.withFixedThreadPool(1,
+          new ProcessEngine.DaemonThreadFactory("helmsman-probe"));
+    }
+    return group;
+  }
+
+  /**
+   * Returns the type portion of a probe specification.
+   *
+   * @param spec the probe specification
+   * @return the type
+   */
+  private static String type(String spec) {
+    int index = spec.indexOf(':');
+    if (index == -1) {
+      throw new IllegalArgumentException(format(
+          "Probe [%s] must be in the form type:target.", spec));
+    }
+    return spec.substring(0, index);
+  }
+
+  /**
+   * Returns the target portion of a probe specification. For http probes the
+   * target is the full URL.
+   *
+   * @param spec the probe specification
+   * @return the target
+   */
+  private static String target(String spec) {
+    String type = type(spec);
+    return "http".equals(type) ? spec : spec.substring(type.length() + 1);
+  }
+
+  /**
+   * Parses a host:port address without resolving the host name.
+   *
+   * @param target the address
+   * @return the unresolved socket address
+   */
+  private static InetSocketAddress parseAddress(String target) {
+    int index = target.lastIndexOf(':');
+    if (index <= 0) {
+      throw new IllegalArgumentException(format(
+          "Probe address [%s] must be in the form host:port.", target));
+    }
+
+    String host = target.substring(0, index);
+    int port = Integer.parseInt(target.substring(index + 1));
+    return InetSocketAddress.createUnresolved(host, port);
+  }
+
+  /**
+   * The result of a network probe which ensures the callback is only
+   * notified once and the channel is closed.
+   */
+  private static class Result {
+
+    private final AsynchronousSocketChannel channel;
+    private final Callback callback;
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private volatile Future<?> timeoutFuture;
+
+    /**
+     * Constructs the result.
+     *
+     * @param channel the channel of the probe
+     * @param callback the callback to notify
+     */
+    public Result(AsynchronousSocketChannel channel, Callback callback) {
+      this.channel = channel;
+      this.callback = callback;
+    }
+
+    /**
+     * Returns true if the probe is complete.
+     *
+     * @return true if complete
+     */
+    public boolean isComplete() {
+      return completed.get();
+    }
+
+    /**
+     * Completes the probe if not already complete.
+     *
+     * @param up true if the service is up
+     * @param message a description of the result
+     */
+    public void complete(boolean up, String message) {
+      if (completed.compareAndSet(false, true)) {
+        Future<?> future = timeoutFuture;
+        if (future != null) {
+          future.cancel(false);
+        }
+
+        try {
+          channel.close();
+        }
+        catch (IOException ex) {
+          // Ignore
+        }
+        callback.probeComplete(up, message);
+      }
+    }
+  }
+}
@@ -0,0 +1,678 @@
+package org.mpilone.helmsman;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.exec.*;
+import org.apache.commons.exec.environment.EnvironmentUtils;
+
+/**
+ * An engine that launches and monitors the service script processes.
+ *
+ * @author mpilone
+ */
+public interface ProcessEngine {
+
+  /**
+   * A handler notified when a process completes.
+   *
+   * @author mpilone
+   */
+  public interface Handler {
+
+    /**
+     * Called when the process exits. The call may be made from any thread.
+     *
+     * @param exitValue the exit value of the process
+     * @param timedOut true if the process was killed because it timed out
+     */
+    void processComplete(int exitValue, boolean timedOut);
+
+    /**
+     * Called when the process could not be executed or monitored. The call
+     * may be made from any thread.
+     *
+     * @param ex the failure
+     */
+    void processFailed(Exception ex);
+  }
+
+  /**
+   * A handle to an executing process.
+   *
+   * @author mpilone
+   */
+  public interface Execution {
+
+    /**
+     * Kills the process and all of its descendants. The handler is notified
+     * as usual when the process exits. Calls after the process exits are
+     * ignored.
+     */
+    void cancel();
+  }
+
+  /**
+   * Executes the given command line asynchronously. The current process
+   * environment is inherited and merged with the given environment. The
+   * given input, if any, is written to the input of the process which is then
+   * closed. All output of the process (stdout and stderr) is written to the
+   * given output stream. If the process times out, it is killed along with all
+   * of its descendants.
+   *
+   * @param args the command line to execute, starting with the executable
+   * @param environment the additional environment variables
+   * @param input the bytes to write to the process input or null for no input
+   * @param timeout the number of milliseconds to wait before killing the
+   * process
+   * @param out the output stream to write the process output to
+   * @param handler the handler to notify when the process completes
+   * @return the handle to cancel the process
+   * @throws IOException if the process could not be started
+   */
+  Execution execute(List<String> args, Map<String, String> environment,
+      byte[] input, long timeout, OutputStream out, Handler handler) throws
+      IOException;
+
+  /**
+   * An engine based on commons-exec. Each process uses its own executor,
+   * watchdog, and stream pumper threads.
+   *
+   * @author mpilone
+   */
+  public static class CommonsExec implements ProcessEngine {
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helmsman.ProcessEngine#execute(java.util.List,
+     * java.util.Map, byte[], long, java.io.OutputStream,
+     * org.mpilone.helmsman.ProcessEngine.Handler)
+     */
+    @Override
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public Execution execute(List<String> args,
+        Map<String, String> environment, byte[] input, long timeout,
+        OutputStream out, final Handler handler) throws IOException {
+
+      // Create the command to run.
+      org.apache.commons.exec.CommandLine cmdLine
+          = new org.apache.commons.exec.CommandLine(args.get(0));
+      for (String arg : args.subList(1, args.size())) {
+        cmdLine.addArgument(arg);
+      }
+
+      // Merge the current environment with the service specific environment.
+      Map env = EnvironmentUtils.getProcEnvironment();
+      env.putAll(environment);
+
+      // Remove generated environment variables. This seems like a hack, but
+      // the JVM appears to generate values for these variables even if they
+      // are not set in the processes original environment. The variables
+      // cause problems if they are passed to sub-processes, especially if the
+      // sub-process is in a different version of the JVM. Refer to
+      // http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4953367.
+      env.remove("NLSPATH");
+      env.remove("XFILESEARCHPATH");
+
+      final TreeWatchdog watchdog = new TreeWatchdog(timeout);
+
+      // Create and configure the executor.
+      final Executor executor = new DefaultExecutor();
+      executor.setStreamHandler(new PumpStreamHandler(out, out, input == null
+          ? null : new ByteArrayInputStream(input)));
+      executor.setExitValue(0);
+      executor.setWatchdog(watchdog);
+
+      // Execute the script.
+      executor.execute(cmdLine, env, new ExecuteResultHandler() {
+        @Override
+        public void onProcessComplete(int exitValue) {
+          handler.processComplete(exitValue, false);
+        }
+
+        @Override
+        public void onProcessFailed(ExecuteException ex) {
+          if (ex.getExitValue() == Executor.INVALID_EXITVALUE) {
+            handler.processFailed(ex);
+          }
+          else {
+            handler.processComplete(ex.getExitValue(), watchdog
+                .killedProcess() && !watchdog.cancelled);
+          }
+        }
+      });
+
+      return watchdog;
+    }
+
+    /**
+     * A watchdog that kills the descendants of the process along with the
+     * process and can be cancelled.
+     */
+    private static class TreeWatchdog extends ExecuteWatchdog implements
+        Execution {
+
+      private Process process;
+      private volatile boolean cancelled;
+
+      /**
+       * Constructs the watchdog.
+       *
+       * @param timeout the number of milliseconds to wait before killing the
+       * process
+       */
+      public TreeWatchdog(long timeout) {
+        super(timeout);
+      }
+
+      /*
+       * (non-Javadoc)
+       *
+       * @see org.apache.commons.exec.ExecuteWatchdog#start(java.lang.Process)
+       */
+      @Override
+      public synchronized void start(Process process) {
+        this.process = process;
+        super.start(process);
+
+        if (cancelled) {
+          destroyProcess();
+        }
+      }
+
+      /*
+       * (non-Javadoc)
+       *
+       * @see
+       * org.apache.commons.exec.ExecuteWatchdog#timeoutOccured(org.apache.
+       * commons.exec.Watchdog)
+       */
+      @Override
+      public synchronized void timeoutOccured(Watchdog w) {
+        // The descendants must be found before the process is killed and
+        // they are reparented.
+        List<Object> descendants = ProcessTree.descendants(process);
+        super.timeoutOccured(w);
+        ProcessTree.destroy(descendants);
+      }
+
+      /*
+       * (non-Javadoc)
+       *
+       * @see org.mpilone.helmsman.ProcessEngine.Execution#cancel()
+       */
+      @Override
+      public synchronized void cancel() {
+        // Destroying the process before it starts would block until it
+        // starts so a cancel before the start is applied by start.
+        cancelled = true;
+        if (process != null) {
+          destroyProcess();
+        }
+      }
+    }
+  }
+
+  /**
+   * An engine based on {@link ProcessBuilder} that monitors all processes
+   * with a single shared reaper thread so the number of threads stays the
+   * same no matter how many processes run at once. The reaper copies the
+   * output that is available from every process without blocking on any of
+   * them. On Java 9 or later the exit of a process is signaled by the JVM
+   * with {@code Process.onExit()} as soon as it happens. On older versions
+   * the reaper checks for exits each time it copies the output. The handlers
+   * are notified on a small shared pool so a slow handler never delays the
+   * reaper. Timeouts are enforced with a single shared timer thread.
+   *
+   * @author mpilone
+   */
+  public static class Native implements ProcessEngine {
+
+    /**
+     * The number of milliseconds the reaper waits between copying the
+     * output of the processes. The output still available when a process
+     * exits is copied immediately so the interval only limits how quickly a
+     * process writing more than the pipe holds can continue.
+     */
+    private static final long PUMP_INTERVAL = 5;
+
+    /**
+     * The number of threads that notify handlers and write process input.
+     */
+    private static final int CALLBACK_THREADS = 4;
+
+    private static final Method ON_EXIT;
+    private static final Method THEN_RUN_ASYNC;
+
+    static {
+      Method onExit = null;
+      Method thenRunAsync = null;
+      try {
+        onExit = Process.class.getMethod("onExit");
+        thenRunAsync = Class.forName("java.util.concurrent.CompletableFuture")
+            .getMethod("thenRunAsync", Runnable.class,
+                java.util.concurrent.Executor.class);
+      }
+      catch (Exception ex) {
+        onExit = null;
+      }
+
+      ON_EXIT = onExit;
+      THEN_RUN_ASYNC = thenRunAsync;
+    }
+
+    /**
+     * The threads that notify handlers and write process input.
+     */
+    private final ExecutorService callbacks = Executors.newFixedThreadPool(
+        CALLBACK_THREADS, new DaemonThreadFactory("helmsman-process"));
+
+    /**
+     * The timer used to kill processes that time out.
+     */
+    private final ScheduledExecutorService timer
+        = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+                "helmsman-timer"));
+
+    /**
+     * The processes started since the reaper last looked.
+     */
+    private final BlockingQueue<Running> started
+        = new LinkedBlockingQueue<Running>();
+
+    /**
+     * Constructs the engine and starts the reaper.
+     */
+    public Native() {
+      new DaemonThreadFactory("helmsman-reaper").newThread(new Runnable() {
+        @Override
+        public void run() {
+          reap();
+        }
+      }).start();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helmsman.ProcessEngine#execute(java.util.List,
+     * java.util.Map, byte[], long, java.io.OutputStream,
+     * org.mpilone.helmsman.ProcessEngine.Handler)
+     */
+    @Override
+    public Execution execute(List<String> args,
+        Map<String, String> environment, final byte[] input, long timeout,
+        OutputStream out, Handler handler) throws IOException {
+
+      ProcessBuilder builder = new ProcessBuilder(args);
+      builder.redirectErrorStream(true);
+
+      // ProcessBuilder already inherits the current environment. The
+      // generated variables are removed for the same reason as in
+      // CommonsExec.
+      Map<String, String> env = builder.environment();
+      env.putAll(environment);
+      env.remove("NLSPATH");
+      env.remove("XFILESEARCHPATH");
+
+      final Running process = new Running(builder.start(), out, handler);
+      if (input == null) {
+        process.process.getOutputStream().close();
+      }
+      else {
+        // The input may be larger than the pipe so it is written on the pool
+        // rather than blocking the caller until the process reads it.
+        callbacks.execute(new Runnable() {
+          @Override
+          public void run() {
+            OutputStream stdin = process.process.getOutputStream();
+            try {
+              stdin.write(input);
+            }
+            catch (IOException ex) {
+              // The process exited without reading all of its input.
+            }
+            finally {
+              try {
+                stdin.close();
+              }
+              catch (IOException ex) {
+                // Ignore
+              }
+            }
+          }
+        });
+      }
+
+      process.timeoutFuture = timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          process.timedOut = true;
+          ProcessTree.destroy(process.process);
+        }
+      }, timeout, TimeUnit.MILLISECONDS);
+
+      started.add(process);
+
+      if (ON_EXIT != null) {
+        try {
+          Runnable complete = new Runnable() {
+            @Override
+            public void run() {
+              process.complete();
+            }
+          };
+          THEN_RUN_ASYNC.invoke(ON_EXIT.invoke(process.process), complete,
+              callbacks);
+        }
+        catch (Exception ex) {
+          // The reaper notices the exit instead.
+          process.polled = true;
+        }
+      }
+      else {
+        process.polled = true;
+      }
+
+      return process;
+    }
+
+    /**
+     * Copies the available output of every running process until it
+     * completes and, if the exits aren't signaled, notices the processes that
+     * exited. The reaper blocks while no processes are running.
+     */
+    private void reap() {
+      List<Running> running = new ArrayList<Running>();
+      try {
+        while (true) {
+          if (running.isEmpty()) {
+            running.add(started.take());
+          }
+          started.drainTo(running);
+
+          for (Iterator<Running> iter = running.iterator(); iter.hasNext();) {
+            final Running process = iter.next();
+            if (!process.pump()) {
+              iter.remove();
+            }
+            else if (process.polled && process.isExited()) {
+              iter.remove();
+              callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                  process.complete();
+                }
+              });
+            }
+          }
+
+          Thread.sleep(PUMP_INTERVAL);
+        }
+      }
+      catch (InterruptedException ex) {
+        // Exit
+      }
+    }
+
+    /**
+     * A running process.
+     */
+    private static class Running implements Execution {
+
+      private final Process process;
+      private final OutputStream out;
+      private final Handler handler;
+      private final byte[] buffer = new byte[8192];
+
+      /**
+       * True once the handler was notified after which the process is no
+       * longer pumped.
+       */
+      private boolean finished;
+
+      /**
+       * True if the reaper must check for the exit of the process because
+       * it isn't signaled.
+       */
+      private volatile boolean polled;
+
+      private volatile boolean timedOut;
+      private volatile Future<?> timeoutFuture;
+
+      /**
+       * Constructs the running process.
+       *
+       * @param process the process
+       * @param out the output stream to pump output to
+       * @param handler the handler to notify on completion
+       */
+      public Running(Process process, OutputStream out, Handler handler) {
+        this.process = process;
+        this.out = out;
+        this.handler = handler;
+      }
+
+      /**
+       * Copies the output of the process that can be read without blocking.
+       *
+       * @return false if the process completed and is no longer pumped
+       */
+      public synchronized boolean pump() {
+        if (finished) {
+          return false;
+        }
+
+        InputStream in = process.getInputStream();
+        try {
+          int available;
+          while ((available = in.available()) > 0) {
+            int read = in.read(buffer, 0, Math.min(available, buffer.length));
+            if (read == -1) {
+              break;
+            }
+            out.write(buffer, 0, read);
+          }
+        }
+        catch (IOException ex) {
+          // The stream was closed. Any remaining output is lost.
+        }
+        return true;
+      }
+
+      /**
+       * Returns true if the process exited.
+       *
+       * @return true if exited
+       */
+      public boolean isExited() {
+        try {
+          process.exitValue();
+          return true;
+        }
+        catch (IllegalThreadStateException ex) {
+          return false;
+        }
+      }
+
+      /**
+       * Copies the rest of the output of the exited process and notifies the
+       * handler. Output written later by a background child of the process
+       * that still holds the output open is discarded.
+       */
+      public void complete() {
+        Future<?> future = timeoutFuture;
+        if (future != null) {
+          future.cancel(false);
+        }
+
+        synchronized (this) {
+          if (!pump()) {
+            return;
+          }
+          finished = true;
+          try {
+            out.flush();
+          }
+          catch (IOException ex) {
+            // Ignore
+          }
+          try {
+            process.getInputStream().close();
+          }
+          catch (IOException ex) {
+            // Ignore
+          }
+        }
+
+        try {
+          handler.processComplete(process.exitValue(), timedOut);
+        }
+        catch (RuntimeException ex) {
+          handler.processFailed(ex);
+        }
+      }
+
+      /*
+       * (non-Javadoc)
+       *
+       * @see org.mpilone.helmsman.ProcessEngine.Execution#cancel()
+       */
+      @Override
+      public void cancel() {
+        if (!isExited()) {
+          ProcessTree.destroy(process);
+        }
+      }
+    }
+  }
+
+  /**
+   * Kills processes along with their descendants so a script's children
+   * don't outlive a cancelled or timed out script. The descendants are found
+   * with the ProcessHandle API when running on Java 9 or later. On older
+   * versions only the process itself is killed.
+   *
+   * @author mpilone
+   */
+  static class ProcessTree {
+
+    private static final Method DESCENDANTS;
+    private static final Method TO_ARRAY;
+    private static final Method DESTROY;
+
+    static {
+      Method descendants = null;
+      Method toArray = null;
+      Method destroy = null;
+      try {
+        descendants = Process.class.getMethod("descendants");
+        toArray = Class.forName("java.util.stream.Stream").getMethod(
+            "toArray");
+        destroy = Class.forName("java.lang.ProcessHandle").getMethod(
+            "destroy");
+      }
+      catch (Exception ex) {
+        descendants = null;
+      }
+
+      DESCENDANTS = descendants;
+      TO_ARRAY = toArray;
+      DESTROY = destroy;
+    }
+
+    /**
+     * Kills the process and all of its descendants.
+     *
+     * @param process the process to kill
+     */
+    public static void destroy(Process process) {
+      // The descendants must be found before the process is killed and they
+      // are reparented.
+      List<Object> descendants = descendants(process);
+      process.destroy();
+      destroy(descendants);
+    }
+
+    /**
+     * Returns the handles of all the descendants of the process.
+     *
+     * @param process the process or null
+     * @return the descendant process handles which is empty if not supported
+     */
+    public static List<Object> descendants(Process process) {
+      if (process == null || DESCENDANTS == null) {
+        return Collections.emptyList();
+      }
+
+      try {
+        return Arrays.asList((Object[]) TO_ARRAY.invoke(DESCENDANTS.invoke(
+            process)));
+      }
+      catch (Exception ex) {
+        return Collections.emptyList();
+      }
+    }
+
+    /**
+     * Kills the processes with the given handles.
+     *
+     * @param handles the process handles returned by
+     * {@link #descendants(java.lang.Process)}
+     */
+    public static void destroy(List<Object> handles) {
+      for (Object handle : handles) {
+        try {
+          DESTROY.invoke(handle);
+        }
+        catch (Exception ex) {
+          // The process may have already exited.
+        }
+      }
+    }
+  }
+
+  /**
+   * A thread factory that creates named daemon threads so the engines never
+   * keep the JVM alive.
+   *
+   * @author mpilone
+   */
+  static class DaemonThreadFactory implements ThreadFactory {
+
+    private final String name;
+
+    /**
+     * Constructs the factory.
+     *
+     * @param name the name of the threads
+     */
+    public DaemonThreadFactory(String name) {
+      this.name = name;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+     */
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, name);
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,426 @@
+package org.mpilone.helmsman;
+
+import java.util.*;
+
+import static java.lang.String.format;
+import static org.mpilone.helmsman.Strings.*;
+
+/**
+ * A sink for the progress and results of executing tasks. The result of each
+ * task is reported as soon as the task completes so the output of a command
+ * streams rather than waiting for the slowest task. All calls are made from
+ * the thread executing the tasks.
+ *
+ * @author mpilone
+ */
+public interface ResultPrinter {
+
+  /**
+   * Called before any task is started.
+   *
+   * @param names the names of all the tasks to be executed
+   */
+  void begin(Collection<String> names);
+
+  /**
+   * Called when a task is started.
+   *
+   * @param name the name of the task
+   */
+  void taskStarted(String name);
+
+  /**
+   * Called when a task completes.
+   *
+   * @param name the name of the task
+   * @param success true if the task was successful
+   */
+  void taskComplete(String name, boolean success);
+
+  /**
+   * Called when a task will never be started because a task it depends on
+   * failed or execution was aborted.
+   *
+   * @param name the name of the task
+   */
+  void taskSkipped(String name);
+
+  /**
+   * Called when execution is aborted because a critical task failed. The
+   * remaining tasks are reported as skipped or, if they were executing,
+   * complete unsuccessfully after they are cancelled.
+   *
+   * @param name the name of the critical task that failed
+   */
+  void aborted(String name);
+
+  /**
+   * Called periodically while waiting for a task to complete.
+   */
+  void waiting();
+
+  /**
+   * Called after all tasks are complete.
+   *
+   * @param results the map of task name to success status
+   */
+  void end(Map<String, Boolean> results);
+
+  /**
+   * Prints human readable results. If parallel, a summary line is printed
+   * when execution begins and each result is printed on a new line, prefixed
+   * with the task name, as each task completes. If not parallel, each task is
+   * printed on its own line as it starts, followed by the result when it
+   * completes.
+   *
+   * @author mpilone
+   */
+  public static class Text implements ResultPrinter {
+
+    /**
+     * The width to pad the action and task name to.
+     */
+    private static final int PADDING_WIDTH = 50;
+
+    private final UserIo userIo;
+    private final String action;
+    private final String successCaption;
+    private final String failCaption;
+    private final boolean parallelFormat;
+
+    /**
+     * True while the summary line of the parallel format has not been ended.
+     */
+    private boolean summaryOpen;
+
+    /**
+     * Constructs the printer.
+     *
+     * @param userIo the User IO to print to
+     * @param action the action being performed (e.g. "Starting")
+     * @param successCaption the caption if the task was successful
+     * @param failCaption the caption if the task failed
+     * @param parallelFormat true to print the parallel format
+     */
+    public Text(UserIo userIo, String action, String successCaption,
+        String failCaption, boolean parallelFormat) {
+      this.userIo = userIo;
+      this.action = action;
+      this.successCaption = successCaption;
+      this.failCaption = failCaption;
+      this.parallelFormat = parallelFormat;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.mpilone.helmsman.ResultPrinter#begin(java.util.Collection)
+     */
+    @Override
+    public void begin(Collection<String> names) {
+      if (parallelFormat) {
+        userIo.print(padRight(action + " " + join(summarize(names, 3)), ".",
+            PADDING_WIDTH));
+        summaryOpen = true;
+      }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.mpilone.helmsman.ResultPrinter#taskStarted(java.lang.String)
+     */
+    @Override
+    public void taskStarted(String name) {
+      if (!parallelFormat) {
+        userIo.print(padRight(action + " " + name, ".", PADDING_WIDTH));
+      }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.mpilone.helmsman.ResultPrinter#taskComplete(java.lang.String,
+     * boolean)
+     */
+    @Override
+    public void taskComplete(String name, boolean success) {
+      String resultCaption = success ? successCaption : failCaption;
+
+      if (!parallelFormat) {
+        userIo.println(resultCaption);
+        return;
+      }
+
+      endSummary();
+      userIo.println(format("\t%s%s", padRight(name, ".", 20), resultCaption));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.mpilone.helmsman.ResultPrinter#taskSkipped(java.lang.String)
+     */
+    @Override
+    public void taskSkipped(String name) {
+      taskStarted(name);
+      taskComplete(name, false);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.mpilone.helmsman.ResultPrinter#aborted(java.lang.String)
+     */
+    @Override
+    public void aborted(String name) {
+      endSummary();
+      userIo.println(format("Aborting because critical service [%s] failed.",
+          name));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.mpilone.helmsman.ResultPrinter#waiting()
+     */
+    @Override
+    public void waiting() {
+      if (!parallelFormat || summaryOpen) {
+        userIo.print(".");
+      }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.mpilone.helmsman.ResultPrinter#end(java.util.Map)
+     */
+    @Override
+    public void end(Map<String, Boolean> results) {
+      if (summaryOpen) {
+        userIo.println("done");
+        summaryOpen = false;
+      }
+    }
+
+    /**
+     * Ends the summary line of the parallel format if it is still open. The
+     * progress dots stay on the summary line until the first result.
+     */
+    private void endSummary() {
+      if (summaryOpen) {
+        userIo.println();
+        summaryOpen = false;
+      }
+    }
+  }
+
+  /**
+   * Prints newline delimited JSON (one object per line) for automation. A
+   * "begin" event lists the tasks, a "result" event is printed as each task
+   * completes or is skipped, an "abort" event is printed if a critical task
+   * fails, and an "end" event summarizes the results. A command the user
+   * didn't confirm prints only an "abort" event with the reason "user". For
+   * example:
+   * <pre>
+   * {"event":"begin","action":"start","services":["a","b"]}
+   * {"event":"result","action":"start","service":"b","success":true,"status":"UP","skipped":false,"seconds":1.204}
+   * {"event":"result","action":"start","service":"a","success":false,"status":"FAILED","skipped":false,"seconds":0.031}
+   * {"event":"end","action":"start","succeeded":1,"failed":1}
+   * </pre>
+   *
+   * @author mpilone
+   */
+  public static class Json implements ResultPrinter {
+
+    private final UserIo userIo;
+    private final String action;
+    private final String successStatus;
+    private final String failStatus;
+
+    /**
+     * The time each executing task started in nanoseconds.
+     */
+    private final Map<String, Long> startTimes = new HashMap<String, Long>();
+
+    /**
+     * Constructs the printer.
+     *
+     * @param userIo the User IO to print to
+     * @param action the script command being performed (e.g. start)
+     * @param successStatus the status if the task was successful
+     * @param failStatus the status if the task failed
+     */
+    public Json(UserIo userIo, String action, String successStatus,
+        String failStatus) {
+      this.userIo = userIo;
+      this.action = action;
+      this.successStatus = successStatus;
+      this.failStatus = failStatus;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.mpilone.helmsman.ResultPrinter#begin(java.util.Collection)
+     */
+    @Override
+    public void begin(Collection<String> names) {
+      StringBuilder services = new StringBuilder();
+      for (String name : names) {
+        services.append(services.length() == 0 ? "" : ",").append(jsonQuote(
+            name));
+      }
+
+      userIo.println(format("{\"event\":\"begin\",\"action\":%s,"
+          + "\"services\":[%s]}", jsonQuote(action), services));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.mpilone.helmsman.ResultPrinter#taskStarted(java.lang.String)
+     */
+    @Override
+    public void taskStarted(String name) {
+      startTimes.put(name, System.nanoTime());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.mpilone.helmsman.ResultPrinter#taskComplete(java.lang.String,
+     * boolean)
+     */
+    @Override
+    public void taskComplete(String name, boolean success) {
+      long nanos = System.nanoTime() - startTimes.remove(name);
+      printResult(name, success, false, nanos);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.mpilone.helmsman.ResultPrinter#taskSkipped(java.lang.String)
+     */
+    @Override
+    public void taskSkipped(String name) {
+      printResult(name, false, true, 0);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.mpilone.helmsman.ResultPrinter#aborted(java.lang.String)
+     */
+    @Override
+    public void aborted(String name) {
+      userIo.println(format("{\"event\":\"abort\",\"action\":%s,"
+          + "\"service\":%s}", jsonQuote(action), jsonQuote(name)));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.mpilone.helmsman.ResultPrinter#waiting()
+     */
+    @Override
+    public void waiting() {
+      // Progress output would corrupt the stream.
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.mpilone.helmsman.ResultPrinter#end(java.util.Map)
+     */
+    @Override
+    public void end(Map<String, Boolean> results) {
+      int succeeded = 0;
+      for (Boolean success : results.values()) {
+        succeeded += success ? 1 : 0;
+      }
+
+      userIo.println(format("{\"event\":\"end\",\"action\":%s,"
+          + "\"succeeded\":%d,\"failed\":%d}", jsonQuote(action), succeeded,
+          results.size() - succeeded));
+    }
+
+    /**
+     * Prints a single result event.
+     *
+     * @param name the name of the task
+     * @param success true if the task was successful
+     * @param skipped true if the task was skipped
+     * @param nanos the duration of the task in nanoseconds
+     */
+    private void printResult(String name, boolean success, boolean skipped,
+        long nanos) {
+      userIo.println(format(Locale.ROOT, "{\"event\":\"result\",\"action\":%s,"
+          + "\"service\":%s,\"success\":%s,\"status\":%s,\"skipped\":%s,"
+          + "\"seconds\":%.3f}", jsonQuote(action), jsonQuote(name), success,
+          jsonQuote(success ? successStatus : failStatus), skipped, nanos
+          / 1e9));
+    }
+  }
+
+  /**
+   * Prints nothing. Used for tasks whose results are handled by the caller
+   * such as the health checks of a rolling restart.
+   *
+   * @author mpilone
+   */
+  public static class Quiet implements ResultPrinter {
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helmsman.ResultPrinter#begin(java.util.Collection)
+     */
+    @Override
+    public void begin(Collection<String> names) {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helmsman.ResultPrinter#taskStarted(java.lang.String)
+     */
+    @Override
+    public void taskStarted(String name) {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helmsman.ResultPrinter#taskComplete(java.lang.String,
+     * boolean)
+     */
+    @Override
+    public void taskComplete(String name, boolean success) {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helmsman.ResultPrinter#taskSkipped(java.lang.String)
+     */
+    @Override
+    public void taskSkipped(String name) {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helmsman.ResultPrinter#aborted(java.lang.String)
+     */
+    @Override
+    public void aborted(String name) {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helmsman.ResultPrinter#waiting()
+     */
+    @Override
+    public void waiting() {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helmsman.ResultPrinter#end(java.util.Map)
+     */
+    @Override
+    public void end(Map<String, Boolean> results) {
+    }
+  }
+}
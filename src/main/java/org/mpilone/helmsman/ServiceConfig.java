@@ -1,5 +1,6 @@
 package org.mpilone.helmsman;
 
+import java.io.Serializable;
 import java.util.*;
 
 /**
@@ -7,14 +8,27 @@ import java.util.*;
  *
  * @author mpilone
  */
-public class ServiceConfig {
+public class ServiceConfig implements Serializable {
+
+  /**
+   * Services are serialized in the configuration snapshot. Change the version
+   * whenever a field is added, removed, or changed.
+   */
+  private static final long serialVersionUID = 2L;
 
   private String script;
+  private String probe;
   private final Map<String, String> environment = new HashMap<String, String>();
   private final List<String> groups = new ArrayList<String>();
+  private final List<String> dependsOn = new ArrayList<String>();
   private String name;
   private int order = 1;
   private int timeout = 300;
+  private int checkInterval = 10;
+  private boolean critical;
+  private int weight = 1;
+  private boolean batchStatus;
+  private String protocol = "exec";
 
   public void setTimeout(int timeout) {
     this.timeout = timeout;
@@ -24,6 +38,46 @@ public class ServiceConfig {
     return timeout;
   }
 
+  public int getCheckInterval() {
+    return checkInterval;
+  }
+
+  public void setCheckInterval(int checkInterval) {
+    this.checkInterval = checkInterval;
+  }
+
+  public boolean isCritical() {
+    return critical;
+  }
+
+  public void setCritical(boolean critical) {
+    this.critical = critical;
+  }
+
+  public int getWeight() {
+    return weight;
+  }
+
+  public void setWeight(int weight) {
+    this.weight = weight;
+  }
+
+  public boolean isBatchStatus() {
+    return batchStatus;
+  }
+
+  public void setBatchStatus(boolean batchStatus) {
+    this.batchStatus = batchStatus;
+  }
+
+  public String getProtocol() {
+    return protocol;
+  }
+
+  public void setProtocol(String protocol) {
+    this.protocol = protocol;
+  }
+
   public Map<String, String> getEnvironment() {
     return environment;
   }
@@ -32,6 +86,10 @@ public class ServiceConfig {
     return groups;
   }
 
+  public List<String> getDependsOn() {
+    return dependsOn;
+  }
+
   public String getName() {
     return name;
   }
@@ -44,6 +102,14 @@ public class ServiceConfig {
     return script;
   }
 
+  public String getProbe() {
+    return probe;
+  }
+
+  public void setProbe(String probe) {
+    this.probe = probe;
+  }
+
   public void setName(String name) {
     this.name = name;
   }
@@ -56,4 +122,27 @@ public class ServiceConfig {
     this.order = priority;
   }
 
+  /**
+   * Returns true if the given service has the same name and configuration as
+   * this service.
+   *
+   * @param other the other service
+   * @return true if the configuration is the same
+   */
+  public boolean isSameConfig(ServiceConfig other) {
+    return Objects.equals(name, other.name)
+        && Objects.equals(script, other.script)
+        && Objects.equals(probe, other.probe)
+        && environment.equals(other.environment)
+        && groups.equals(other.groups)
+        && dependsOn.equals(other.dependsOn)
+        && order == other.order
+        && timeout == other.timeout
+        && checkInterval == other.checkInterval
+        && critical == other.critical
+        && weight == other.weight
+        && batchStatus == other.batchStatus
+        && Objects.equals(protocol, other.protocol);
+  }
+
 }
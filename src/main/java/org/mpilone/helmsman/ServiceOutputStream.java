@@ -3,20 +3,48 @@ package org.mpilone.helmsman;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
 /**
- * A simple output stream that writes all output using the {@link UserIo} at the
- * {@link UserIo.Level#DEBUG} level.
+ * An output stream that writes all output using the {@link UserIo} at the
+ * {@link UserIo.Level#DEBUG} level. Output is buffered and decoded a whole line
+ * at a time so multibyte characters are never split, and each line is prefixed
+ * with the service name. All the complete lines in a single write are passed
+ * to the user IO in one batch. A line longer than {@link #MAX_LINE_LENGTH}
+ * bytes is broken into multiple lines, at a character boundary, so a script
+ * that never writes a newline can't grow the buffer without bound. If debug
+ * output is disabled, the output is discarded without being decoded.
  *
  * @author mpilone
  */
 public class ServiceOutputStream extends OutputStream {
 
+  /**
+   * The maximum number of bytes buffered before a partial line is written as
+   * a line of its own.
+   */
+  static final int MAX_LINE_LENGTH = 8192;
+
   /**
    * The user IO to write to.
    */
   private UserIo userIo;
 
+  /**
+   * The prefix written before each line.
+   */
+  private final String prefix;
+
+  /**
+   * The buffer holding the current partial line.
+   */
+  private byte[] buffer = new byte[256];
+
+  /**
+   * The number of bytes in the buffer.
+   */
+  private int count;
+
   /**
    * The UTF-8 character set.
    */
@@ -26,9 +54,11 @@ public class ServiceOutputStream extends OutputStream {
    * Constructs the output stream.
    *
    * @param out the user IO to write to
+   * @param name the name of the service to prefix each line with
    */
-  public ServiceOutputStream(UserIo out) {
+  public ServiceOutputStream(UserIo out, String name) {
     this.userIo = out;
+    this.prefix = "[" + name + "] ";
   }
 
   /*
@@ -37,9 +67,171 @@ public class ServiceOutputStream extends OutputStream {
    * @see java.io.OutputStream#write(int)
    */
   @Override
-  public void write(int value) throws IOException {
-    userIo.print(new String(new byte[]{(byte) value}, UTF_8),
-        UserIo.Level.DEBUG);
+  public synchronized void write(int value) throws IOException {
+    if (!userIo.isLevelEnabled(UserIo.Level.DEBUG)) {
+      return;
+    }
+
+    StringBuilder lines = null;
+    if (value == '\n') {
+      lines = new StringBuilder();
+      appendLine(lines);
+    }
+    else {
+      if (count == MAX_LINE_LENGTH) {
+        lines = new StringBuilder();
+        breakLine(lines);
+      }
+      ensureCapacity(count + 1);
+      buffer[count++] = (byte) value;
+    }
+
+    if (lines != null) {
+      userIo.print(lines.toString(), UserIo.Level.DEBUG);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.io.OutputStream#write(byte[], int, int)
+   */
+  @Override
+  public synchronized void write(byte[] data, int offset, int length) throws
+      IOException {
+    if (!userIo.isLevelEnabled(UserIo.Level.DEBUG)) {
+      return;
+    }
+
+    StringBuilder lines = null;
+    int start = offset;
+    int end = offset + length;
+
+    for (int i = offset; i < end; ++i) {
+      if (data[i] == '\n') {
+        lines = append(data, start, i - start, lines);
+        start = i + 1;
+
+        if (lines == null) {
+          lines = new StringBuilder();
+        }
+        appendLine(lines);
+      }
+    }
+    lines = append(data, start, end - start, lines);
+
+    if (lines != null) {
+      userIo.print(lines.toString(), UserIo.Level.DEBUG);
+    }
+  }
+
+  /**
+   * Writes any buffered partial line as a complete line.
+   *
+   * @throws IOException never
+   */
+  @Override
+  public synchronized void flush() throws IOException {
+    if (count > 0) {
+      StringBuilder lines = new StringBuilder();
+      appendLine(lines);
+      userIo.print(lines.toString(), UserIo.Level.DEBUG);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.io.OutputStream#close()
+   */
+  @Override
+  public void close() throws IOException {
+    flush();
+  }
+
+  /**
+   * Appends the given bytes to the partial line buffer, breaking the line each
+   * time the buffer is full.
+   *
+   * @param data the bytes to append
+   * @param offset the offset of the first byte
+   * @param length the number of bytes
+   * @param lines the builder to append broken lines to or null
+   * @return the builder holding any broken lines or null if there are none
+   */
+  private StringBuilder append(byte[] data, int offset, int length,
+      StringBuilder lines) {
+    while (count + length > MAX_LINE_LENGTH) {
+      int chunk = MAX_LINE_LENGTH - count;
+      ensureCapacity(MAX_LINE_LENGTH);
+      System.arraycopy(data, offset, buffer, count, chunk);
+      count += chunk;
+      offset += chunk;
+      length -= chunk;
+
+      if (lines == null) {
+        lines = new StringBuilder();
+      }
+      breakLine(lines);
+    }
+
+    ensureCapacity(count + length);
+    System.arraycopy(data, offset, buffer, count, length);
+    count += length;
+    return lines;
+  }
+
+  /**
+   * Grows the buffer, up to {@link #MAX_LINE_LENGTH} bytes, to hold at least
+   * the given number of bytes.
+   *
+   * @param capacity the number of bytes needed
+   */
+  private void ensureCapacity(int capacity) {
+    if (capacity > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length * 2,
+          capacity), MAX_LINE_LENGTH));
+    }
+  }
+
+  /**
+   * Writes the full buffer as a line without waiting for a newline. A
+   * multibyte character split by the end of the buffer is kept in the buffer
+   * to start the next line.
+   *
+   * @param lines the builder to append to
+   */
+  private void breakLine(StringBuilder lines) {
+    // Find the first byte of the last character and check if it is complete.
+    int start = count - 1;
+    while (start > 0 && count - start < 4 && (buffer[start] & 0xC0) == 0x80) {
+      start--;
+    }
+    int lead = buffer[start] & 0xFF;
+    int width = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+    int length = start + width > count ? start : count;
+
+    lines.append(prefix).append(new String(buffer, 0, length, UTF_8)).append(
+        '\n');
+    count -= length;
+    System.arraycopy(buffer, length, buffer, 0, count);
+  }
+
+  /**
+   * Decodes the buffered line, appends it to the given builder with the prefix
+   * and a trailing newline, and resets the buffer.
+   *
+   * @param lines the builder to append to
+   */
+  private void appendLine(StringBuilder lines) {
+    int length = count;
+    if (length > 0 && buffer[length - 1] == '\r') {
+      length--;
+    }
+
+    lines.append(prefix).append(new String(buffer, 0, length, UTF_8)).append(
+        '\n');
+    count = 0;
   }
 
 }
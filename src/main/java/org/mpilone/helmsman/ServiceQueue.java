@@ -2,65 +2,310 @@ package org.mpilone.helmsman;
 
 import java.util.*;
 
+import static java.lang.String.format;
+
 /**
- * An ordered queue of services grouped by order level if parallel or
- * individually if not parallel. The queue handles sorting by order (i.e.
+ * An ordered queue of services and the dependencies between them. Services
+ * that declare dependencies (see {@link ServiceConfig#getDependsOn()}) are
+ * scheduled as soon as all of their dependencies complete successfully and
+ * their order is ignored. Services that do not declare dependencies keep the
+ * order level behavior: they are scheduled once every other undeclared service
+ * with a lower order has completed. The queue handles sorting by order (i.e.
  * priority) and service name.
  *
  * @author mpilone
  */
-public class ServiceQueue implements Iterable<List<ServiceConfig>> {
+public class ServiceQueue implements Iterable<ServiceConfig> {
+
+  /**
+   * The services sorted by order and then name.
+   */
+  private final List<ServiceConfig> services;
+
+  /**
+   * The index of each service by name.
+   */
+  private final Map<String, Integer> indexes;
+
+  /**
+   * The indexes of the declared dependencies of each service that are also in
+   * this queue.
+   */
+  private final int[][] dependencies;
+
+  /**
+   * The indexes of the services that depend on each service (i.e. the inverse
+   * of {@link #dependencies}).
+   */
+  private final int[][] dependents;
+
+  /**
+   * The order level of each service or -1 if the service declares dependencies
+   * and is therefore not bound by order levels.
+   */
+  private final int[] levels;
+
+  /**
+   * The indexes of the services in each order level.
+   */
+  private final int[][] levelMembers;
+
+  /**
+   * The number of distinct order levels.
+   */
+  private final int levelCount;
 
   /**
-   * The buckets of services that can run in parallel.
+   * True if the queue has been reversed.
    */
-  private List<List<ServiceConfig>> buckets;
+  private boolean reversed;
 
   /**
-   * Constructs the queue which will bucket and sort the services appropriately.
-   * If parallelization is enabled, the buckets will be based on service order
-   * level. Otherwise each service will be queued separately for serial
-   * execution.
+   * Constructs the queue which will sort the services and build the
+   * dependency graph. Dependencies on services that are not in the given
+   * collection are ignored.
    *
    * @param services the services to queue
-   * @param parallel true if parallelization is enabled, false otherwise
+   * @throws RuntimeException if the dependencies contain a cycle
    */
-  public ServiceQueue(List<ServiceConfig> services, boolean parallel) {
+  public ServiceQueue(Collection<ServiceConfig> services) {
 
-    buckets = new ArrayList<List<ServiceConfig>>();
+    // Sort by name and then by order. The sort is stable so services with the
+    // same order remain sorted alphabetically for some consistency.
+    this.services = new ArrayList<ServiceConfig>(services);
+    Collections.sort(this.services, ServiceConfigComparator.NAME_COMPARATOR);
+    Collections.sort(this.services, ServiceConfigComparator.ORDER_COMPARATOR);
 
-    // If parallel, we need to group services by their order value so they can
-    // be run in parallel. If not parallel, we'll put each service in the queue
-    // independently.
-    Collections.sort(services, ServiceConfigComparator.ORDER_COMPARATOR);
+    int count = this.services.size();
+    indexes = new HashMap<String, Integer>(count * 2);
+    for (int i = 0; i < count; ++i) {
+      indexes.put(this.services.get(i).getName(), i);
+    }
 
-    if (!parallel) {
-      for (ServiceConfig service : services) {
-        List<ServiceConfig> bucket = new ArrayList<ServiceConfig>();
-        bucket.add(service);
-        buckets.add(bucket);
+    // Build the dependency edges in both directions.
+    dependencies = new int[count][];
+    int[] dependentCounts = new int[count];
+    for (int i = 0; i < count; ++i) {
+      List<String> names = this.services.get(i).getDependsOn();
+      int[] deps = new int[names.size()];
+      int size = 0;
+      for (String name : names) {
+        Integer index = indexes.get(name);
+        if (index != null) {
+          deps[size++] = index;
+          dependentCounts[index]++;
+        }
       }
+      dependencies[i] = Arrays.copyOf(deps, size);
     }
-    else {
-      int current = Integer.MIN_VALUE;
-      List<ServiceConfig> bucket = null;
 
-      for (ServiceConfig service : services) {
+    dependents = new int[count][];
+    for (int i = 0; i < count; ++i) {
+      dependents[i] = new int[dependentCounts[i]];
+      dependentCounts[i] = 0;
+    }
+    for (int i = 0; i < count; ++i) {
+      for (int dep : dependencies[i]) {
+        dependents[dep][dependentCounts[dep]++] = i;
+      }
+    }
 
-        if (bucket == null || current != service.getOrder()) {
+    // Assign order levels to the services that don't declare dependencies.
+    // The services are already sorted by order so the levels are ascending.
+    levels = new int[count];
+    int level = -1;
+    int current = 0;
+    for (int i = 0; i < count; ++i) {
+      ServiceConfig service = this.services.get(i);
+      if (!service.getDependsOn().isEmpty()) {
+        levels[i] = -1;
+      }
+      else {
+        if (level == -1 || current != service.getOrder()) {
           current = service.getOrder();
-          bucket = new ArrayList<ServiceConfig>();
-          buckets.add(bucket);
+          level++;
+        }
+        levels[i] = level;
+      }
+    }
+    levelCount = level + 1;
+
+    levelMembers = new int[levelCount][];
+    int[] memberCounts = new int[levelCount];
+    for (int i = 0; i < count; ++i) {
+      if (levels[i] != -1) {
+        memberCounts[levels[i]]++;
+      }
+    }
+    for (int l = 0; l < levelCount; ++l) {
+      levelMembers[l] = new int[memberCounts[l]];
+      memberCounts[l] = 0;
+    }
+    for (int i = 0; i < count; ++i) {
+      if (levels[i] != -1) {
+        levelMembers[levels[i]][memberCounts[levels[i]]++] = i;
+      }
+    }
+
+    checkForCycles();
+  }
+
+  /**
+   * Verifies that the dependency graph is acyclic using a topological sort.
+   *
+   * @throws RuntimeException if a cycle is found
+   */
+  private void checkForCycles() {
+    int[] order = topologicalOrder();
+
+    if (order.length != services.size()) {
+      // Any service left with unresolved dependencies is on or behind a
+      // cycle. Walk the remaining dependencies until a service repeats.
+      boolean[] sorted = new boolean[services.size()];
+      for (int i : order) {
+        sorted[i] = true;
+      }
+
+      int start = 0;
+      while (sorted[start]) {
+        start++;
+      }
+
+      Map<Integer, Integer> seen = new LinkedHashMap<Integer, Integer>();
+      int node = start;
+      while (!seen.containsKey(node)) {
+        seen.put(node, seen.size());
+        for (int dep : dependencies[node]) {
+          if (!sorted[dep]) {
+            node = dep;
+            break;
+          }
+        }
+      }
+
+      List<String> cycle = new ArrayList<String>();
+      int first = seen.get(node);
+      for (Map.Entry<Integer, Integer> entry : seen.entrySet()) {
+        if (entry.getValue() >= first) {
+          cycle.add(services.get(entry.getKey()).getName());
+        }
+      }
+      cycle.add(services.get(node).getName());
+
+      throw new RuntimeException(format(
+          "Service dependency cycle detected: %s.", joinPath(cycle)));
+    }
+  }
+
+  /**
+   * Returns the service indexes in a topological order of the declared
+   * dependencies (dependencies first). If the graph contains a cycle the
+   * returned array will be shorter than the number of services.
+   *
+   * @return the service indexes in dependency order
+   */
+  private int[] topologicalOrder() {
+    int count = services.size();
+    int[] remaining = new int[count];
+    int[] order = new int[count];
+    int head = 0;
+    int tail = 0;
+
+    for (int i = 0; i < count; ++i) {
+      remaining[i] = dependencies[i].length;
+      if (remaining[i] == 0) {
+        order[tail++] = i;
+      }
+    }
+
+    while (head < tail) {
+      int node = order[head++];
+      for (int dependent : dependents[node]) {
+        if (--remaining[dependent] == 0) {
+          order[tail++] = dependent;
         }
+      }
+    }
+
+    return Arrays.copyOf(order, tail);
+  }
+
+  /**
+   * Returns the longest chain of services that must execute one after the
+   * other when starting all the services in the queue. This is the path that
+   * bounds the total start time regardless of the parallelism available.
+   *
+   * @return the services on the critical path in start order
+   */
+  public List<ServiceConfig> getCriticalPath() {
+    int count = services.size();
+    int[] lengths = new int[count];
+    int[] previous = new int[count];
+    Arrays.fill(previous, -1);
+
+    // Services in an order level follow the longest chain in any lower level.
+    int bestInLevel = -1;
+    int bestBelow = -1;
+    int level = -1;
+    for (int i = 0; i < count; ++i) {
+      if (levels[i] == -1) {
+        continue;
+      }
+      if (levels[i] != level) {
+        if (bestInLevel != -1
+            && (bestBelow == -1 || lengths[bestInLevel] > lengths[bestBelow])) {
+          bestBelow = bestInLevel;
+        }
+        bestInLevel = -1;
+        level = levels[i];
+      }
+
+      previous[i] = bestBelow;
+      lengths[i] = 1 + (bestBelow == -1 ? 0 : lengths[bestBelow]);
+      if (bestInLevel == -1 || lengths[i] > lengths[bestInLevel]) {
+        bestInLevel = i;
+      }
+    }
+
+    // Services with declared dependencies follow their longest dependency.
+    for (int i : topologicalOrder()) {
+      if (levels[i] != -1) {
+        continue;
+      }
+      lengths[i] = 1;
+      for (int dep : dependencies[i]) {
+        if (lengths[dep] + 1 > lengths[i]) {
+          lengths[i] = lengths[dep] + 1;
+          previous[i] = dep;
+        }
+      }
+    }
 
-        bucket.add(service);
+    int end = -1;
+    for (int i = 0; i < count; ++i) {
+      if (end == -1 || lengths[i] > lengths[end]) {
+        end = i;
       }
     }
 
-    // Within each bucket, sort alphabetically for some consistency.
-    for (List<ServiceConfig> bucket : buckets) {
-      Collections.sort(bucket, ServiceConfigComparator.NAME_COMPARATOR);
+    LinkedList<ServiceConfig> path = new LinkedList<ServiceConfig>();
+    for (int i = end; i != -1; i = previous[i]) {
+      path.addFirst(services.get(i));
     }
+    return path;
+  }
+
+  /**
+   * Returns the services in the queue in execution order.
+   *
+   * @return the services in execution order
+   */
+  public List<ServiceConfig> getServices() {
+    List<ServiceConfig> result = new ArrayList<ServiceConfig>(services);
+    if (reversed) {
+      Collections.reverse(result);
+    }
+    return result;
   }
 
   /*
@@ -69,18 +314,287 @@ public class ServiceQueue implements Iterable<List<ServiceConfig>> {
    * @see java.lang.Iterable#iterator()
    */
   @Override
-  public Iterator<List<ServiceConfig>> iterator() {
-    return Collections.unmodifiableList(buckets).iterator();
+  public Iterator<ServiceConfig> iterator() {
+    return Collections.unmodifiableList(getServices()).iterator();
+  }
+
+  /**
+   * Returns the number of services in the queue.
+   *
+   * @return the number of services
+   */
+  public int size() {
+    return services.size();
   }
 
   /**
-   * Reverses the order of the overall queue and each bucket within the queue.
-   * This method should be called before obtaining an iterator.
+   * Reverses the order of the overall queue and the direction of all
+   * dependencies so services are scheduled only after all the services that
+   * depend on them. This method should be called before creating a schedule.
    */
   public void reverse() {
-    Collections.reverse(buckets);
-    for (List<ServiceConfig> bucket : buckets) {
-      Collections.reverse(bucket);
+    reversed = !reversed;
+  }
+
+  /**
+   * Creates a new schedule to track the execution of the services in this
+   * queue.
+   *
+   * @param ordered true if the schedule should honor the order levels and
+   * dependencies, false to make all services immediately ready
+   * @return the new schedule
+   */
+  public Schedule schedule(boolean ordered) {
+    return new Schedule(ordered);
+  }
+
+  /**
+   * Joins the names in a path with arrows.
+   *
+   * @param names the names to join
+   * @return the joined path
+   */
+  private static String joinPath(List<String> names) {
+    StringBuilder b = new StringBuilder();
+    for (String name : names) {
+      if (b.length() != 0) {
+        b.append(" -> ");
+      }
+      b.append(name);
+    }
+    return b.toString();
+  }
+
+  /**
+   * The execution state of a single pass through the queue. The schedule
+   * hands out services as they become ready and is told when each service
+   * completes. A service is skipped (and reported as failed) if any service it
+   * depends on fails. This class is not thread safe.
+   *
+   * @author mpilone
+   */
+  public class Schedule {
+
+    private static final int WAITING = 0;
+    private static final int READY = 1;
+    private static final int COMPLETE = 2;
+
+    /**
+     * The state of each service.
+     */
+    private final int[] states;
+
+    /**
+     * The number of incomplete dependencies for each service.
+     */
+    private final int[] remaining;
+
+    /**
+     * The number of incomplete services in each order level position.
+     */
+    private final int[] pending;
+
+    /**
+     * The first order level position with incomplete services. Services in
+     * positions up to and including the frontier have no incomplete lower
+     * levels.
+     */
+    private int frontier;
+
+    /**
+     * The services that became ready since the last poll.
+     */
+    private final List<Integer> ready = new ArrayList<Integer>();
+
+    /**
+     * Constructs the schedule.
+     *
+     * @param ordered true to honor order levels and dependencies
+     */
+    private Schedule(boolean ordered) {
+      int count = services.size();
+      states = new int[count];
+      remaining = new int[count];
+      pending = new int[levelCount];
+
+      if (!ordered) {
+        frontier = levelCount;
+        for (int i = 0; i < count; ++i) {
+          ready.add(i);
+        }
+        return;
+      }
+
+      for (int i = 0; i < count; ++i) {
+        remaining[i] = prerequisites(i).length;
+        if (levels[i] != -1) {
+          pending[position(i)]++;
+        }
+      }
+
+      frontier = 0;
+      while (frontier < levelCount && pending[frontier] == 0) {
+        frontier++;
+      }
+
+      for (int i = 0; i < count; ++i) {
+        if (isReady(i)) {
+          states[i] = READY;
+          ready.add(i);
+        }
+      }
+    }
+
+    /**
+     * Returns the names of the services that have become ready to execute
+     * since the last call, in execution order.
+     *
+     * @return the names of the newly ready services
+     */
+    public List<String> poll() {
+      Collections.sort(ready);
+      if (reversed) {
+        Collections.reverse(ready);
+      }
+
+      List<String> names = new ArrayList<String>(ready.size());
+      for (int i : ready) {
+        names.add(services.get(i).getName());
+      }
+      ready.clear();
+
+      return names;
+    }
+
+    /**
+     * Marks the given service as complete. If the service failed, all
+     * services that transitively depend on it are skipped.
+     *
+     * @param name the name of the service that completed
+     * @param success true if the service was successful
+     * @return the names of the services that were skipped as a result
+     */
+    public List<String> complete(String name, boolean success) {
+      List<String> skipped = new ArrayList<String>();
+
+      Deque<Integer> completed = new ArrayDeque<Integer>();
+      int index = indexOf(name);
+      if (states[index] == COMPLETE) {
+        return skipped;
+      }
+      states[index] = COMPLETE;
+      completed.add(index);
+
+      boolean failed = !success;
+      while (!completed.isEmpty()) {
+        int node = completed.poll();
+
+        if (levels[node] != -1 && --pending[position(node)] == 0) {
+          advanceFrontier();
+        }
+
+        for (int next : successors(node)) {
+          if (states[next] != WAITING) {
+            continue;
+          }
+
+          if (failed) {
+            states[next] = COMPLETE;
+            skipped.add(services.get(next).getName());
+            completed.add(next);
+          }
+          else if (--remaining[next] == 0 && isReady(next)) {
+            states[next] = READY;
+            ready.add(next);
+          }
+        }
+
+        // Only the first service completed normally. Everything after it in
+        // this loop was skipped and therefore fails its successors.
+        failed = true;
+      }
+
+      return skipped;
+    }
+
+    /**
+     * Moves the frontier past all the completed order levels, readying any
+     * services that were only waiting on those levels.
+     */
+    private void advanceFrontier() {
+      int previous = frontier;
+      while (frontier < levelCount && pending[frontier] == 0) {
+        frontier++;
+      }
+
+      if (frontier == previous) {
+        return;
+      }
+
+      for (int p = previous + 1; p <= frontier && p < levelCount; ++p) {
+        int l = reversed ? levelCount - 1 - p : p;
+        for (int i : levelMembers[l]) {
+          if (states[i] == WAITING && isReady(i)) {
+            states[i] = READY;
+            ready.add(i);
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns true if the service has no incomplete prerequisites.
+     *
+     * @param i the index of the service
+     * @return true if the service is ready
+     */
+    private boolean isReady(int i) {
+      return remaining[i] == 0 && (levels[i] == -1 || position(i) <= frontier);
+    }
+
+    /**
+     * Returns the execution position of the service's order level.
+     *
+     * @param i the index of the service
+     * @return the level position in execution order
+     */
+    private int position(int i) {
+      return reversed ? levelCount - 1 - levels[i] : levels[i];
+    }
+
+    /**
+     * Returns the services that must complete before the given service.
+     *
+     * @param i the index of the service
+     * @return the prerequisite indexes
+     */
+    private int[] prerequisites(int i) {
+      return reversed ? dependents[i] : dependencies[i];
+    }
+
+    /**
+     * Returns the services that wait on the given service.
+     *
+     * @param i the index of the service
+     * @return the successor indexes
+     */
+    private int[] successors(int i) {
+      return reversed ? dependencies[i] : dependents[i];
+    }
+
+    /**
+     * Returns the index of the named service.
+     *
+     * @param name the name of the service
+     * @return the index of the service
+     */
+    private int indexOf(String name) {
+      Integer index = indexes.get(name);
+      if (index == null) {
+        throw new IllegalArgumentException(format(
+            "Service [%s] is not in the queue.", name));
+      }
+      return index;
     }
   }
 }
@@ -0,0 +1,321 @@
+package org.mpilone.helmsman;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+
+/**
+ * Selects services by group, by name, or with a selection expression. Each
+ * service is assigned a bit and every group is indexed as the set of bits of
+ * its services so a selection is a few bitwise operations regardless of the
+ * number of services. A selection expression combines:
+ * <ul>
+ * <li>group - the services in the group</li>
+ * <li>name=service - the service with the name</li>
+ * <li>name~pattern - the services with names matching the pattern where *
+ * matches any characters and ? matches a single character</li>
+ * <li>* - all services</li>
+ * </ul>
+ * with ! (not), &amp; (and), | (or), and parentheses, in order of precedence.
+ * For example, "deploy &amp; !standby | name~api-*". The selector is
+ * immutable and thread safe.
+ *
+ * @author mpilone
+ */
+public class ServiceSelector {
+
+  /**
+   * The services in the order of their bits.
+   */
+  private final List<ServiceConfig> services;
+
+  /**
+   * The bit of each service by name.
+   */
+  private final Map<String, Integer> bits = new HashMap<String, Integer>();
+
+  /**
+   * The bits of the services in each group by group name.
+   */
+  private final Map<String, BitSet> groups = new HashMap<String, BitSet>();
+
+  /**
+   * Constructs the selector and indexes the given services.
+   *
+   * @param services the services to select from
+   */
+  public ServiceSelector(Collection<ServiceConfig> services) {
+    this.services = new ArrayList<ServiceConfig>(services);
+    Collections.sort(this.services, new Comparator<ServiceConfig>() {
+      @Override
+      public int compare(ServiceConfig o1, ServiceConfig o2) {
+        return o1.getName().compareTo(o2.getName());
+      }
+    });
+
+    for (int i = 0; i < this.services.size(); i++) {
+      ServiceConfig service = this.services.get(i);
+      bits.put(service.getName(), i);
+
+      for (String group : service.getGroups()) {
+        BitSet members = groups.get(group);
+        if (members == null) {
+          members = new BitSet(this.services.size());
+          groups.put(group, members);
+        }
+        members.set(i);
+      }
+    }
+  }
+
+  /**
+   * Returns all the services.
+   *
+   * @return the selection of all services
+   */
+  public BitSet all() {
+    BitSet selection = new BitSet(services.size());
+    selection.set(0, services.size());
+    return selection;
+  }
+
+  /**
+   * Returns the services in the group.
+   *
+   * @param group the name of the group
+   * @return the selection which is empty if the group is unknown
+   */
+  public BitSet group(String group) {
+    BitSet members = groups.get(group);
+    return members == null ? new BitSet() : (BitSet) members.clone();
+  }
+
+  /**
+   * Returns the services with the given names.
+   *
+   * @param names the names of the services
+   * @param unknown the collection to add names of unknown services to or null
+   * @return the selection
+   */
+  public BitSet names(Collection<String> names, Collection<String> unknown) {
+    BitSet selection = new BitSet(services.size());
+    for (String name : names) {
+      Integer bit = bits.get(name);
+      if (bit != null) {
+        selection.set(bit);
+      }
+      else if (unknown != null) {
+        unknown.add(name);
+      }
+    }
+    return selection;
+  }
+
+  /**
+   * Returns the services selected by the expression.
+   *
+   * @param expression the selection expression
+   * @return the selection
+   * @throws IllegalArgumentException if the expression is invalid
+   */
+  public BitSet select(String expression) {
+    return new Parser(expression).parse();
+  }
+
+  /**
+   * Returns the services in the selection in name order.
+   *
+   * @param selection the selection
+   * @return the selected services
+   */
+  public List<ServiceConfig> services(BitSet selection) {
+    List<ServiceConfig> selected = new ArrayList<ServiceConfig>(selection
+        .cardinality());
+    for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i
+        + 1)) {
+      selected.add(services.get(i));
+    }
+    return selected;
+  }
+
+  /**
+   * A recursive descent parser of a selection expression that evaluates the
+   * expression as it is parsed.
+   */
+  private class Parser {
+
+    private final String expression;
+    private int pos;
+
+    /**
+     * Constructs the parser.
+     *
+     * @param expression the expression to parse
+     */
+    public Parser(String expression) {
+      this.expression = expression;
+    }
+
+    /**
+     * Parses and evaluates the entire expression.
+     *
+     * @return the selection
+     */
+    public BitSet parse() {
+      BitSet selection = or();
+      if (peek() != 0) {
+        throw error(format("Unexpected [%s]", peek()));
+      }
+      return selection;
+    }
+
+    /**
+     * Parses a sequence of terms separated by |.
+     *
+     * @return the selection
+     */
+    private BitSet or() {
+      BitSet selection = and();
+      while (accept('|')) {
+        selection.or(and());
+      }
+      return selection;
+    }
+
+    /**
+     * Parses a sequence of factors separated by &amp;.
+     *
+     * @return the selection
+     */
+    private BitSet and() {
+      BitSet selection = not();
+      while (accept('&')) {
+        selection.and(not());
+      }
+      return selection;
+    }
+
+    /**
+     * Parses a negated factor, a parenthesized expression, or an atom.
+     *
+     * @return the selection
+     */
+    private BitSet not() {
+      if (accept('!')) {
+        BitSet selection = all();
+        selection.andNot(not());
+        return selection;
+      }
+      else if (accept('(')) {
+        BitSet selection = or();
+        if (!accept(')')) {
+          throw error("Expected [)]");
+        }
+        return selection;
+      }
+      else {
+        return atom();
+      }
+    }
+
+    /**
+     * Parses a group name, a name=service or name~pattern match, or *.
+     *
+     * @return the selection
+     */
+    private BitSet atom() {
+      peek();
+      int start = pos;
+      while (pos < expression.length() && "!&|() \t".indexOf(expression
+          .charAt(pos)) == -1) {
+        pos++;
+      }
+
+      String word = expression.substring(start, pos);
+      if (word.isEmpty()) {
+        throw error("Expected a group or name");
+      }
+      else if (word.equals("*")) {
+        return all();
+      }
+      else if (word.startsWith("name=")) {
+        return names(Collections.singleton(word.substring(5)), null);
+      }
+      else if (word.startsWith("name~")) {
+        Pattern pattern = glob(word.substring(5));
+        BitSet selection = new BitSet(services.size());
+        for (int i = 0; i < services.size(); i++) {
+          if (pattern.matcher(services.get(i).getName()).matches()) {
+            selection.set(i);
+          }
+        }
+        return selection;
+      }
+      else {
+        return group(word);
+      }
+    }
+
+    /**
+     * Returns the next non-whitespace character without consuming it.
+     *
+     * @return the character or 0 at the end of the expression
+     */
+    private char peek() {
+      while (pos < expression.length() && Character.isWhitespace(expression
+          .charAt(pos))) {
+        pos++;
+      }
+      return pos < expression.length() ? expression.charAt(pos) : 0;
+    }
+
+    /**
+     * Consumes the next non-whitespace character if it is the given
+     * character.
+     *
+     * @param c the expected character
+     * @return true if consumed
+     */
+    private boolean accept(char c) {
+      if (peek() == c) {
+        pos++;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Returns an error describing a problem at the current position.
+     *
+     * @param message the problem
+     * @return the error
+     */
+    private IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(format("%s at position %d of "
+          + "selection [%s].", message, pos + 1, expression));
+    }
+
+    /**
+     * Converts a glob pattern to a regular expression.
+     *
+     * @param glob the glob pattern
+     * @return the regular expression
+     */
+    private Pattern glob(String glob) {
+      StringBuilder regex = new StringBuilder();
+      for (String part : glob.split("((?<=[*?])|(?=[*?]))")) {
+        if (part.equals("*")) {
+          regex.append(".*");
+        }
+        else if (part.equals("?")) {
+          regex.append('.');
+        }
+        else if (!part.isEmpty()) {
+          regex.append(Pattern.quote(part));
+        }
+      }
+      return Pattern.compile(regex.toString());
+    }
+  }
+}
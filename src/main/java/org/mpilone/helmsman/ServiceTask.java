@@ -1,8 +1,9 @@
 package org.mpilone.helmsman;
 
-import java.util.Map;
-import org.apache.commons.exec.*;
-import org.apache.commons.exec.environment.EnvironmentUtils;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.mpilone.helmsman.UserIo.Level;
 
 import static java.lang.String.format;
@@ -14,11 +15,37 @@ import static java.lang.String.format;
  */
 public interface ServiceTask {
 
+  /**
+   * A listener notified when a task completes.
+   *
+   * @author mpilone
+   */
+  public interface Listener {
+
+    /**
+     * Called exactly once when the task completes, either successfully or
+     * not. The call may be made from any thread.
+     *
+     * @param task the task that completed
+     */
+    void taskComplete(ServiceTask task);
+  }
+
   /**
    * Executes the task which runs asynchronously. This method returns
    * immediately even if the task is still executing.
+   *
+   * @param listener the listener to notify when the task completes or null
+   */
+  void execute(Listener listener);
+
+  /**
+   * Cancels the task. A task that has not been executed completes
+   * unsuccessfully as soon as it is executed. An executing task stops its
+   * work (e.g. kills the script process) and completes unsuccessfully. A
+   * completed task is not affected.
    */
-  void execute();
+  void cancel();
 
   /**
    * Waits for the task to complete if it has not yet completed.
@@ -42,35 +69,110 @@ public interface ServiceTask {
   boolean isSuccess();
 
   /**
-   * A task that executes a delegate task and negates the success state.
+   * A base task that tracks the completion state and notifies the listener
+   * when the task completes. Subclasses start their work in
+   * {@link #doExecute()} and call {@link #complete(boolean)} when done. A
+   * task cancelled before it is executed completes without calling
+   * {@link #doExecute()}.
    *
    * @author mpilone
    */
-  public static class Not implements ServiceTask {
+  public static abstract class AbstractTask implements ServiceTask {
 
     /**
-     * The delegate task to execute.
+     * The latch released when the task completes.
      */
-    private ServiceTask task;
+    private final CountDownLatch completeLatch = new CountDownLatch(1);
 
     /**
-     * Constructs the task.
+     * The listener to notify on completion.
+     */
+    private volatile Listener listener;
+
+    /**
+     * The flag which indicates success which will be null until the task
+     * completes.
+     */
+    private volatile Boolean success;
+
+    /**
+     * The flag which indicates the task was cancelled.
+     */
+    private volatile boolean cancelled;
+
+    /*
+     * (non-Javadoc)
      *
-     * @param task the delegate task to execute
+     * @see org.mpilone.helsman.ServiceTask#execute(Listener)
      */
-    public Not(ServiceTask task) {
-      super();
-      this.task = task;
+    @Override
+    public void execute(Listener listener) {
+      this.listener = listener;
+
+      if (cancelled) {
+        complete(false);
+      }
+      else {
+        doExecute();
+      }
     }
 
+    /**
+     * Starts the asynchronous work of the task. Implementations must
+     * eventually call {@link #complete(boolean)}.
+     */
+    protected abstract void doExecute();
+
     /*
      * (non-Javadoc)
      *
-     * @see org.mpilone.helsman.ServiceTask#execute()
+     * @see org.mpilone.helsman.ServiceTask#cancel()
      */
     @Override
-    public void execute() {
-      task.execute();
+    public void cancel() {
+      cancelled = true;
+
+      if (!isComplete()) {
+        doCancel();
+      }
+    }
+
+    /**
+     * Stops the work of an executing task. The default implementation does
+     * nothing so the task completes normally.
+     */
+    protected void doCancel() {
+    }
+
+    /**
+     * Returns true if the task was cancelled.
+     *
+     * @return true if cancelled
+     */
+    protected boolean isCancelled() {
+      return cancelled;
+    }
+
+    /**
+     * Marks the task as complete and notifies the listener. Calls after the
+     * first are ignored.
+     *
+     * @param success true if the task was successful, false otherwise
+     */
+    protected void complete(boolean success) {
+      synchronized (completeLatch) {
+        if (this.success != null) {
+          return;
+        }
+        this.success = success;
+      }
+
+      completeLatch.countDown();
+
+      Listener l = listener;
+      if (l != null) {
+        l.taskComplete(this);
+      }
     }
 
     /*
@@ -80,7 +182,12 @@ public interface ServiceTask {
      */
     @Override
     public void waitFor(int timeout) {
-      task.waitFor(timeout);
+      try {
+        completeLatch.await(timeout, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
     }
 
     /*
@@ -90,7 +197,7 @@ public interface ServiceTask {
      */
     @Override
     public boolean isComplete() {
-      return task.isComplete();
+      return success != null;
     }
 
     /*
@@ -100,83 +207,150 @@ public interface ServiceTask {
      */
     @Override
     public boolean isSuccess() {
-      return !task.isSuccess();
+      return (success != null) ? success : false;
     }
   }
 
   /**
-   * A task that executes the left operand task and if it fails, executes the
-   * right operand task. Therefore, the right task is only executed if the left
-   * task fails. The result is true if the left task is successful or the result
-   * of the right task.
+   * A task that completes immediately with a known result.
    *
    * @author mpilone
    */
-  public static class Or implements ServiceTask {
+  public static class Constant extends AbstractTask {
 
-    private ServiceTask leftTask;
-    private ServiceTask rightTask;
-    private ServiceTask task;
+    /**
+     * The result of the task.
+     */
+    private final boolean result;
 
     /**
      * Constructs the task.
      *
-     * @param leftTask the left operand task
-     * @param rightTask the right operand task
+     * @param result the result of the task
      */
-    public Or(ServiceTask leftTask, ServiceTask rightTask) {
+    public Constant(boolean result) {
       super();
-      this.leftTask = leftTask;
-      this.rightTask = rightTask;
+      this.result = result;
     }
 
     /*
      * (non-Javadoc)
      *
-     * @see org.mpilone.helsman.ServiceTask#execute()
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doExecute()
      */
     @Override
-    public void execute() {
-      task = leftTask;
-      task.execute();
+    protected void doExecute() {
+      complete(result);
+    }
+  }
+
+  /**
+   * A task that executes a delegate task and negates the success state.
+   *
+   * @author mpilone
+   */
+  public static class Not extends AbstractTask {
+
+    /**
+     * The delegate task to execute.
+     */
+    private ServiceTask task;
+
+    /**
+     * Constructs the task.
+     *
+     * @param task the delegate task to execute
+     */
+    public Not(ServiceTask task) {
+      super();
+      this.task = task;
     }
 
     /*
      * (non-Javadoc)
      *
-     * @see org.mpilone.helsman.ServiceTask#waitFor(int)
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doExecute()
      */
     @Override
-    public void waitFor(int timeout) {
-      task.waitFor(timeout);
+    protected void doExecute() {
+      task.execute(new Listener() {
+        @Override
+        public void taskComplete(ServiceTask task) {
+          complete(!task.isSuccess() && !isCancelled());
+        }
+      });
     }
 
     /*
      * (non-Javadoc)
      *
-     * @see org.mpilone.helsman.ServiceTask#isComplete()
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doCancel()
      */
     @Override
-    public boolean isComplete() {
+    protected void doCancel() {
+      task.cancel();
+    }
+  }
 
-      if (task.isComplete()) {
-        if (!task.isSuccess()) {
-          task = rightTask;
-          task.execute();
-        }
-      }
+  /**
+   * A task that executes the left operand task and if it fails, executes the
+   * right operand task. Therefore, the right task is only executed if the left
+   * task fails. The result is true if the left task is successful or the result
+   * of the right task.
+   *
+   * @author mpilone
+   */
+  public static class Or extends AbstractTask {
+
+    private ServiceTask leftTask;
+    private ServiceTask rightTask;
 
-      return task.isComplete();
+    /**
+     * Constructs the task.
+     *
+     * @param leftTask the left operand task
+     * @param rightTask the right operand task
+     */
+    public Or(ServiceTask leftTask, ServiceTask rightTask) {
+      super();
+      this.leftTask = leftTask;
+      this.rightTask = rightTask;
     }
 
     /*
      * (non-Javadoc)
      *
-     * @see org.mpilone.helsman.ServiceTask#isSuccess()
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doExecute()
      */
     @Override
-    public boolean isSuccess() {
-      return task.isSuccess();
+    protected void doExecute() {
+      leftTask.execute(new Listener() {
+        @Override
+        public void taskComplete(ServiceTask task) {
+          if (task.isSuccess()) {
+            complete(true);
+          }
+          else {
+            rightTask.execute(new Listener() {
+              @Override
+              public void taskComplete(ServiceTask task) {
+                complete(task.isSuccess());
+              }
+            });
+          }
+        }
+      });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doCancel()
+     */
+    @Override
+    protected void doCancel() {
+      leftTask.cancel();
+      rightTask.cancel();
     }
   }
 
@@ -188,11 +362,10 @@ public interface ServiceTask {
    *
    * @author mpilone
    */
-  public static class And implements ServiceTask {
+  public static class And extends AbstractTask {
 
     private ServiceTask leftTask;
     private ServiceTask rightTask;
-    private ServiceTask task;
 
     /**
      * Constructs the task.
@@ -209,50 +382,175 @@ public interface ServiceTask {
     /*
      * (non-Javadoc)
      *
-     * @see org.mpilone.helsman.ServiceTask#execute()
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doExecute()
      */
     @Override
-    public void execute() {
-      task = leftTask;
-      task.execute();
+    protected void doExecute() {
+      leftTask.execute(new Listener() {
+        @Override
+        public void taskComplete(ServiceTask task) {
+          if (!task.isSuccess()) {
+            complete(false);
+          }
+          else {
+            rightTask.execute(new Listener() {
+              @Override
+              public void taskComplete(ServiceTask task) {
+                complete(task.isSuccess());
+              }
+            });
+          }
+        }
+      });
     }
 
     /*
      * (non-Javadoc)
      *
-     * @see org.mpilone.helsman.ServiceTask#waitFor(int)
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doCancel()
      */
     @Override
-    public void waitFor(int timeout) {
-      task.waitFor(timeout);
+    protected void doCancel() {
+      leftTask.cancel();
+      rightTask.cancel();
+    }
+  }
+
+  /**
+   * A task that records the execution of a delegate task as a span in a
+   * {@link Trace}.
+   *
+   * @author mpilone
+   */
+  public static class Traced extends AbstractTask {
+
+    private final ServiceTask task;
+    private final Trace trace;
+    private final String service;
+    private final String name;
+
+    /**
+     * Constructs the task.
+     *
+     * @param task the delegate task to execute
+     * @param trace the trace to record the span in
+     * @param service the name of the service the task belongs to
+     * @param name the name of the span
+     */
+    public Traced(ServiceTask task, Trace trace, String service, String name) {
+      super();
+      this.task = task;
+      this.trace = trace;
+      this.service = service;
+      this.name = name;
     }
 
     /*
      * (non-Javadoc)
      *
-     * @see org.mpilone.helsman.ServiceTask#isComplete()
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doExecute()
      */
     @Override
-    public boolean isComplete() {
-
-      if (task.isComplete()) {
-        if (task.isSuccess()) {
-          task = rightTask;
-          task.execute();
+    protected void doExecute() {
+      trace.begin(service, name);
+      task.execute(new Listener() {
+        @Override
+        public void taskComplete(ServiceTask task) {
+          trace.end(service, name);
+          complete(task.isSuccess());
         }
-      }
+      });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doCancel()
+     */
+    @Override
+    protected void doCancel() {
+      task.cancel();
+    }
+  }
+
+  /**
+   * A task which checks the status of a service with the in-JVM
+   * {@link ServiceConfig#getProbe()} rather than executing the service script.
+   *
+   * @author mpilone
+   */
+  public static class Probe extends AbstractTask {
+
+    /**
+     * The User IO to write all user output.
+     */
+    private UserIo userIo;
+
+    /**
+     * The prober that executes the probe.
+     */
+    private Prober prober;
+
+    /**
+     * The metrics to record the probe in.
+     */
+    private Metrics metrics;
+
+    /**
+     * The service configuration to probe.
+     */
+    private ServiceConfig service;
 
-      return task.isComplete();
+    /**
+     * Constructs the task.
+     *
+     * @param service the service configuration to probe
+     * @param prober the prober that executes the probe
+     * @param metrics the metrics to record the probe in
+     * @param userIo used for debugging output
+     */
+    public Probe(ServiceConfig service, Prober prober, Metrics metrics,
+        UserIo userIo) {
+      this.service = service;
+      this.prober = prober;
+      this.metrics = metrics;
+      this.userIo = userIo;
     }
 
     /*
      * (non-Javadoc)
      *
-     * @see org.mpilone.helsman.ServiceTask#isSuccess()
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doExecute()
      */
     @Override
-    public boolean isSuccess() {
-      return task.isSuccess();
+    protected void doExecute() {
+      userIo.println(format("Executing probe [%s] for service [%s].", service
+          .getProbe(), service.getName()), UserIo.Level.DEBUG);
+
+      final long startTime = System.nanoTime();
+      prober.probe(service.getProbe(), service.getTimeout() * 1000L,
+          new Prober.Callback() {
+            @Override
+            public void probeComplete(boolean up, String message) {
+              userIo.println(format("[%s] %s", service.getName(), message),
+                  Level.DEBUG);
+              metrics.recordCommand(service.getName(), "probe", System
+                  .nanoTime() - startTime, up ? 0 : 1, false);
+              complete(up);
+            }
+          });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doCancel()
+     */
+    @Override
+    protected void doCancel() {
+      // Probes are short and can't be interrupted so the result is simply
+      // abandoned.
+      complete(false);
     }
   }
 
@@ -263,7 +561,7 @@ public interface ServiceTask {
    *
    * @author mpilone
    */
-  public static class Command implements ServiceTask {
+  public static class Command extends AbstractTask {
 
     /**
      * The User IO to write all user output.
@@ -276,14 +574,14 @@ public interface ServiceTask {
     private ServiceOutputStream SERVICE_OUT;
 
     /**
-     * The executor running the script process.
+     * The engine used to execute the script process.
      */
-    private Executor executor;
+    private ProcessEngine engine;
 
     /**
-     * The result handler monitoring the script process.
+     * The metrics to record the command in.
      */
-    private DefaultExecuteResultHandler resultHandler;
+    private Metrics metrics;
 
     /**
      * The command argument to pass to the script.
@@ -296,10 +594,9 @@ public interface ServiceTask {
     private ServiceConfig service;
 
     /**
-     * The flag which indicates success which will be null until the service
-     * script completes (or raises an exception).
+     * The execution of the script process or null if not executing.
      */
-    private Boolean success;
+    private volatile ProcessEngine.Execution execution;
 
     /**
      * Constructs the task which will run the service's script with the given
@@ -307,84 +604,72 @@ public interface ServiceTask {
      *
      * @param service the service configuration to execute
      * @param command the command argument
+     * @param engine the engine used to execute the script process
+     * @param metrics the metrics to record the command in
      * @param userIo used for debugging output
      */
-    public Command(ServiceConfig service, String command, UserIo userIo) {
+    public Command(ServiceConfig service, String command, ProcessEngine engine,
+        Metrics metrics, UserIo userIo) {
       this.service = service;
       this.command = command;
+      this.engine = engine;
+      this.metrics = metrics;
       this.userIo = userIo;
 
-      SERVICE_OUT = new ServiceOutputStream(userIo);
+      SERVICE_OUT = new ServiceOutputStream(userIo, service.getName());
     }
 
     /*
      * (non-Javadoc)
      *
-     * @see org.mpilone.helsman.ServiceTask#execute()
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doExecute()
      */
     @Override
-    @SuppressWarnings({"rawtypes", "unchecked"})
-    public void execute() {
+    protected void doExecute() {
       userIo.println(
           format("Executing script [%s] with command [%s].", service.getScript(),
               command), UserIo.Level.DEBUG);
 
+      final long startTime = System.nanoTime();
       try {
-        // Create the command to run.
-        org.apache.commons.exec.CommandLine cmdLine
-            = new org.apache.commons.exec.CommandLine(service.getScript());
-        cmdLine.addArgument(command);
-
-        // Merge the current environment with the service specific environment.
-        Map env = EnvironmentUtils.getProcEnvironment();
-        env.putAll(service.getEnvironment());
-
-        // Remove generated environment variables. This seems like a hack, but
-        // the JVM appears to generate values for these variables even if they
-        // are not set in the processes original environment. The variables
-        // cause problems if they are passed to sub-processes, especially if the
-        // sub-process is in a different version of the JVM. Refer to
-        // http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4953367.
-        env.remove("NLSPATH");
-        env.remove("XFILESEARCHPATH");
-
-        resultHandler = new DefaultExecuteResultHandler();
-
-        ExecuteWatchdog watchdog
-            = new ExecuteWatchdog(service.getTimeout() * 1000);
-
-        // Create and configure the executor.
-        executor = new DefaultExecutor();
-        executor.setStreamHandler(new PumpStreamHandler(SERVICE_OUT,
-            SERVICE_OUT));
-        executor.setExitValue(0);
-        executor.setWatchdog(watchdog);
-
-        // Execute the script.
-        executor.execute(cmdLine, env, resultHandler);
-      }
-      catch (Exception ex) {
-        userIo.println(
-            "Exception while executing service script: " + ex.getMessage(),
-            UserIo.Level.DEBUG);
-        userIo.print(ex, Level.DEBUG);
-
-        success = Boolean.FALSE;
-      }
-
-    }
-
-    /*
-     * (non-Javadoc)
-     *
-     * @see org.mpilone.helsman.ServiceTask#waitFor(int)
-     */
-    @Override
-    public void waitFor(int timeout) {
-      try {
-        // Wait for the script to finish or timeout.
-        if (!resultHandler.hasResult()) {
-          resultHandler.waitFor(timeout);
+        // Execute the script. The handler completes the task as soon as the
+        // process exits so no polling is required.
+        execution = engine.execute(Arrays.asList(service.getScript(), command),
+            service.getEnvironment(), null, service.getTimeout() * 1000L,
+            SERVICE_OUT, new ProcessEngine.Handler() {
+              @Override
+              public void processComplete(int exitValue, boolean timedOut) {
+                flushOutput();
+                metrics.recordCommand(service.getName(), command, System
+                    .nanoTime() - startTime, exitValue, timedOut);
+
+                if (timedOut) {
+                  userIo.println(format("Script [%s] with command [%s] timed "
+                      + "out after %d seconds.", service.getScript(), command,
+                      service.getTimeout()), Level.DEBUG);
+                }
+                else if (exitValue != 0) {
+                  userIo.println(format("Script [%s] with command [%s] exited "
+                      + "with value [%d].", service.getScript(), command,
+                      exitValue), Level.DEBUG);
+                }
+
+                complete(exitValue == 0 && !timedOut);
+              }
+
+              @Override
+              public void processFailed(Exception ex) {
+                flushOutput();
+                metrics.recordCommand(service.getName(), command, System
+                    .nanoTime() - startTime, -1, false);
+                userIo.print(ex, Level.DEBUG);
+                complete(false);
+              }
+            });
+
+        // A cancel may have arrived before the execution was known.
+        if (isCancelled()) {
+          execution.cancel();
         }
       }
       catch (Exception ex) {
@@ -393,50 +678,37 @@ public interface ServiceTask {
             UserIo.Level.DEBUG);
         userIo.print(ex, Level.DEBUG);
 
-        success = Boolean.FALSE;
+        metrics.recordCommand(service.getName(), command, System.nanoTime()
+            - startTime, -1, false);
+        complete(false);
       }
     }
 
     /*
      * (non-Javadoc)
      *
-     * @see org.mpilone.helsman.ServiceTask#isComplete()
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doCancel()
      */
     @Override
-    public boolean isComplete() {
-
-      if (success == null) {
-        try {
-          if (resultHandler.hasResult()) {
-            success = !executor.isFailure(resultHandler.getExitValue());
-
-            // Log the exception if there was one.
-            if (!success && resultHandler.getException() != null) {
-              userIo.print(resultHandler.getException(), Level.DEBUG);
-            }
-          }
-        }
-        catch (Exception ex) {
-          userIo.println(
-              "Exception while executing service script: " + ex.getMessage(),
-              UserIo.Level.DEBUG);
-          userIo.print(ex, Level.DEBUG);
-
-          success = Boolean.FALSE;
-        }
+    protected void doCancel() {
+      ProcessEngine.Execution e = execution;
+      if (e != null) {
+        userIo.println(format("Cancelling script [%s] with command [%s].",
+            service.getScript(), command), Level.DEBUG);
+        e.cancel();
       }
-
-      return success != null;
     }
 
-    /*
-     * (non-Javadoc)
-     *
-     * @see org.mpilone.helsman.ServiceTask#isSuccess()
+    /**
+     * Flushes any partial line of script output.
      */
-    @Override
-    public boolean isSuccess() {
-      return (success != null) ? success : false;
+    private void flushOutput() {
+      try {
+        SERVICE_OUT.flush();
+      }
+      catch (IOException ex) {
+        // Ignore
+      }
     }
   }
 }
@@ -0,0 +1,308 @@
+package org.mpilone.helmsman;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import org.mpilone.helmsman.UserIo.Level;
+
+import static java.lang.String.format;
+
+/**
+ * Checks the status of many services that share a script with a single
+ * execution of the script rather than one per service. The script is executed
+ * with the command "status-batch" and is given one line per service on its
+ * input: the service name followed by the service's environment variables as
+ * tab separated KEY=VALUE pairs. The script prints one line per service with
+ * the service name and UP or DOWN separated by whitespace. Any other output is
+ * treated as script output. If the script fails, times out, or doesn't report
+ * a service, the status of the service is checked with its own status command
+ * instead.
+ * <p>
+ * The script is executed when the first task of the batch is executed so all
+ * the tasks must be created before any is executed. Tasks executed after the
+ * batch completes complete immediately with the reported status.
+ *
+ * @author mpilone
+ */
+public class StatusBatch {
+
+  /**
+   * The command argument passed to the script.
+   */
+  public static final String COMMAND = "status-batch";
+
+  /**
+   * The UTF-8 character set used for the script input and output.
+   */
+  private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final String script;
+  private final ProcessEngine engine;
+  private final Metrics metrics;
+  private final UserIo userIo;
+
+  /**
+   * The services in the batch in the order they were added.
+   */
+  private final List<ServiceConfig> services = new ArrayList<ServiceConfig>();
+
+  /**
+   * The tasks waiting for the batch to complete.
+   */
+  private final List<Member> waiting = new ArrayList<Member>();
+
+  /**
+   * The reported status by service name or null until the batch completes.
+   * Services that weren't reported are missing.
+   */
+  private Map<String, Boolean> results;
+
+  /**
+   * True once the script has been executed.
+   */
+  private boolean launched;
+
+  /**
+   * Constructs the batch.
+   *
+   * @param script the script shared by all services in the batch
+   * @param engine the engine used to execute the script
+   * @param metrics the metrics to record the command in
+   * @param userIo the User IO to write all user output
+   */
+  public StatusBatch(String script, ProcessEngine engine, Metrics metrics,
+      UserIo userIo) {
+    this.script = script;
+    this.engine = engine;
+    this.metrics = metrics;
+    this.userIo = userIo;
+  }
+
+  /**
+   * Adds the service to the batch and returns the task that checks its
+   * status.
+   *
+   * @param service the service to check
+   * @param fallback the task to check the status of the service if the batch
+   * doesn't report it
+   * @return the new task
+   */
+  public synchronized ServiceTask add(ServiceConfig service,
+      ServiceTask fallback) {
+    if (launched) {
+      throw new IllegalStateException(format("Batch for script [%s] was "
+          + "already executed.", script));
+    }
+
+    services.add(service);
+    return new Member(service, fallback);
+  }
+
+  /**
+   * Executes the script if it hasn't been executed or resolves the task if
+   * the batch is already complete.
+   *
+   * @param member the task requesting its status
+   */
+  private void request(Member member) {
+    Map<String, Boolean> complete;
+    boolean launch = false;
+    synchronized (this) {
+      complete = results;
+      if (complete == null) {
+        waiting.add(member);
+        launch = !launched;
+        launched = true;
+      }
+    }
+
+    // The script is executed outside of the lock because it may complete
+    // (and resolve the waiting tasks) on another thread at any time.
+    if (complete != null) {
+      member.resolve(complete.get(member.service.getName()));
+    }
+    else if (launch) {
+      launch();
+    }
+  }
+
+  /**
+   * Executes the script with the input for all the services in the batch.
+   */
+  private void launch() {
+    userIo.println(format("Executing script [%s] with command [%s] for %d "
+        + "services.", script, COMMAND, services.size()), Level.DEBUG);
+
+    int timeout = 0;
+    StringBuilder input = new StringBuilder();
+    for (ServiceConfig service : services) {
+      timeout = Math.max(timeout, service.getTimeout());
+
+      input.append(service.getName());
+      for (Map.Entry<String, String> variable : service.getEnvironment()
+          .entrySet()) {
+        input.append('\t').append(variable.getKey()).append('=').append(
+            variable.getValue().replaceAll("[\t\r\n]", " "));
+      }
+      input.append('\n');
+    }
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final long startTime = System.nanoTime();
+    try {
+      engine.execute(Arrays.asList(script, COMMAND), Collections
+          .<String, String>emptyMap(), input.toString().getBytes(UTF_8),
+          timeout * 1000L, out, new ProcessEngine.Handler() {
+            @Override
+            public void processComplete(int exitValue, boolean timedOut) {
+              record(System.nanoTime() - startTime, exitValue, timedOut);
+
+              if (timedOut || exitValue != 0) {
+                userIo.println(format("Script [%s] with command [%s] %s. "
+                    + "Checking each service instead.", script, COMMAND,
+                    timedOut ? "timed out" : "exited with value [" + exitValue
+                        + "]"), Level.DEBUG);
+                finish(out, false);
+              }
+              else {
+                finish(out, true);
+              }
+            }
+
+            @Override
+            public void processFailed(Exception ex) {
+              record(System.nanoTime() - startTime, -1, false);
+              userIo.print(ex, Level.DEBUG);
+              finish(out, false);
+            }
+          });
+    }
+    catch (Exception ex) {
+      userIo.println("Exception while executing batch status script: " + ex
+          .getMessage(), Level.DEBUG);
+      userIo.print(ex, Level.DEBUG);
+
+      record(System.nanoTime() - startTime, -1, false);
+      finish(out, false);
+    }
+  }
+
+  /**
+   * Parses the output of the script and resolves all the waiting tasks.
+   *
+   * @param out the output of the script
+   * @param success true if the script was successful and its output can be
+   * used
+   */
+  private void finish(ByteArrayOutputStream out, boolean success) {
+    Map<String, Boolean> reported = new HashMap<String, Boolean>();
+    Set<String> names = new HashSet<String>();
+    for (ServiceConfig service : services) {
+      names.add(service.getName());
+    }
+
+    String output = new String(out.toByteArray(), UTF_8);
+    for (String line : output.split("\r?\n")) {
+      String[] fields = line.trim().split("\\s+");
+      if (fields.length == 2 && names.contains(fields[0]) && (fields[1]
+          .equalsIgnoreCase("UP") || fields[1].equalsIgnoreCase("DOWN"))) {
+        if (success) {
+          reported.put(fields[0], fields[1].equalsIgnoreCase("UP"));
+        }
+      }
+      else if (!line.trim().isEmpty()) {
+        userIo.println(format("[%s] %s", new File(script).getName(), line),
+            Level.DEBUG);
+      }
+    }
+
+    List<Member> members;
+    synchronized (this) {
+      results = reported;
+      members = new ArrayList<Member>(waiting);
+      waiting.clear();
+    }
+
+    for (Member member : members) {
+      member.resolve(reported.get(member.service.getName()));
+    }
+  }
+
+  /**
+   * Records the batch command in the metrics of every service in the batch.
+   *
+   * @param nanos the duration of the command
+   * @param exitValue the exit value of the command
+   * @param timedOut true if the command timed out
+   */
+  private void record(long nanos, int exitValue, boolean timedOut) {
+    for (ServiceConfig service : services) {
+      metrics.recordCommand(service.getName(), COMMAND, nanos, exitValue,
+          timedOut);
+    }
+  }
+
+  /**
+   * The task that checks the status of a single service in the batch.
+   */
+  private class Member extends ServiceTask.AbstractTask {
+
+    private final ServiceConfig service;
+    private final ServiceTask fallback;
+
+    /**
+     * Constructs the task.
+     *
+     * @param service the service to check
+     * @param fallback the task to check the status of the service if the
+     * batch doesn't report it
+     */
+    public Member(ServiceConfig service, ServiceTask fallback) {
+      this.service = service;
+      this.fallback = fallback;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doExecute()
+     */
+    @Override
+    protected void doExecute() {
+      request(this);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.mpilone.helsman.ServiceTask.AbstractTask#doCancel()
+     */
+    @Override
+    protected void doCancel() {
+      // The batch is shared by other services so only this service's
+      // fallback is cancelled.
+      fallback.cancel();
+      complete(false);
+    }
+
+    /**
+     * Completes the task with the reported status or checks the status of the
+     * service with the fallback task if it wasn't reported.
+     *
+     * @param status the reported status or null
+     */
+    public void resolve(Boolean status) {
+      if (status != null) {
+        complete(status);
+        return;
+      }
+
+      fallback.execute(new ServiceTask.Listener() {
+        @Override
+        public void taskComplete(ServiceTask task) {
+          complete(task.isSuccess());
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package org.mpilone.helmsman;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of the last known status of each service. Entries expire after a
+ * time to live so a stale status is never reported. The cache is thread safe.
+ *
+ * @author mpilone
+ */
+public class StatusCache {
+
+  /**
+   * The cached entries by service name.
+   */
+  private final ConcurrentMap<String, Entry> entries
+      = new ConcurrentHashMap<String, Entry>();
+
+  /**
+   * The time to live of each entry in nanoseconds.
+   */
+  private final long ttl;
+
+  /**
+   * Constructs the cache.
+   *
+   * @param ttl the number of milliseconds an entry remains valid
+   */
+  public StatusCache(long ttl) {
+    this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+  }
+
+  /**
+   * Records the status of the given service.
+   *
+   * @param name the name of the service
+   * @param up true if the service is up, false if it is down
+   */
+  public void put(String name, boolean up) {
+    entries.put(name, new Entry(up, System.nanoTime()));
+  }
+
+  /**
+   * Removes the status of the given service, making it unknown.
+   *
+   * @param name the name of the service
+   */
+  public void remove(String name) {
+    entries.remove(name);
+  }
+
+  /**
+   * Returns the status of the given service if known and not expired.
+   *
+   * @param name the name of the service
+   * @return true if up, false if down, or null if unknown
+   */
+  public Boolean get(String name) {
+    Entry entry = entries.get(name);
+
+    if (entry == null) {
+      return null;
+    }
+    else if (System.nanoTime() - entry.time > ttl) {
+      entries.remove(name, entry);
+      return null;
+    }
+    else {
+      return entry.up;
+    }
+  }
+
+  /**
+   * A single cached status.
+   */
+  private static class Entry {
+
+    private final boolean up;
+    private final long time;
+
+    /**
+     * Constructs the entry.
+     *
+     * @param up the status of the service
+     * @param time the time the status was recorded in nanoseconds
+     */
+    public Entry(boolean up, long time) {
+      this.up = up;
+      this.time = time;
+    }
+  }
+}
@@ -89,16 +89,89 @@ public class Strings {
    * @return the padded string
    */
   public static String padRight(String value, String padding, int width) {
-    while (value.length() < width) {
-      value += padding;
+    if (value.length() >= width || padding.isEmpty()) {
+      return value;
     }
 
-    return value;
+    if (padding.length() == 1) {
+      char[] padded = new char[width];
+      value.getChars(0, value.length(), padded, 0);
+      Arrays.fill(padded, value.length(), width, padding.charAt(0));
+      return new String(padded);
+    }
+
+    StringBuilder padded = new StringBuilder(width + padding.length());
+    padded.append(value);
+    while (padded.length() < width) {
+      padded.append(padding);
+    }
+
+    return padded.toString();
+  }
+
+  /**
+   * Formats a number of seconds as hours, minutes, and seconds (e.g. "1m 5s").
+   *
+   * @param seconds the number of seconds
+   * @return the formatted duration
+   */
+  public static String formatDuration(long seconds) {
+    if (seconds >= 3600) {
+      return format("%dh %dm", seconds / 3600, seconds % 3600 / 60);
+    }
+    else if (seconds >= 60) {
+      return format("%dm %ds", seconds / 60, seconds % 60);
+    }
+    else {
+      return format("%ds", seconds);
+    }
+  }
+
+  /**
+   * Quotes the given value as a JSON string.
+   *
+   * @param value the value to quote
+   * @return the quoted and escaped value
+   */
+  public static String jsonQuote(String value) {
+    StringBuilder b = new StringBuilder(value.length() + 2);
+    b.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          b.append("\\\"");
+          break;
+        case '\\':
+          b.append("\\\\");
+          break;
+        case '\n':
+          b.append("\\n");
+          break;
+        case '\r':
+          b.append("\\r");
+          break;
+        case '\t':
+          b.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            b.append(format("\\u%04x", (int) c));
+          }
+          else {
+            b.append(c);
+          }
+      }
+    }
+    b.append('"');
+
+    return b.toString();
   }
 
   /**
    * Replaces all the variables in the given string with any values found in the
-   * map.
+   * map. See {@link #replaceVariables(java.lang.String, java.util.Map,
+   * java.util.Map)} for the supported syntax.
    *
    * @param value the string to replace variables in
    * @param variables the variables to use as replacements
@@ -106,12 +179,147 @@ public class Strings {
    */
   public static String replaceVariables(String value,
       Map<String, String> variables) {
-    for (Map.Entry<String, String> entry : variables.entrySet()) {
-      value
-          = value.replaceAll("\\$\\{" + entry.getKey() + "\\}", entry.getValue());
+    return replaceVariables(value, variables, new HashMap<String, String>());
+  }
+
+  /**
+   * Replaces all the variables in the given string in a single pass. A
+   * variable is referenced as ${name} or ${name:-default}. The name is looked
+   * up in the variables map and then in the environment. Variable values may
+   * reference other variables and the default may itself contain references.
+   * A reference that cannot be resolved and has no default is left unchanged.
+   * Each variable is expanded at most once and remembered in the resolved map
+   * so the map can be shared across calls with the same variables.
+   *
+   * @param value the string to replace variables in
+   * @param variables the variables to use as replacements
+   * @param resolved the cache of fully expanded variables by name
+   * @return the modified string
+   * @throws RuntimeException if a variable references itself
+   */
+  public static String replaceVariables(String value,
+      Map<String, String> variables, Map<String, String> resolved) {
+    StringBuilder b = new StringBuilder(value.length());
+    expand(value, variables, resolved, new LinkedHashSet<String>(), b);
+    return b.toString();
+  }
+
+  /**
+   * Expands the variable references in the given value and appends the result
+   * to the builder.
+   *
+   * @param value the value to expand
+   * @param variables the variables to use as replacements
+   * @param resolved the cache of fully expanded variables by name
+   * @param expanding the names of the variables currently being expanded
+   * @param b the builder to append to
+   */
+  private static void expand(String value, Map<String, String> variables,
+      Map<String, String> resolved, Set<String> expanding, StringBuilder b) {
+
+    int index = 0;
+    while (index < value.length()) {
+      int start = value.indexOf("${", index);
+      int end = start == -1 ? -1 : findClosingBrace(value, start + 2);
+      if (end == -1) {
+        b.append(value, index, value.length());
+        return;
+      }
+      b.append(value, index, start);
+
+      String expression = value.substring(start + 2, end);
+      String name = expression;
+      String defaultValue = null;
+      int separator = expression.indexOf(":-");
+      if (separator != -1) {
+        name = expression.substring(0, separator);
+        defaultValue = expression.substring(separator + 2);
+      }
+
+      String replacement = name.contains("${") ? null : resolve(name,
+          variables, resolved, expanding);
+      if (replacement != null) {
+        b.append(replacement);
+      }
+      else if (defaultValue != null) {
+        expand(defaultValue, variables, resolved, expanding, b);
+      }
+      else {
+        b.append(value, start, end + 1);
+      }
+
+      index = end + 1;
     }
+  }
 
+  /**
+   * Returns the fully expanded value of the given variable.
+   *
+   * @param name the name of the variable
+   * @param variables the variables to use as replacements
+   * @param resolved the cache of fully expanded variables by name
+   * @param expanding the names of the variables currently being expanded
+   * @return the value or null if the variable is not defined
+   */
+  private static String resolve(String name, Map<String, String> variables,
+      Map<String, String> resolved, Set<String> expanding) {
+
+    if (resolved.containsKey(name)) {
+      return resolved.get(name);
+    }
+
+    String value = variables.get(name);
+    if (value == null) {
+      value = System.getenv(name);
+    }
+    else {
+      if (!expanding.add(name)) {
+        StringBuilder cycle = new StringBuilder();
+        boolean inCycle = false;
+        for (String member : expanding) {
+          inCycle = inCycle || member.equals(name);
+          if (inCycle) {
+            cycle.append(member).append(" -> ");
+          }
+        }
+        throw new RuntimeException(format("Variable cycle detected: %s%s.",
+            cycle, name));
+      }
+
+      StringBuilder b = new StringBuilder(value.length());
+      expand(value, variables, resolved, expanding, b);
+      expanding.remove(name);
+      value = b.toString();
+    }
+
+    resolved.put(name, value);
     return value;
   }
 
+  /**
+   * Finds the brace that closes a variable reference, skipping any nested
+   * references.
+   *
+   * @param value the value to search
+   * @param index the index just after the opening "${"
+   * @return the index of the closing brace or -1 if there is none
+   */
+  private static int findClosingBrace(String value, int index) {
+    int depth = 0;
+    for (int i = index; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '$' && i + 1 < value.length() && value.charAt(i + 1) == '{') {
+        depth++;
+        i++;
+      }
+      else if (c == '}') {
+        if (depth == 0) {
+          return i;
+        }
+        depth--;
+      }
+    }
+    return -1;
+  }
+
 }
@@ -0,0 +1,318 @@
+package org.mpilone.helmsman;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.mpilone.helmsman.UserIo.Level;
+
+import static java.lang.String.format;
+
+/**
+ * Continuously checks the status of a set of services and restarts any
+ * service that goes down. Restarts are delayed with an exponential backoff
+ * and jitter, and a circuit breaker stops restarting a service that keeps
+ * crashing. All checks and restarts are asynchronous tasks driven by a single
+ * scheduler thread so the number of threads does not grow with the number of
+ * services.
+ *
+ * @author mpilone
+ */
+public class Supervisor {
+
+  /**
+   * The supervision policy shared by all services.
+   *
+   * @author mpilone
+   */
+  public static class Policy {
+
+    private int backoff = 1;
+    private int maxBackoff = 300;
+    private int maxRestarts = 5;
+    private int window = 600;
+
+    public int getBackoff() {
+      return backoff;
+    }
+
+    public void setBackoff(int backoff) {
+      this.backoff = backoff;
+    }
+
+    public int getMaxBackoff() {
+      return maxBackoff;
+    }
+
+    public void setMaxBackoff(int maxBackoff) {
+      this.maxBackoff = maxBackoff;
+    }
+
+    public int getMaxRestarts() {
+      return maxRestarts;
+    }
+
+    public void setMaxRestarts(int maxRestarts) {
+      this.maxRestarts = maxRestarts;
+    }
+
+    public int getWindow() {
+      return window;
+    }
+
+    public void setWindow(int window) {
+      this.window = window;
+    }
+  }
+
+  /**
+   * The services to supervise.
+   */
+  private final List<ServiceConfig> services;
+
+  /**
+   * The supervision policy.
+   */
+  private final Policy policy;
+
+  /**
+   * The factory used to create the status and start tasks.
+   */
+  private final TaskFactory taskFactory;
+
+  /**
+   * The cache to record status in or null.
+   */
+  private final StatusCache statusCache;
+
+  /**
+   * The User IO to write all user output.
+   */
+  private final UserIo userIo;
+
+  /**
+   * The scheduler driving all checks and restarts.
+   */
+  private final ScheduledExecutorService scheduler = Executors
+      .newSingleThreadScheduledExecutor(new ProcessEngine.DaemonThreadFactory(
+              "helmsman-supervisor"));
+
+  /**
+   * The random source for backoff jitter.
+   */
+  private final Random random = new Random();
+
+  /**
+   * Constructs the supervisor.
+   *
+   * @param services the services to supervise
+   * @param policy the supervision policy
+   * @param taskFactory the factory used to create the status and start tasks
+   * @param statusCache the cache to record status in or null
+   * @param userIo the User IO to write all user output
+   */
+  public Supervisor(List<ServiceConfig> services, Policy policy,
+      TaskFactory taskFactory, StatusCache statusCache, UserIo userIo) {
+    this.services = services;
+    this.policy = policy;
+    this.taskFactory = taskFactory;
+    this.statusCache = statusCache;
+    this.userIo = userIo;
+  }
+
+  /**
+   * Supervises the services until the thread is interrupted. The first checks
+   * are spread across each service's check interval so they don't all run at
+   * once.
+   */
+  public void run() {
+    userIo.println(format("Supervising %d services.", services.size()));
+
+    for (ServiceConfig service : services) {
+      long delay = (long) (random.nextDouble() * service.getCheckInterval()
+          * 1000);
+      new Monitor(service).schedule(delay);
+    }
+
+    try {
+      new CountDownLatch(1).await();
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * The supervision state of a single service. All state is only modified on
+   * the scheduler thread.
+   */
+  private class Monitor {
+
+    private final ServiceConfig service;
+
+    /**
+     * The number of consecutive restarts without the service being seen up
+     * by a check.
+     */
+    private int attempts;
+
+    /**
+     * The times of recent restarts in milliseconds used by the circuit
+     * breaker.
+     */
+    private final Deque<Long> restarts = new ArrayDeque<Long>();
+
+    /**
+     * The time in milliseconds when the open circuit closes again or 0 if
+     * the circuit is closed.
+     */
+    private long circuitOpenUntil;
+
+    /**
+     * Constructs the monitor.
+     *
+     * @param service the service to monitor
+     */
+    public Monitor(ServiceConfig service) {
+      this.service = service;
+    }
+
+    /**
+     * Schedules the next status check.
+     *
+     * @param delay the delay in milliseconds
+     */
+    public void schedule(long delay) {
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          check();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks the status of the service.
+     */
+    private void check() {
+      taskFactory.status(service).execute(new ServiceTask.Listener() {
+        @Override
+        public void taskComplete(final ServiceTask task) {
+          scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+              checkComplete(task.isSuccess());
+            }
+          });
+        }
+      });
+    }
+
+    /**
+     * Handles the result of a status check.
+     *
+     * @param up true if the service is up
+     */
+    private void checkComplete(boolean up) {
+      if (statusCache != null) {
+        statusCache.put(service.getName(), up);
+      }
+
+      long interval = service.getCheckInterval() * 1000L;
+      if (up) {
+        if (attempts > 0) {
+          userIo.println(format("Service [%s] is UP.", service.getName()));
+        }
+        attempts = 0;
+        schedule(interval);
+        return;
+      }
+
+      long now = System.currentTimeMillis();
+      if (circuitOpenUntil > now) {
+        userIo.println(format("Service [%s] is DOWN; circuit open, not "
+            + "restarting for %d seconds.", service.getName(),
+            (circuitOpenUntil - now) / 1000), Level.DEBUG);
+        schedule(interval);
+        return;
+      }
+
+      // Exponential backoff with jitter so many failing services don't all
+      // restart at the same instant.
+      long backoff = Math.min(policy.getMaxBackoff() * 1000L,
+          policy.getBackoff() * 1000L << Math.min(attempts, 30));
+      long delay = backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+
+      userIo.println(format("Service [%s] is DOWN; restarting in %.1f seconds.",
+          service.getName(), delay / 1000.0));
+
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          restart();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Restarts the service.
+     */
+    private void restart() {
+      attempts++;
+
+      long now = System.currentTimeMillis();
+      restarts.addLast(now);
+      while (restarts.peekFirst() < now - policy.getWindow() * 1000L) {
+        restarts.removeFirst();
+      }
+
+      taskFactory.start(service).execute(new ServiceTask.Listener() {
+        @Override
+        public void taskComplete(final ServiceTask task) {
+          scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+              restartComplete(task.isSuccess());
+            }
+          });
+        }
+      });
+    }
+
+    /**
+     * Handles the result of a restart.
+     *
+     * @param success true if the service started
+     */
+    private void restartComplete(boolean success) {
+      userIo.println(format("Restart of service [%s] %s.", service.getName(),
+          success ? "succeeded" : "failed"));
+
+      if (restarts.size() >= policy.getMaxRestarts()) {
+        circuitOpenUntil = System.currentTimeMillis() + policy.getWindow()
+            * 1000L;
+        restarts.clear();
+
+        userIo.println(format("Service [%s] restarted %d times in %d seconds; "
+            + "opening circuit for %d seconds.", service.getName(),
+            policy.getMaxRestarts(), policy.getWindow(), policy.getWindow()),
+            Level.ERROR);
+      }
+
+      if (statusCache != null) {
+        if (success) {
+          statusCache.put(service.getName(), true);
+        }
+        else {
+          statusCache.remove(service.getName());
+        }
+      }
+
+      schedule(service.getCheckInterval() * 1000L);
+    }
+  }
+}
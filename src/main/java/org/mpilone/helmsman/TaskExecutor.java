@@ -0,0 +1,409 @@
+package org.mpilone.helmsman;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.mpilone.helmsman.UserIo.Level;
+
+import static java.lang.String.format;
+
+/**
+ * Executes a set of service tasks in the order they become ready in a
+ * schedule, keeping as many tasks executing at once as the {@link Admission}
+ * allows. When more tasks are ready than can be admitted, the tasks expected
+ * to take the longest based on their duration history are launched first
+ * (longest processing time first) so a single slow task doesn't start last and
+ * delay the whole command. A ready task that doesn't fit (e.g. a heavy task
+ * or one whose group is at its limit) doesn't hold up lighter tasks behind
+ * it. Tasks without history are expected to take the average
+ * of the tasks with history and ties keep the schedule order. If a critical
+ * task fails, execution is aborted: no more tasks are launched and the
+ * executing tasks are cancelled.
+ *
+ * @author mpilone
+ */
+public class TaskExecutor {
+
+  /**
+   * The admission which decides which tasks may execute at once.
+   */
+  private final Admission admission;
+
+  /**
+   * The metrics to record the time each task waits for a free slot in.
+   */
+  private final Metrics metrics;
+
+  /**
+   * The trace to record queueing and slot usage in or null.
+   */
+  private final Trace trace;
+
+  /**
+   * The history of task durations or null.
+   */
+  private final DurationHistory history;
+
+  /**
+   * The User IO to write all user output.
+   */
+  private final UserIo userIo;
+
+  /**
+   * The adaptive parallelism which adjusts the admission limit or null.
+   */
+  private AdaptiveParallelism adaptive;
+
+  /**
+   * Constructs the executor.
+   *
+   * @param admission the admission which decides which tasks may execute at
+   * once
+   * @param metrics the metrics to record the time each task waits for a free
+   * slot in
+   * @param trace the trace to record queueing and slot usage in or null
+   * @param history the history of task durations to order tasks by or null
+   * @param userIo the User IO to write all user output
+   */
+  public TaskExecutor(Admission admission, Metrics metrics, Trace trace,
+      DurationHistory history, UserIo userIo) {
+    this.admission = admission;
+    this.metrics = metrics;
+    this.trace = trace;
+    this.history = history;
+    this.userIo = userIo;
+  }
+
+  /**
+   * Sets the adaptive parallelism which adjusts the admission limit while
+   * tasks execute.
+   *
+   * @param adaptive the adaptive parallelism or null for a fixed limit
+   */
+  public void setAdaptive(AdaptiveParallelism adaptive) {
+    this.adaptive = adaptive;
+  }
+
+  /**
+   * Executes the given tasks. The result of each task is returned in a map of
+   * task name to result. Tasks are launched in the order they become ready in
+   * the schedule (potentially in parallel). Tasks report completion through a
+   * queue so a new task is launched as soon as a running task completes and
+   * its dependents become ready.
+   *
+   * @param action the script command performed by the tasks (e.g. start) used
+   * to look up expected task durations
+   * @param tasks the tasks to execute
+   * @param schedule the schedule of the tasks which determines when each task
+   * is ready to execute
+   * @param critical the names of the tasks whose failure aborts the execution
+   * of all remaining tasks
+   * @param printer the printer to report task progress and each result to as
+   * soon as the task completes
+   * @return the map of task name to success status
+   */
+  public Map<String, Boolean> execute(String action,
+      Map<String, ServiceTask> tasks, ServiceQueue.Schedule schedule,
+      Collection<String> critical, ResultPrinter printer) {
+
+    final BlockingQueue<String> completed = new LinkedBlockingQueue<String>();
+    Queue<String> launchable = new PriorityQueue<String>(Math.max(tasks
+        .size(), 1), longestFirst(action, tasks.keySet()));
+    Map<String, Long> readyTimes = new HashMap<String, Long>();
+    Map<String, Long> launchTimes = new HashMap<String, Long>();
+
+    // The history is read up front because each completed command updates
+    // its own history before the executor sees it complete.
+    Map<String, Double> known = new HashMap<String, Double>();
+    if (adaptive != null && history != null) {
+      for (String name : tasks.keySet()) {
+        known.put(name, history.get(name, action));
+      }
+    }
+    Map<String, Integer> slots = new HashMap<String, Integer>();
+    Deque<Integer> freeSlots = new ArrayDeque<Integer>();
+    for (int slot = 0; slot < admission.getCapacity(); slot++) {
+      freeSlots.add(slot);
+    }
+    Map<String, Boolean> results = new HashMap<String, Boolean>();
+    int executing = 0;
+    boolean aborted = false;
+
+    printer.begin(tasks.keySet());
+
+    try {
+      while (results.size() != tasks.size()) {
+
+        // Fill all the available slots with ready tasks.
+        long now = System.nanoTime();
+        for (String name : schedule.poll()) {
+          if (results.containsKey(name)) {
+            // Already skipped by an abort.
+            continue;
+          }
+          launchable.add(name);
+          readyTimes.put(name, now);
+          if (trace != null) {
+            trace.begin(name, "queued");
+          }
+        }
+        if (adaptive != null) {
+          adaptive.adjust(admission, !launchable.isEmpty());
+        }
+
+        List<String> waiting = new ArrayList<String>();
+        while (!launchable.isEmpty() && !admission.isFull()) {
+          final String name = launchable.poll();
+          if (!admission.tryAcquire(name)) {
+            waiting.add(name);
+            continue;
+          }
+
+          ServiceTask task = tasks.get(name);
+          long launchTime = System.nanoTime();
+          metrics.recordQueueWait(name, launchTime - readyTimes.remove(name));
+          launchTimes.put(name, launchTime);
+
+          int slot = freeSlots.poll();
+          slots.put(name, slot);
+          if (trace != null) {
+            trace.end(name, "queued");
+            trace.slotBegin(slot, name);
+          }
+
+          executing++;
+          printer.taskStarted(name);
+          task.execute(new ServiceTask.Listener() {
+            @Override
+            public void taskComplete(ServiceTask task) {
+              completed.add(name);
+            }
+          });
+        }
+        launchable.addAll(waiting);
+
+        if (executing == 0) {
+          throw new IllegalStateException(
+              "No tasks are executing or ready to execute.");
+        }
+
+        // Wait for the next task to complete, printing progress while waiting.
+        String name = completed.poll(2000, TimeUnit.MILLISECONDS);
+        if (name == null) {
+          printer.waiting();
+          continue;
+        }
+
+        executing--;
+        admission.release(name);
+        long launchTime = launchTimes.remove(name);
+        if (adaptive != null) {
+          adaptive.taskComplete((System.nanoTime() - launchTime) / 1e9, known
+              .get(name));
+        }
+        int slot = slots.remove(name);
+        freeSlots.push(slot);
+        if (trace != null) {
+          trace.slotEnd(slot, name);
+        }
+
+        boolean success = tasks.get(name).isSuccess();
+        results.put(name, success);
+        printer.taskComplete(name, success);
+        boolean abort = !success && critical.contains(name);
+
+        // Anything depending on a failed task will never be executed.
+        for (String skipped : schedule.complete(name, success)) {
+          if (results.containsKey(skipped)) {
+            continue;
+          }
+
+          abort |= critical.contains(skipped);
+          userIo.println(format("Skipping [%s] because a dependency failed.",
+              skipped), Level.DEBUG);
+
+          if (trace != null) {
+            trace.instant(skipped, "skipped");
+          }
+          results.put(skipped, false);
+          printer.taskSkipped(skipped);
+        }
+
+        if (abort && !aborted) {
+          aborted = true;
+          abort(name, tasks, launchable, slots.keySet(), results, printer);
+        }
+      }
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while executing tasks.", ex);
+    }
+
+    printer.end(results);
+
+    return results;
+  }
+
+  /**
+   * Aborts execution because a critical task failed. Every task that isn't
+   * executing is skipped and every executing task is cancelled. The
+   * cancelled tasks complete, unsuccessfully, through the normal completion
+   * queue.
+   *
+   * @param name the name of the critical task that failed
+   * @param tasks the tasks to execute
+   * @param launchable the tasks ready to be launched
+   * @param executing the names of the executing tasks
+   * @param results the map of task name to success status
+   * @param printer the printer to report the skipped tasks to
+   */
+  private void abort(String name, Map<String, ServiceTask> tasks,
+      Queue<String> launchable, Collection<String> executing,
+      Map<String, Boolean> results, ResultPrinter printer) {
+    printer.aborted(name);
+
+    launchable.clear();
+    for (String skipped : tasks.keySet()) {
+      if (!results.containsKey(skipped) && !executing.contains(skipped)) {
+        if (trace != null) {
+          trace.instant(skipped, "skipped");
+        }
+        results.put(skipped, false);
+        printer.taskSkipped(skipped);
+      }
+    }
+
+    for (String cancelled : executing) {
+      if (trace != null) {
+        trace.instant(cancelled, "cancelled");
+      }
+      tasks.get(cancelled).cancel();
+    }
+  }
+
+  /**
+   * Estimates how long the given tasks will take by simulating their
+   * execution with the expected duration of each task. All tasks are assumed
+   * to succeed.
+   *
+   * @param action the action performed by the tasks (e.g. start)
+   * @param names the names of the tasks
+   * @param schedule a new schedule of the tasks
+   * @return the estimated duration in seconds or 0 if there is no history
+   */
+  public double estimate(String action, Collection<String> names,
+      ServiceQueue.Schedule schedule) {
+    final Map<String, Double> expected = expectedDurations(action, names);
+    if (expected.isEmpty()) {
+      return 0;
+    }
+
+    Queue<String> launchable = new PriorityQueue<String>(Math.max(names
+        .size(), 1), longestFirst(action, names));
+    final Map<String, Double> finishTimes = new HashMap<String, Double>();
+    Queue<String> executing = new PriorityQueue<String>(admission
+        .getCapacity(),
+        new Comparator<String>() {
+          @Override
+          public int compare(String name1, String name2) {
+            return Double.compare(finishTimes.get(name1), finishTimes.get(
+                name2));
+          }
+        });
+
+    double time = 0;
+    while (true) {
+      launchable.addAll(schedule.poll());
+      List<String> waiting = new ArrayList<String>();
+      while (!launchable.isEmpty() && !admission.isFull()) {
+        String name = launchable.poll();
+        if (admission.tryAcquire(name)) {
+          finishTimes.put(name, time + expected.get(name));
+          executing.add(name);
+        }
+        else {
+          waiting.add(name);
+        }
+      }
+      launchable.addAll(waiting);
+
+      if (executing.isEmpty()) {
+        return time;
+      }
+
+      String name = executing.poll();
+      time = finishTimes.get(name);
+      admission.release(name);
+      schedule.complete(name, true);
+    }
+  }
+
+  /**
+   * Returns a comparator that orders tasks by expected duration, longest
+   * first, and then by their order in the given names.
+   *
+   * @param action the action performed by the tasks
+   * @param names the names of the tasks in schedule order
+   * @return the comparator
+   */
+  private Comparator<String> longestFirst(String action,
+      Collection<String> names) {
+    final Map<String, Double> expected = expectedDurations(action, names);
+    final Map<String, Integer> positions = new HashMap<String, Integer>();
+    for (String name : names) {
+      positions.put(name, positions.size());
+    }
+
+    return new Comparator<String>() {
+      @Override
+      public int compare(String name1, String name2) {
+        Double duration1 = expected.get(name1);
+        Double duration2 = expected.get(name2);
+
+        int result = duration1 == null ? 0 : Double.compare(duration2,
+            duration1);
+        return result != 0 ? result : positions.get(name1).compareTo(positions
+            .get(name2));
+      }
+    };
+  }
+
+  /**
+   * Returns the expected duration of each task. Tasks without history are
+   * expected to take the average of the tasks with history.
+   *
+   * @param action the action performed by the tasks
+   * @param names the names of the tasks
+   * @return the map of task name to expected seconds which is empty if no
+   * task has history
+   */
+  private Map<String, Double> expectedDurations(String action,
+      Collection<String> names) {
+    Map<String, Double> expected = new HashMap<String, Double>();
+    if (history == null) {
+      return expected;
+    }
+
+    double total = 0;
+    for (String name : names) {
+      Double duration = history.get(name, action);
+      if (duration != null) {
+        expected.put(name, duration);
+        total += duration;
+      }
+    }
+
+    if (!expected.isEmpty()) {
+      double average = total / expected.size();
+      for (String name : names) {
+        if (!expected.containsKey(name)) {
+          expected.put(name, average);
+        }
+      }
+    }
+
+    return expected;
+  }
+}
@@ -0,0 +1,312 @@
+package org.mpilone.helmsman;
+
+import java.util.*;
+import org.mpilone.helmsman.UserIo.Level;
+
+import static java.lang.String.format;
+
+/**
+ * A factory that composes the tasks used to check the status of, start, and
+ * stop services. Status checks use the service's in-JVM probe if one is
+ * configured and fall back to the service script otherwise. When starting or
+ * stopping a service whose status was established by an earlier step of the
+ * same command (e.g. the stop of a restart), the status check is skipped. The
+ * shared status cache is never used to skip a check because the service may
+ * have changed since it was cached. Services that support the batch status
+ * command and share a script may have their status checked with a single
+ * execution of the script. Commands of services using the coproc protocol are
+ * sent to a long lived worker for the script rather than executing the script.
+ *
+ * @author mpilone
+ */
+public class TaskFactory {
+
+  /**
+   * The engine used to execute service scripts.
+   */
+  private final ProcessEngine engine;
+
+  /**
+   * The workers used to execute commands of services using the coproc
+   * protocol.
+   */
+  private final Coprocesses coprocesses;
+
+  /**
+   * The prober used to execute in-JVM probes.
+   */
+  private final Prober prober;
+
+  /**
+   * The metrics to record all commands and probes in.
+   */
+  private final Metrics metrics;
+
+  /**
+   * The trace to record every task in or null.
+   */
+  private final Trace trace;
+
+  /**
+   * The User IO to write all user output.
+   */
+  private final UserIo userIo;
+
+  /**
+   * The status of services established earlier in the same command by
+   * service name.
+   */
+  private final Map<String, Boolean> commandStatus;
+
+  /**
+   * The names of the services whose start command was executed successfully
+   * by tasks of this factory.
+   */
+  private final Set<String> started = Collections.synchronizedSet(
+      new HashSet<String>());
+
+  /**
+   * Constructs the factory.
+   *
+   * @param engine the engine used to execute service scripts
+   * @param coprocesses the workers used to execute commands of services using
+   * the coproc protocol
+   * @param prober the prober used to execute in-JVM probes
+   * @param commandStatus the status of services established earlier in the
+   * same command by service name
+   * @param metrics the metrics to record all commands and probes in
+   * @param trace the trace to record every task in or null
+   * @param userIo the User IO to write all user output
+   */
+  public TaskFactory(ProcessEngine engine, Coprocesses coprocesses,
+      Prober prober, Map<String, Boolean> commandStatus, Metrics metrics,
+      Trace trace, UserIo userIo) {
+    this.engine = engine;
+    this.coprocesses = coprocesses;
+    this.prober = prober;
+    this.commandStatus = commandStatus;
+    this.metrics = metrics;
+    this.trace = trace;
+    this.userIo = userIo;
+  }
+
+  /**
+   * Creates a task that succeeds if the service is up. The status cache is
+   * never used so the service is always checked.
+   *
+   * @param service the service to check
+   * @return the new task
+   */
+  public ServiceTask status(ServiceConfig service) {
+    if (service.getProbe() != null) {
+      return traced(new ServiceTask.Probe(service, prober, metrics, userIo),
+          service, "probe");
+    }
+    else {
+      return command(service, "status");
+    }
+  }
+
+  /**
+   * Creates the tasks that succeed if each service is up. Services without a
+   * probe or worker that support the batch status command are grouped by
+   * script and each group is checked with a single execution of the script.
+   * The status cache is never used so the services are always checked. The
+   * batches are executed when the first task of each batch is executed so all
+   * the tasks must be created before any is executed.
+   *
+   * @param services the services to check
+   * @return the new tasks by service name in the order of the given services
+   */
+  public Map<String, ServiceTask> status(Collection<ServiceConfig> services) {
+    Map<String, List<ServiceConfig>> byScript
+        = new HashMap<String, List<ServiceConfig>>();
+    for (ServiceConfig service : services) {
+      if (isBatched(service)) {
+        if (!byScript.containsKey(service.getScript())) {
+          byScript.put(service.getScript(), new ArrayList<ServiceConfig>());
+        }
+        byScript.get(service.getScript()).add(service);
+      }
+    }
+
+    Map<String, StatusBatch> batches = new HashMap<String, StatusBatch>();
+    for (Map.Entry<String, List<ServiceConfig>> group : byScript.entrySet()) {
+      // A batch of one is no cheaper than the service's own status command.
+      if (group.getValue().size() > 1) {
+        batches.put(group.getKey(), new StatusBatch(group.getKey(), engine,
+            metrics, userIo));
+      }
+    }
+
+    Map<String, ServiceTask> tasks = new LinkedHashMap<String, ServiceTask>();
+    for (ServiceConfig service : services) {
+      StatusBatch batch = isBatched(service) ? batches.get(service
+          .getScript()) : null;
+
+      if (batch == null) {
+        tasks.put(service.getName(), status(service));
+      }
+      else {
+        tasks.put(service.getName(), traced(batch.add(service, command(
+            service, "status")), service, StatusBatch.COMMAND));
+      }
+    }
+    return tasks;
+  }
+
+  /**
+   * Creates a task that starts the service if it is not already up.
+   *
+   * @param service the service to start
+   * @return the new task
+   */
+  public ServiceTask start(ServiceConfig service) {
+    Boolean status = knownStatus(service);
+
+    if (status == null) {
+      return traced(new ServiceTask.Or(status(service), startCommand(
+          service)), service, "start if down");
+    }
+    else if (status) {
+      return new ServiceTask.Constant(true);
+    }
+    else {
+      return startCommand(service);
+    }
+  }
+
+  /**
+   * Creates a task that stops the service if it is not already down.
+   *
+   * @param service the service to stop
+   * @return the new task
+   */
+  public ServiceTask stop(ServiceConfig service) {
+    Boolean status = knownStatus(service);
+
+    if (status == null) {
+      return traced(new ServiceTask.Or(new ServiceTask.Not(status(service)),
+          command(service, "stop")), service, "stop if up");
+    }
+    else if (status) {
+      return command(service, "stop");
+    }
+    else {
+      return new ServiceTask.Constant(true);
+    }
+  }
+
+  /**
+   * Creates a task that stops the service if it is not already down and then
+   * starts it. The start doesn't check the status because the service is
+   * known to be down once the stop succeeds.
+   *
+   * @param service the service to restart
+   * @return the new task
+   */
+  public ServiceTask restart(ServiceConfig service) {
+    return traced(new ServiceTask.And(stop(service), startCommand(service)),
+        service, "restart");
+  }
+
+  /**
+   * Returns true if the start command of the service was executed
+   * successfully by a task of this factory. A start task that found the
+   * service already up doesn't execute the start command.
+   *
+   * @param service the service
+   * @return true if started by this factory
+   */
+  public boolean isStarted(ServiceConfig service) {
+    return started.contains(service.getName());
+  }
+
+  /**
+   * Creates a task that executes the service script with the given command.
+   *
+   * @param service the service to execute
+   * @param command the command argument
+   * @return the new task
+   */
+  public ServiceTask command(ServiceConfig service, String command) {
+    ProcessEngine e = Coprocesses.PROTOCOL.equals(service.getProtocol())
+        ? coprocesses.engine(service.getName()) : engine;
+
+    return traced(new ServiceTask.Command(service, command, e, metrics,
+        userIo), service, command);
+  }
+
+  /**
+   * Creates a task that executes the start command of the service and
+   * records the service as started if the command succeeds.
+   *
+   * @param service the service to start
+   * @return the new task
+   */
+  private ServiceTask startCommand(final ServiceConfig service) {
+    final ServiceTask task = command(service, "start");
+
+    return new ServiceTask.AbstractTask() {
+      @Override
+      protected void doExecute() {
+        task.execute(new ServiceTask.Listener() {
+          @Override
+          public void taskComplete(ServiceTask task) {
+            if (task.isSuccess()) {
+              started.add(service.getName());
+            }
+            complete(task.isSuccess());
+          }
+        });
+      }
+
+      @Override
+      protected void doCancel() {
+        task.cancel();
+      }
+    };
+  }
+
+  /**
+   * Returns true if the status of the service may be checked in a batch. A
+   * worker already checks the status without forking the script.
+   *
+   * @param service the service
+   * @return true if batched
+   */
+  private boolean isBatched(ServiceConfig service) {
+    return service.isBatchStatus() && service.getProbe() == null
+        && !Coprocesses.PROTOCOL.equals(service.getProtocol());
+  }
+
+  /**
+   * Wraps the task to record it in the trace if tracing is enabled.
+   *
+   * @param task the task to wrap
+   * @param service the service the task belongs to
+   * @param name the name of the span
+   * @return the wrapped task or the original task if not tracing
+   */
+  private ServiceTask traced(ServiceTask task, ServiceConfig service,
+      String name) {
+    return trace == null ? task : new ServiceTask.Traced(task, trace, service
+        .getName(), name);
+  }
+
+  /**
+   * Returns the status of the service established earlier in the command.
+   *
+   * @param service the service
+   * @return true if up, false if down, or null if unknown
+   */
+  private Boolean knownStatus(ServiceConfig service) {
+    Boolean status = commandStatus.get(service.getName());
+
+    if (status != null) {
+      userIo.println(format("Using known status of service [%s]: %s.",
+          service.getName(), status ? "UP" : "DOWN"), Level.DEBUG);
+    }
+    return status;
+  }
+}
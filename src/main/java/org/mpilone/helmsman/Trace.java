@@ -0,0 +1,202 @@
+package org.mpilone.helmsman;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static java.lang.String.format;
+import static org.mpilone.helmsman.Strings.jsonQuote;
+
+/**
+ * Records a timeline of task execution and writes it in the Chrome trace
+ * event format which can be opened in chrome://tracing or Perfetto. Two kinds
+ * of spans are recorded:
+ * <ul>
+ * <li>service spans, one track per service, showing when the service was
+ * queued and each (nested) task leg such as the status check and start
+ * command</li>
+ * <li>slot spans, one track per execution slot, showing which service
+ * occupied each of the parallel slots</li>
+ * </ul>
+ * Events are appended to preallocated arrays and only formatted when the trace
+ * is written so recording adds very little overhead to the timings it
+ * measures. Recording is thread safe.
+ *
+ * @author mpilone
+ */
+public class Trace {
+
+  /**
+   * The UTF-8 character set.
+   */
+  private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final byte SERVICE_BEGIN = 0;
+  private static final byte SERVICE_END = 1;
+  private static final byte SLOT_BEGIN = 2;
+  private static final byte SLOT_END = 3;
+  private static final byte INSTANT = 4;
+
+  /**
+   * The time the trace started in nanoseconds.
+   */
+  private final long startTime = System.nanoTime();
+
+  private long[] times = new long[1024];
+  private byte[] types = new byte[1024];
+  private String[] names = new String[1024];
+  private String[] services = new String[1024];
+  private int[] slots = new int[1024];
+  private int count;
+
+  /**
+   * Records the beginning of a span on the track of the given service. Spans
+   * on the same service must be properly nested.
+   *
+   * @param service the name of the service
+   * @param name the name of the span (e.g. "start")
+   */
+  public void begin(String service, String name) {
+    record(SERVICE_BEGIN, service, name, 0);
+  }
+
+  /**
+   * Records the end of a span on the track of the given service.
+   *
+   * @param service the name of the service
+   * @param name the name of the span
+   */
+  public void end(String service, String name) {
+    record(SERVICE_END, service, name, 0);
+  }
+
+  /**
+   * Records that the given service started occupying the given slot.
+   *
+   * @param slot the execution slot
+   * @param service the name of the service
+   */
+  public void slotBegin(int slot, String service) {
+    record(SLOT_BEGIN, service, service, slot);
+  }
+
+  /**
+   * Records that the given service stopped occupying the given slot.
+   *
+   * @param slot the execution slot
+   * @param service the name of the service
+   */
+  public void slotEnd(int slot, String service) {
+    record(SLOT_END, service, service, slot);
+  }
+
+  /**
+   * Records an instant event on the track of the given service.
+   *
+   * @param service the name of the service
+   * @param name the name of the event (e.g. "skipped")
+   */
+  public void instant(String service, String name) {
+    record(INSTANT, service, name, 0);
+  }
+
+  /**
+   * Appends an event, growing the arrays if needed.
+   *
+   * @param type the event type
+   * @param service the name of the service
+   * @param name the name of the event
+   * @param slot the execution slot
+   */
+  private synchronized void record(byte type, String service, String name,
+      int slot) {
+    long time = System.nanoTime();
+
+    if (count == times.length) {
+      int length = count * 2;
+      times = Arrays.copyOf(times, length);
+      types = Arrays.copyOf(types, length);
+      names = Arrays.copyOf(names, length);
+      services = Arrays.copyOf(services, length);
+      slots = Arrays.copyOf(slots, length);
+    }
+
+    times[count] = time;
+    types[count] = type;
+    names[count] = name;
+    services[count] = service;
+    slots[count] = slot;
+    count++;
+  }
+
+  /**
+   * Writes the trace in the Chrome trace event JSON format.
+   *
+   * @param out the writer to write to
+   */
+  public synchronized void write(PrintWriter out) {
+    out.print("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+    out.print("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"tid\":0,"
+        + "\"args\":{\"name\":\"helmsman\"}}");
+
+    int maxSlot = -1;
+    for (int i = 0; i < count; i++) {
+      String ts = format(Locale.ROOT, "%.3f", (times[i] - startTime) / 1e3);
+      String name = jsonQuote(names[i]);
+      String service = jsonQuote(services[i]);
+
+      switch (types[i]) {
+        case SERVICE_BEGIN:
+        case SERVICE_END:
+          out.print(format(",\n{\"name\":%s,\"cat\":\"service\",\"ph\":\"%s\","
+              + "\"id\":%s,\"ts\":%s,\"pid\":1,\"tid\":0,"
+              + "\"args\":{\"service\":%s}}", name, types[i] == SERVICE_BEGIN
+              ? "b" : "e", service, ts, service));
+          break;
+
+        case SLOT_BEGIN:
+        case SLOT_END:
+          maxSlot = Math.max(maxSlot, slots[i]);
+          out.print(format(",\n{\"name\":%s,\"cat\":\"slot\",\"ph\":\"%s\","
+              + "\"ts\":%s,\"pid\":1,\"tid\":%d}", name, types[i] == SLOT_BEGIN
+              ? "B" : "E", ts, slots[i] + 1));
+          break;
+
+        default:
+          out.print(format(",\n{\"name\":%s,\"cat\":\"service\",\"ph\":\"n\","
+              + "\"id\":%s,\"ts\":%s,\"pid\":1,\"tid\":0}", name, service, ts));
+          break;
+      }
+    }
+
+    for (int slot = 0; slot <= maxSlot; slot++) {
+      out.print(format(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,"
+          + "\"tid\":%d,\"args\":{\"name\":\"slot %d\"}}", slot + 1, slot + 1));
+    }
+
+    out.print("\n]}\n");
+    out.flush();
+  }
+
+  /**
+   * Writes the trace to the given file.
+   *
+   * @param file the file to write
+   * @throws IOException if the file cannot be written
+   */
+  public void write(File file) throws IOException {
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(
+        new FileOutputStream(file), UTF_8));
+    try {
+      write(out);
+    }
+    finally {
+      out.close();
+    }
+
+    if (out.checkError()) {
+      throw new IOException(format("Unable to write trace to [%s].", file));
+    }
+  }
+}
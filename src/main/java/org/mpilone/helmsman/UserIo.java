@@ -1,5 +1,6 @@
 package org.mpilone.helmsman;
 
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
@@ -25,6 +26,41 @@ public class UserIo {
    */
   private Level level = Level.INFO;
 
+  /**
+   * The stream to write all output to.
+   */
+  private final PrintStream out;
+
+  /**
+   * The stream to write confirmation prompts to.
+   */
+  private PrintStream prompts;
+
+  /**
+   * True if the user can be prompted for input.
+   */
+  private final boolean interactive;
+
+  /**
+   * Constructs the user IO writing to stdout and reading from stdin.
+   */
+  public UserIo() {
+    this(System.out, true);
+  }
+
+  /**
+   * Constructs the user IO writing to the given stream.
+   *
+   * @param out the stream to write all output to
+   * @param interactive true if the user can be prompted for input on stdin,
+   * false to decline all confirmations
+   */
+  public UserIo(PrintStream out, boolean interactive) {
+    this.out = out;
+    this.prompts = out;
+    this.interactive = interactive;
+  }
+
   /**
    * Displays a confirmation prompt to the user and reads a yes/no response.
    *
@@ -33,9 +69,15 @@ public class UserIo {
    */
   public boolean confirm(String prompt) {
 
+    if (!interactive) {
+      prompts.println(prompt + " [y/n]: n (use --quiet to skip confirmation)");
+      return false;
+    }
+
     while (true) {
       try {
-        System.out.print(prompt + " [y/n]: ");
+        prompts.print(prompt + " [y/n]: ");
+        prompts.flush();
         char c = (char) System.in.read();
         if (c == 'y') {
           return true;
@@ -50,6 +92,25 @@ public class UserIo {
     }
   }
 
+  /**
+   * Returns true if the user can be prompted for input.
+   *
+   * @return true if interactive
+   */
+  public boolean isInteractive() {
+    return interactive;
+  }
+
+  /**
+   * Sets the stream to write confirmation prompts to, for example to keep
+   * them out of machine readable output.
+   *
+   * @param prompts the stream to write prompts to
+   */
+  public void setPrompts(PrintStream prompts) {
+    this.prompts = prompts;
+  }
+
   /**
    * Sets the lowest level message to output to the user.
    *
@@ -59,6 +120,16 @@ public class UserIo {
     this.level = level;
   }
 
+  /**
+   * Returns true if messages at the given level are written to the user.
+   *
+   * @param level the level of message
+   * @return true if the level is enabled
+   */
+  public boolean isLevelEnabled(Level level) {
+    return this.level != Level.INFO || level != Level.DEBUG;
+  }
+
   /**
    * Prints the given exception to the user.
    *
@@ -100,20 +171,21 @@ public class UserIo {
   public synchronized void print(String msg, Level level) {
     switch (this.level) {
       case DEBUG:
-        System.out.print(msg);
+        out.print(msg);
         break;
 
       case INFO:
         if (level == Level.INFO || level == Level.ERROR) {
-          System.out.print(msg);
+          out.print(msg);
         }
         break;
 
       case ERROR:
-        System.out.print(msg);
+        out.print(msg);
         break;
 
     }
+    out.flush();
   }
 
   /**
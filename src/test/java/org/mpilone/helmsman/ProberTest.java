@@ -0,0 +1,186 @@
+package org.mpilone.helmsman;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the in-JVM probes against local sockets.
+ *
+ * @author mpilone
+ */
+public class ProberTest {
+
+  private Prober prober;
+  private ServerSocket server;
+
+  @Before
+  public void setUp() throws IOException {
+    prober = new Prober();
+    server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+  }
+
+  @Test
+  public void tcpIsUpWhenTheConnectionIsAccepted() throws Exception {
+    Result result = probe("tcp:127.0.0.1:" + server.getLocalPort(), 5000);
+
+    assertTrue(result.message, result.up);
+  }
+
+  @Test
+  public void tcpIsDownWhenTheConnectionIsRefused() throws Exception {
+    int port = server.getLocalPort();
+    server.close();
+
+    Result result = probe("tcp:127.0.0.1:" + port, 5000);
+
+    assertFalse(result.message, result.up);
+  }
+
+  @Test
+  public void httpIsUpOnSuccessStatus() throws Exception {
+    respond("HTTP/1.0 200 OK");
+
+    Result result = probe("http://127.0.0.1:" + server.getLocalPort()
+        + "/health", 5000);
+
+    assertTrue(result.message, result.up);
+  }
+
+  @Test
+  public void httpIsDownOnServerErrorStatus() throws Exception {
+    respond("HTTP/1.0 503 Service Unavailable");
+
+    Result result = probe("http://127.0.0.1:" + server.getLocalPort()
+        + "/health", 5000);
+
+    assertFalse(result.message, result.up);
+    assertTrue(result.message, result.message.contains("503"));
+  }
+
+  @Test
+  public void probeTimesOutWhenTheServerNeverResponds() throws Exception {
+    // The connection is accepted by the backlog but nothing is ever sent.
+    long start = System.nanoTime();
+    Result result = probe("http://127.0.0.1:" + server.getLocalPort() + "/",
+        200);
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    assertFalse(result.message, result.up);
+    assertTrue(result.message, result.message.contains("timed out"));
+    assertTrue("Took " + elapsed + " ms", elapsed < 5000);
+  }
+
+  @Test
+  public void validateAcceptsSupportedProbes() {
+    Prober.validate("tcp:localhost:8080");
+    Prober.validate("http://localhost:8080/health");
+    Prober.validate("pidfile:/var/run/service.pid");
+    Prober.validate("file:/tmp/ready");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void validateRejectsHttps() {
+    Prober.validate("https://localhost:8443/health");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void validateRejectsMissingType() {
+    Prober.validate("localhost");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void validateRejectsMissingPort() {
+    Prober.validate("tcp:localhost");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void validateRejectsInvalidPort() {
+    Prober.validate("tcp:localhost:http");
+  }
+
+  /**
+   * Executes the probe and waits for the result.
+   *
+   * @param spec the probe specification
+   * @param timeout the probe timeout in milliseconds
+   * @return the result
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private Result probe(String spec, long timeout) throws InterruptedException {
+    final Result result = new Result();
+    final CountDownLatch done = new CountDownLatch(1);
+
+    prober.probe(spec, timeout, new Prober.Callback() {
+      @Override
+      public void probeComplete(boolean up, String message) {
+        result.up = up;
+        result.message = message;
+        done.countDown();
+      }
+    });
+
+    assertTrue("Probe did not complete", done.await(10, TimeUnit.SECONDS));
+    return result;
+  }
+
+  /**
+   * Accepts a single connection on the server, reads the request headers,
+   * and responds with the given status line.
+   *
+   * @param statusLine the HTTP status line
+   */
+  private void respond(final String statusLine) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Socket socket = server.accept();
+          try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), "US-ASCII"));
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+              // Skip the request.
+            }
+
+            OutputStream out = socket.getOutputStream();
+            out.write((statusLine + "\r\nContent-Length: 0\r\n\r\n")
+                .getBytes("US-ASCII"));
+            out.flush();
+          }
+          finally {
+            socket.close();
+          }
+        }
+        catch (IOException ex) {
+          // The test fails on the probe result.
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * The result of a probe.
+   */
+  private static class Result {
+
+    private volatile boolean up;
+    private volatile String message;
+  }
+}
@@ -0,0 +1,93 @@
+package org.mpilone.helmsman;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the line buffering of the service output stream.
+ *
+ * @author mpilone
+ */
+public class ServiceOutputStreamTest {
+
+  private ByteArrayOutputStream output;
+  private ServiceOutputStream out;
+
+  @Before
+  public void setUp() throws Exception {
+    output = new ByteArrayOutputStream();
+    UserIo userIo = new UserIo(new PrintStream(output, true, "UTF-8"), false);
+    userIo.setLevel(UserIo.Level.DEBUG);
+    out = new ServiceOutputStream(userIo, "web");
+  }
+
+  @Test
+  public void singleBytesAreJoinedIntoLines() throws Exception {
+    for (byte value : "up\r\ndown\n".getBytes("UTF-8")) {
+      out.write(value);
+    }
+
+    assertEquals("[web] up\n[web] down\n", output());
+  }
+
+  @Test
+  public void partialLineIsWrittenOnFlush() throws Exception {
+    out.write("one\ntwo".getBytes("UTF-8"));
+    assertEquals("[web] one\n", output());
+
+    out.flush();
+    assertEquals("[web] one\n[web] two\n", output());
+  }
+
+  @Test
+  public void longLineIsBroken() throws Exception {
+    byte[] data = new byte[ServiceOutputStream.MAX_LINE_LENGTH * 2 + 10];
+    Arrays.fill(data, (byte) 'x');
+    out.write(data);
+    out.flush();
+
+    String[] lines = output().split("\n");
+    assertEquals(3, lines.length);
+    assertEquals(ServiceOutputStream.MAX_LINE_LENGTH + 6, lines[0].length());
+    assertEquals(ServiceOutputStream.MAX_LINE_LENGTH + 6, lines[1].length());
+    assertEquals("[web] xxxxxxxxxx", lines[2]);
+  }
+
+  @Test
+  public void longLineIsBrokenBySingleBytes() throws Exception {
+    for (int i = 0; i < ServiceOutputStream.MAX_LINE_LENGTH + 1; ++i) {
+      out.write('x');
+    }
+    out.flush();
+
+    assertEquals(2, output().split("\n").length);
+  }
+
+  @Test
+  public void longLineIsNotBrokenWithinACharacter() throws Exception {
+    byte[] prefix = new byte[ServiceOutputStream.MAX_LINE_LENGTH - 1];
+    Arrays.fill(prefix, (byte) 'x');
+    out.write(prefix);
+    out.write("€\n".getBytes("UTF-8"));
+
+    String[] lines = output().split("\n");
+    assertEquals(2, lines.length);
+    assertFalse(lines[0].contains("�"));
+    assertEquals("[web] €", lines[1]);
+  }
+
+  /**
+   * Returns the output written to the user IO so far.
+   *
+   * @return the decoded output
+   * @throws Exception if the output cannot be decoded
+   */
+  private String output() throws Exception {
+    return output.toString("UTF-8");
+  }
+}
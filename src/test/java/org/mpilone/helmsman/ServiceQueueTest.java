@@ -0,0 +1,112 @@
+package org.mpilone.helmsman;
+
+import java.util.*;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the dependency graph and scheduling of the service queue.
+ *
+ * @author mpilone
+ */
+public class ServiceQueueTest {
+
+  @Test
+  public void acyclicDependenciesAreAccepted() {
+    ServiceQueue queue = new ServiceQueue(asList(service("a", 1, "b"),
+        service("b", 1, "c"), service("c", 1)));
+
+    assertEquals(3, queue.size());
+  }
+
+  @Test
+  public void dependenciesOnUnknownServicesAreIgnored() {
+    ServiceQueue.Schedule schedule = new ServiceQueue(asList(service("a", 1,
+        "missing"))).schedule(true);
+
+    assertEquals(asList("a"), schedule.poll());
+  }
+
+  @Test
+  public void cycleIsDetected() {
+    try {
+      new ServiceQueue(asList(service("a", 1, "b"), service("b", 1, "c"),
+          service("c", 1, "a")));
+      fail("Expected a cycle");
+    }
+    catch (RuntimeException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains(
+          "Service dependency cycle detected"));
+      for (String name : asList("a", "b", "c")) {
+        assertTrue(ex.getMessage(), ex.getMessage().contains(name));
+      }
+    }
+  }
+
+  @Test
+  public void cycleBehindAnotherServiceIsDetected() {
+    try {
+      new ServiceQueue(asList(service("a", 1, "b"), service("b", 1, "c"),
+          service("c", 1, "b")));
+      fail("Expected a cycle");
+    }
+    catch (RuntimeException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains("b"));
+      assertTrue(ex.getMessage(), ex.getMessage().contains("c"));
+    }
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void selfDependencyIsACycle() {
+    new ServiceQueue(asList(service("a", 1, "a")));
+  }
+
+  @Test
+  public void dependenciesAreReadyFirst() {
+    ServiceQueue.Schedule schedule = new ServiceQueue(asList(service("a", 1,
+        "b"), service("b", 1))).schedule(true);
+
+    assertEquals(asList("b"), schedule.poll());
+    schedule.complete("b", true);
+    assertEquals(asList("a"), schedule.poll());
+  }
+
+  @Test
+  public void dependentsOfFailedServicesAreSkipped() {
+    ServiceQueue.Schedule schedule = new ServiceQueue(asList(service("a", 1,
+        "b"), service("b", 1))).schedule(true);
+
+    assertEquals(asList("b"), schedule.poll());
+    assertEquals(asList("a"), schedule.complete("b", false));
+  }
+
+  @Test
+  public void orderLevelsAreReadyInOrder() {
+    ServiceQueue.Schedule schedule = new ServiceQueue(asList(service("late",
+        2), service("early", 1))).schedule(true);
+
+    assertEquals(asList("early"), schedule.poll());
+    schedule.complete("early", true);
+    assertEquals(asList("late"), schedule.poll());
+  }
+
+  /**
+   * Creates a service.
+   *
+   * @param name the name of the service
+   * @param order the order of the service
+   * @param dependsOn the names of the services it depends on
+   * @return the service
+   */
+  private static ServiceConfig service(String name, int order,
+      String... dependsOn) {
+    ServiceConfig service = new ServiceConfig();
+    service.setName(name);
+    service.setOrder(order);
+    service.setScript("/bin/true");
+    service.getDependsOn().addAll(asList(dependsOn));
+    return service;
+  }
+}
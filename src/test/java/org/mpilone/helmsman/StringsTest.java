@@ -0,0 +1,110 @@
+package org.mpilone.helmsman;
+
+import java.util.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mpilone.helmsman.Strings.*;
+
+/**
+ * Tests the string utilities, in particular variable replacement.
+ *
+ * @author mpilone
+ */
+public class StringsTest {
+
+  @Test
+  public void variablesAreReplaced() {
+    assertEquals("/opt/app/bin", replaceVariables("${HM_TEST_HOME}/bin",
+        variables("HM_TEST_HOME", "/opt/app")));
+  }
+
+  @Test
+  public void nestedVariablesAreExpanded() {
+    assertEquals("/opt/app/v2/bin", replaceVariables("${HM_TEST_BIN}",
+        variables("HM_TEST_BIN", "${HM_TEST_HOME}/bin", "HM_TEST_HOME",
+            "/opt/app/${HM_TEST_VERSION}", "HM_TEST_VERSION", "v2")));
+  }
+
+  @Test
+  public void defaultIsUsedForUndefinedVariable() {
+    assertEquals("/tmp/x", replaceVariables("${HM_TEST_UNDEFINED:-/tmp}/x",
+        variables()));
+  }
+
+  @Test
+  public void defaultIsIgnoredForDefinedVariable() {
+    assertEquals("/opt/x", replaceVariables("${HM_TEST_HOME:-/tmp}/x",
+        variables("HM_TEST_HOME", "/opt")));
+  }
+
+  @Test
+  public void defaultMayReferenceVariables() {
+    assertEquals("/opt/log", replaceVariables(
+        "${HM_TEST_UNDEFINED:-${HM_TEST_HOME}/log}", variables("HM_TEST_HOME",
+            "/opt")));
+  }
+
+  @Test
+  public void undefinedVariableWithoutDefaultIsUnchanged() {
+    assertEquals("a ${HM_TEST_UNDEFINED} b", replaceVariables(
+        "a ${HM_TEST_UNDEFINED} b", variables()));
+  }
+
+  @Test
+  public void unterminatedReferenceIsUnchanged() {
+    assertEquals("a ${HM_TEST_HOME", replaceVariables("a ${HM_TEST_HOME",
+        variables("HM_TEST_HOME", "/opt")));
+  }
+
+  @Test
+  public void resolvedVariablesAreShared() {
+    Map<String, String> resolved = new HashMap<String, String>();
+    Map<String, String> variables = variables("HM_TEST_A", "${HM_TEST_B}",
+        "HM_TEST_B", "b");
+
+    replaceVariables("${HM_TEST_A}", variables, resolved);
+
+    assertEquals("b", resolved.get("HM_TEST_A"));
+    assertEquals("b", resolved.get("HM_TEST_B"));
+  }
+
+  @Test
+  public void cycleIsDetected() {
+    try {
+      replaceVariables("${HM_TEST_A}", variables("HM_TEST_A", "${HM_TEST_B}",
+          "HM_TEST_B", "${HM_TEST_A}"));
+      fail("Expected a cycle");
+    }
+    catch (RuntimeException ex) {
+      assertEquals("Variable cycle detected: HM_TEST_A -> HM_TEST_B -> "
+          + "HM_TEST_A.", ex.getMessage());
+    }
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void selfReferenceIsACycle() {
+    replaceVariables("${HM_TEST_A}", variables("HM_TEST_A", "x${HM_TEST_A}"));
+  }
+
+  @Test
+  public void padRightPadsToWidth() {
+    assertEquals("ab...", padRight("ab", ".", 5));
+    assertEquals("ab-=-=", padRight("ab", "-=", 5));
+    assertEquals("abcdef", padRight("abcdef", ".", 5));
+  }
+
+  /**
+   * Creates a map of variables from name and value pairs.
+   *
+   * @param pairs the names and values
+   * @return the variables
+   */
+  private static Map<String, String> variables(String... pairs) {
+    Map<String, String> variables = new HashMap<String, String>();
+    for (int i = 0; i < pairs.length; i += 2) {
+      variables.put(pairs[i], pairs[i + 1]);
+    }
+    return variables;
+  }
+}
@@ -18,5 +18,25 @@
 
 basedir=`dirname $0`
 
-java -Djava.awt.headless=true -client -Dbasedir=$basedir -jar $basedir/../lib/helmsman.jar $@
+# If a Helmsman daemon is listening on HELMSMAN_PORT, send the command to it 
+# rather than starting a new JVM. The daemon is started with:
+#   helmsman.sh --daemon <port>
+# The request is the token from the daemon's token file (HELMSMAN_TOKEN_FILE,
+# by default config/.helmsman.token), the number of arguments, and the
+# arguments, each terminated by a NUL. The response is the output of the
+# command, a NUL, and the exit status of the command.
+tokenfile=${HELMSMAN_TOKEN_FILE:-$basedir/../config/.helmsman.token}
+if [ -n "$HELMSMAN_PORT" ] && [ -r "$tokenfile" ] \
+    && exec 3<>/dev/tcp/127.0.0.1/$HELMSMAN_PORT
+then
+  read -r token < "$tokenfile"
+  printf '%s\0' "$token" "$#" "$@" >&3
+  IFS= read -r -d '' output <&3
+  printf '%s' "$output"
+  read -r status <&3
+  exec 3<&-
+  exit ${status:-1}
+fi 2> /dev/null
+
+java -Djava.awt.headless=true -client -Dbasedir=$basedir -jar $basedir/../lib/helmsman.jar "$@"
 exit $?
\ No newline at end of file